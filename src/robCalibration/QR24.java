@@ -2,7 +2,11 @@ package robCalibration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.ArrayRealVector;
@@ -14,8 +18,16 @@ import org.apache.commons.math3.linear.RealVector;
 import org.apache.commons.math3.linear.SingularValueDecomposition;
 
 import robprakt.Constants;
+import robprakt.cutting.PoseQuery;
 import robprakt.graphics.Controller;
+import robprakt.network.PoseCommandEncoder;
+import robprakt.network.PoseParser;
 import robprakt.network.TCPClient;
+import robprakt.network.TimedResponse;
+import robprakt.tracking.MarkerStream;
+import robprakt.tracking.SampleRing;
+import robprakt.tracking.TrackingSample;
+import robprakt.tracking.TrackingStream;
 
 
 /**
@@ -71,6 +83,42 @@ public class QR24 {
 	 */
 	protected ArrayList<RealMatrix> measuredPosesOfMarker = new ArrayList<RealMatrix>();
 	
+	/**
+	 * Encodes the MoveMinChangeRowWiseStatus commands for the robot poses.
+	 */
+	private final PoseCommandEncoder poseCommandEncoder = new PoseCommandEncoder();
+	
+	/**
+	 * Receives the samples of the tracking stream, if the controller's stream is running.
+	 */
+	private final TrackingSample trackingSample = new TrackingSample();
+	
+	/**
+	 * default speed of the end-effector in mm/s, below which a measurement is taken while the robot is still moving
+	 */
+	public static final double DEFAULT_SAMPLING_SPEED = 5;
+	
+	/**
+	 * default distance to the target pose in mm, within which a measurement is taken while the robot is still moving
+	 */
+	public static final double DEFAULT_SAMPLING_DISTANCE = 2;
+	
+	/**
+	 * If true and the tracking-system is polled in the background, measurements are taken as soon as
+	 * the robot moves slowly close to the target, instead of waiting a fixed time for it to stop.
+	 */
+	private boolean sampleWhileMoving = false;
+	
+	/**
+	 * speed of the end-effector in mm/s below which a measurement is taken while moving
+	 */
+	private double samplingSpeed = DEFAULT_SAMPLING_SPEED;
+	
+	/**
+	 * distance to the target pose in mm within which a measurement is taken while moving
+	 */
+	private double samplingDistance = DEFAULT_SAMPLING_DISTANCE;
+	
 	/**
 	 * The Constructor
 	 * @param c the controller for sending Messages to Robots and Tracking System 
@@ -93,6 +141,21 @@ public class QR24 {
 		return false;
 	}
 	
+	/**
+	 * Setter for sampling while the robot is moving.
+	 * The measured robot pose is paired with the tracking sample interpolated at the time the
+	 * robot reported it, so both describe the same moment even though the robot still moves.
+	 * This only takes effect while the marker or the tracking stream is polled in the background.
+	 * @param sampleWhileMoving true for measuring without waiting for the robot to stop
+	 * @param speed speed of the end-effector in mm/s below which a measurement is taken
+	 * @param distance distance to the target pose in mm within which a measurement is taken
+	 */
+	public void setSampleWhileMoving(boolean sampleWhileMoving, double speed, double distance) {
+		this.sampleWhileMoving = sampleWhileMoving;
+		this.samplingSpeed = speed;
+		this.samplingDistance = distance;
+	}
+	
 	/**
 	 * Setter for InitialMarkerPose
 	 * @param matrix3x4 is a matrix send by tracking-system
@@ -218,13 +281,8 @@ public class QR24 {
 		for(int cnt = numberOfMeasurements-1; cnt >= 0; cnt--) {
 			robPoseMatrix = poseMatrices.get(cnt);
 			
-			String data = "MoveMinChangeRowWiseStatus" 	+ " " + robPoseMatrix.getEntry(0,0) + " " + robPoseMatrix.getEntry(0, 1) + " " + robPoseMatrix.getEntry(0,2) + " " + robPoseMatrix.getEntry(0, 3)
-														+ " " + robPoseMatrix.getEntry(1,0) + " " + robPoseMatrix.getEntry(1, 1) + " " + robPoseMatrix.getEntry(1,2) + " " + robPoseMatrix.getEntry(1, 3)
-														+ " " + robPoseMatrix.getEntry(2,0) + " " + robPoseMatrix.getEntry(2, 1) + " " + robPoseMatrix.getEntry(2,2) + " " + robPoseMatrix.getEntry(2, 3)
-														+ " " + "noflip lefty";
 			//send command to robot
-			controller.send(data, clientRob);
-			String responseRob = controller.response(clientRob);
+			String responseRob = await(controller.request(poseCommandEncoder.encode(robPoseMatrix), clientRob));
 			if(responseRob==null) {
 				System.out.println("Error, check connection to Robot!");
 				return false;
@@ -235,6 +293,17 @@ public class QR24 {
 				actualMeasureCount--;
 				continue;
 			}
+			MarkerStream markerStream = controller.getMarkerStream(clientRob);
+			TrackingStream trackingStream = controller.getTrackingStream();
+			if(trackingStream != null && !trackingStream.isRunning()) trackingStream = null;
+			if(sampleWhileMoving && (markerStream != null || trackingStream != null)) {
+				//pair the robot pose with the tracking sample of the same moment while the robot slows down
+				RealMatrix m = measureWhileMoving(clientRob, robPoseMatrix, cnt, markerStream, trackingStream);
+				if(m == null) return false;
+				this.measuredPosesOfMarker.add(m);
+				continue;
+			}
+			
 			//wait a certain amount of time, till robot reaches pose
 			try {
 				TimeUnit.MILLISECONDS.sleep((long) (2*radiusWorkspace/(Constants.MAX_COMPOSITE_SPEED*Constants.MAX_ALLOWED_SPEED_RATIO)));
@@ -242,15 +311,36 @@ public class QR24 {
 				System.out.println("[QR24] While waiting for the robot to reach pose, the thread has been interrupted.");
 			}
 			
-			controller.send("CM_NEXTVALUE",clientTS);
-			String responseTrack = controller.response(clientTS);
-			if(responseTrack==null) {
-				System.out.println("Error, check connection to Tracking System!");
-				return false;
+			double[] trackingData;
+			if(markerStream != null) {
+				//the marker of this robot is polled in the background, take the first sample measured after the robot has settled
+				if(!markerStream.awaitSample(System.nanoTime(), Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS, trackingSample)) {
+					System.out.println("Error, check connection to Tracking System!");
+					return false;
+				}
+				trackingData = trackingSample.getPose();
+			} else if(trackingStream != null) {
+				//the stream polls in the background, take the first sample measured after the robot has settled
+				if(!trackingStream.awaitSample(System.nanoTime(), Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS, trackingSample)) {
+					System.out.println("Error, check connection to Tracking System!");
+					return false;
+				}
+				trackingData = trackingSample.getPose();
+			} else {
+				String responseTrack = await(controller.request("CM_NEXTVALUE",clientTS));
+				if(responseTrack==null) {
+					System.out.println("Error, check connection to Tracking System!");
+					return false;
+				}
+				
+				try {
+					trackingData = Constants.convertPoseDataToDoubleArray(responseTrack, 2);
+				} catch (IllegalArgumentException e) {
+					System.out.println("[QR24] " + e.getMessage());
+					return false;
+				}
 			}
 			
-			double[] trackingData = Constants.convertPoseDataToDoubleArray(responseTrack, 2);
-			
 			//create RealMatrix out off the data that was send by tracking-system
 			double[][] trackingData2DArray = {{trackingData[0],trackingData[1],trackingData[2],trackingData[3]},{trackingData[4],trackingData[5],trackingData[6],trackingData[7]},{trackingData[8],trackingData[9],trackingData[10],trackingData[11]},{0,0,0,1}};
 			RealMatrix m = new Array2DRowRealMatrix (trackingData2DArray);
@@ -267,11 +357,118 @@ public class QR24 {
 		// TODO: Sicherstellen, dass der Roboter diese Pose anfahren kann.
 		// TODO: Falls erwnscht eine Zeitspanne einbauen.
 		String neutralPosition = "MoveMinChangeRowWiseStatus 1.0 0.0 0.0 1000.0 0.0 1.0 0.0 100.0 0.0 0.0 1.0 1000.0 noflip lefty";
-		controller.send(neutralPosition, clientRob);
-		System.out.println("[QR24] NeutralPosition: "+controller.response(clientRob));
+		System.out.println("[QR24] NeutralPosition: "+await(controller.request(neutralPosition, clientRob)));
 		return true;
 	}
 	
+	/**
+	 * Measures the robot pose repeatedly until the robot moves slower than the sampling speed
+	 * close to the target, and interpolates the marker's pose at the time of the last robot pose.
+	 * The robot doesn't report when it measured its pose, so the midpoint of the round trip is used.
+	 * @param clientRob the robot client which is currently being measured on
+	 * @param target the pose the robot has been commanded to
+	 * @param index index of the pose in poseMatrices, it is replaced by the measured robot pose
+	 * @param markerStream the stream of the robot's marker or null
+	 * @param trackingStream the stream of the tracking-system, used if markerStream is null
+	 * @return the pose of the marker or null if the robot or the tracking-system failed
+	 * @throws InterruptedException when the Thread has been interrupted
+	 */
+	private RealMatrix measureWhileMoving(TCPClient clientRob, RealMatrix target, int index, MarkerStream markerStream, TrackingStream trackingStream) throws InterruptedException {
+		double[] robPose = new double[PoseParser.POSE_VALUES];
+		double[] previousPose = new double[PoseParser.POSE_VALUES];
+		long previousNanos = 0;
+		long capturedNanos;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Constants.RESPONSE_TIMEOUT_MS);
+		for(int readings = 0; ; readings++) {
+			TimedResponse reading = null;
+			try {
+				reading = controller.requestTimed(PoseQuery.COMMAND, clientRob).get(Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+				PoseParser.parse(reading.getResponse(), robPose);
+			} catch (ExecutionException | TimeoutException | CancellationException e) {
+				System.out.println("Error, check connection to Robot!");
+				return null;
+			} catch (IllegalArgumentException e) {
+				System.out.println("[QR24] " + e.getMessage());
+				return null;
+			}
+			capturedNanos = reading.getMidpointNanos();
+			if(readings > 0 && distance(robPose, target) <= samplingDistance) {
+				double speed = distance(robPose, previousPose) / ((capturedNanos - previousNanos) / 1e9);
+				if(speed <= samplingSpeed) break;
+			}
+			if(System.nanoTime() - deadline > 0) {
+				System.out.println("[QR24] The robot didn't slow down close to the target within " + Constants.RESPONSE_TIMEOUT_MS + "ms.");
+				return null;
+			}
+			double[] swap = previousPose;
+			previousPose = robPose;
+			robPose = swap;
+			previousNanos = capturedNanos;
+		}
+		
+		//the tracking sample has to be captured after the robot pose, so there is one on either side of it
+		boolean sampled = markerStream != null
+				? markerStream.awaitSample(capturedNanos, Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS, trackingSample)
+				: trackingStream.awaitSample(capturedNanos, Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS, trackingSample);
+		SampleRing ring = markerStream != null ? markerStream.getRing() : trackingStream.getRing();
+		if(!sampled || !ring.interpolate(capturedNanos, trackingSample)) {
+			System.out.println("Error, check connection to Tracking System!");
+			return null;
+		}
+		poseMatrices.set(index, toHomMatrix(robPose));
+		return toHomMatrix(trackingSample.getPose());
+	}
+	
+	/**
+	 * Returns the distance between the positions of a row-wise 3x4 pose and a homogeneous matrix.
+	 * @param pose row-wise 3x4 pose
+	 * @param matrix 4x4 homogeneous matrix
+	 * @return distance in mm
+	 */
+	private static double distance(double[] pose, RealMatrix matrix) {
+		double dx = pose[3] - matrix.getEntry(0, 3);
+		double dy = pose[7] - matrix.getEntry(1, 3);
+		double dz = pose[11] - matrix.getEntry(2, 3);
+		return Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+	
+	/**
+	 * Returns the distance between the positions of two row-wise 3x4 poses.
+	 * @param pose row-wise 3x4 pose
+	 * @param other row-wise 3x4 pose
+	 * @return distance in mm
+	 */
+	private static double distance(double[] pose, double[] other) {
+		double dx = pose[3] - other[3];
+		double dy = pose[7] - other[7];
+		double dz = pose[11] - other[11];
+		return Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+	
+	/**
+	 * Creates a 4x4 homogeneous matrix from a row-wise 3x4 pose.
+	 * @param pose row-wise 3x4 pose
+	 * @return the homogeneous matrix
+	 */
+	private static RealMatrix toHomMatrix(double[] pose) {
+		double[][] data = {{pose[0],pose[1],pose[2],pose[3]},{pose[4],pose[5],pose[6],pose[7]},{pose[8],pose[9],pose[10],pose[11]},{0,0,0,1}};
+		return new Array2DRowRealMatrix(data);
+	}
+	
+	/**
+	 * Waits for the response of a request to a server.
+	 * @param response the future of the request
+	 * @return the response or null if the server didn't answer in time or the connection has been closed
+	 * @throws InterruptedException when the Thread has been interrupted
+	 */
+	private String await(CompletableFuture<String> response) throws InterruptedException {
+		try {
+			return response.get(Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException | TimeoutException | CancellationException e) {
+			return null;
+		}
+	}
+	
 	/**
 	 * This Method takes the measured matrices set M and N and creates a linear equation system to solve
 	 * for matrices X and Y
@@ -176,7 +176,7 @@ public class testDataGenerator {
 	 * @param matrix RealMatrix as homogeneous 4x4 matrix
 	 * @return matrix with noise on rotational part
 	 */
-	private RealMatrix rotationalNoise(RealMatrix matrix) {
+	public RealMatrix rotationalNoise(RealMatrix matrix) {
 		//creating phases for noise for each possible rotation in the range of 1 degree
 		double x = ((0.5-random.nextDouble())*2)*Math.PI/360;
 		double y = ((0.5-random.nextDouble())*2)*Math.PI/360;
@@ -196,7 +196,7 @@ public class testDataGenerator {
 	 * @param matrix RealMatrix as homogeneous 4x4 matrix
 	 * @return matrix with noise on translational part
 	 */
-	private RealMatrix translationalNoise(RealMatrix matrix) {
+	public RealMatrix translationalNoise(RealMatrix matrix) {
 		//adding a value between +-1 to the translational part of the matrix
 		matrix.setEntry(0, 3, matrix.getEntry(0, 3) + 2*(0.5-random.nextDouble()));
 		matrix.setEntry(1, 3, matrix.getEntry(1, 3) + 2*(0.5-random.nextDouble()));
@@ -212,7 +212,7 @@ public class testDataGenerator {
 	 * creating X-matrix by combining rotational and translational part 
 	 * @return RealMatrix X-matrix as homogeneous 4x4 matrix
 	 */
-	private RealMatrix createXMatrix() {
+	public RealMatrix createXMatrix() {
 		//rotational part (coordinate system of end-effector and marker have the same orientation relative to robot coordinate system)
 		//therefore no rotation needed
 		RealMatrix rotMat = new Array2DRowRealMatrix(new double[][] {{1,0,0},{0,1,0},{0,0,1}});
@@ -231,7 +231,7 @@ public class testDataGenerator {
 	 * creating Y-matrix by combining rotational and translational part
 	 * @return RealMatrix Y-matrix as homogeneous 4x4 matrix
 	 */
-	private RealMatrix createYMatrix() {
+	public RealMatrix createYMatrix() {
 		// tracking-system's orientation is a matrix relative to robot coordinate system, and it's values are fixed
 		RealMatrix rotMat = trackingOrientation;
 		// tracking-system's position are relative to robot coordinate system, and they are fixed values
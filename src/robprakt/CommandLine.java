@@ -0,0 +1,500 @@
+package robprakt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import robCalibration.QR24;
+import robprakt.cutting.CuttingLogic;
+import robprakt.cutting.IndexedMesh;
+import robprakt.cutting.Mesh;
+import robprakt.cutting.STLParser;
+import robprakt.cutting.TransformCoords;
+import robprakt.graphics.Controller;
+import robprakt.network.HealthMonitor;
+import robprakt.network.TCPClient;
+
+/**
+ * CommandLine runs the setup and the cutting process without the GUI, e.g. on a cell controller
+ * without a display. The steps given as arguments are executed in order within one run, since
+ * the calibration and the loaded model only live as long as the process:
+ *
+ * 	[--config file] connect calibrate cutter calibrate holder load model.stl plan cut
+ *
+ * The config file is a properties file with the addresses of the servers:
+ * r1.ip, r1.port, r2.ip, r2.port, ts.ip, ts.port, calibration.measurements and reconnect.
+ * Servers without an address aren't connected. ts.marker.r1 and ts.marker.r2 name the markers mounted
+ * on the robots, both default to the first marker listed by the tracking-system. With calibration.sampleWhileMoving=true the marker is
+ * polled in the background while calibrating and measured as soon as the robot moves slower than
+ * calibration.samplingSpeed (mm/s) within calibration.samplingDistance (mm) of the target.
+ * With cutting.pipelined=true the points of each straight line are streamed to the cutter-robot
+ * and only the last one is confirmed, which needs a robot server queuing the targets.
+ *
+ * Besides the messages of the other classes the progress is printed as lines of the form
+ * "progress step=connect target=R1 status=ok ...", which can be filtered by their first word.
+ */
+public class CommandLine {
+
+	/**
+	 * first word of the progress lines
+	 */
+	public static final String PROGRESS = "progress";
+
+	/**
+	 * exit code of a run in which every step succeeded
+	 */
+	public static final int EXIT_OK = 0;
+
+	/**
+	 * exit code of a run in which a step failed
+	 */
+	public static final int EXIT_FAILED = 1;
+
+	/**
+	 * exit code of a run with invalid arguments
+	 */
+	public static final int EXIT_USAGE = 2;
+
+	/**
+	 * default port of the robot servers
+	 */
+	public static final int DEFAULT_ROBOT_PORT = 5005;
+
+	/**
+	 * default port of the tracking-system server
+	 */
+	public static final int DEFAULT_TRACKING_PORT = 5000;
+
+	/**
+	 * usage printed for invalid arguments
+	 */
+	private static final String USAGE = "Usage: Main [--config <file>] <step>...\n"
+			+ "Steps, executed in the given order:\n"
+			+ "  connect                  connect to the configured servers and log in\n"
+			+ "  calibrate cutter|holder  calibrate a robot with the tracking-system (QR24),\n"
+			+ "                           the first calibration takes the cutter-robot's pose as workspace midpoint\n"
+			+ "  load <stl-file>          load the model to cut\n"
+			+ "  plan                     report the cuts of the loaded model\n"
+			+ "  cut                      cut the loaded model, both robots have to be calibrated\n"
+			+ "Without arguments the GUI is started.";
+
+	/**
+	 * the controller holding the clients
+	 */
+	private final Controller controller = new Controller(null);
+
+	/**
+	 * calibration of the robots
+	 */
+	private final QR24 calibration = new QR24(controller);
+
+	/**
+	 * the configuration
+	 */
+	private final Properties config;
+
+	/**
+	 * the loaded model, null if none has been loaded
+	 */
+	private Mesh mesh;
+
+	/**
+	 * Constructor of the command line
+	 * @param config the configuration
+	 */
+	public CommandLine(Properties config) {
+		this.config = config;
+	}
+
+	/**
+	 * Runs the steps given as arguments.
+	 * @param args the program start-arguments
+	 * @return the exit code
+	 */
+	public static int run(String[] args) {
+		Properties config = new Properties();
+		List<String[]> steps = new ArrayList<String[]>();
+		try {
+			for(int i = 0; i < args.length; i++) {
+				switch(args[i]) {
+				case "--config":
+					Path file = Paths.get(argument(args, ++i, "--config"));
+					try (InputStream in = Files.newInputStream(file)) {
+						config.load(in);
+					}
+					break;
+				case "--help":
+					System.out.println(USAGE);
+					return EXIT_OK;
+				case "connect":
+				case "plan":
+				case "cut":
+					steps.add(new String[] {args[i]});
+					break;
+				case "calibrate":
+					String robot = argument(args, ++i, "calibrate");
+					if(!robot.equals("cutter") && !robot.equals("holder")) throw new IllegalArgumentException(
+							"[CommandLine] calibrate needs \"cutter\" or \"holder\", not \"" + robot + "\".");
+					steps.add(new String[] {"calibrate", robot});
+					break;
+				case "load":
+					steps.add(new String[] {"load", argument(args, ++i, "load")});
+					break;
+				default:
+					throw new IllegalArgumentException("[CommandLine] Unknown step \"" + args[i] + "\".");
+				}
+			}
+		} catch (IllegalArgumentException | IOException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			return EXIT_USAGE;
+		}
+		CommandLine commandLine = new CommandLine(config);
+		try {
+			for(String[] step : steps) {
+				long start = System.nanoTime();
+				progress(step[0], "status=started" + (step.length > 1 ? " arg=" + quote(step[1]) : ""));
+				boolean ok;
+				try {
+					ok = commandLine.execute(step);
+				} catch (Exception e) {
+					System.err.println("[CommandLine] " + step[0] + " failed: " + e);
+					ok = false;
+				}
+				progress(step[0], "status=" + (ok ? "ok" : "failed") + " elapsed_ms=" + (System.nanoTime() - start) / 1000000);
+				if(!ok) return EXIT_FAILED;
+			}
+			return EXIT_OK;
+		} finally {
+			commandLine.disconnect();
+		}
+	}
+
+	/**
+	 * Executes a step.
+	 * @param step name of the step followed by its argument
+	 * @return true if the step succeeded
+	 * @throws Exception if the step failed
+	 */
+	private boolean execute(String[] step) throws Exception {
+		switch(step[0]) {
+		case "connect":
+			return connect();
+		case "calibrate":
+			return calibrate(step[1].equals("cutter"));
+		case "load":
+			return load(Paths.get(step[1]));
+		case "plan":
+			return plan();
+		case "cut":
+			return cut();
+		default:
+			throw new IllegalArgumentException("[CommandLine] Unknown step \"" + step[0] + "\".");
+		}
+	}
+
+	/**
+	 * Connects to the configured servers and does the same handshakes as the connection menu.
+	 * @return true if all configured servers have been connected and at least one is configured
+	 */
+	private boolean connect() {
+		boolean ok = true;
+		int connected = 0;
+		if(config.getProperty("r1.ip") != null) {
+			ok &= connectRobot(controller.getClientR1(), "r1");
+			connected++;
+		}
+		if(config.getProperty("r2.ip") != null) {
+			ok &= connectRobot(controller.getClientR2(), "r2");
+			connected++;
+		}
+		if(config.getProperty("ts.ip") != null) {
+			ok &= connectTrackingSystem();
+			connected++;
+		}
+		if(connected == 0) System.err.println("[CommandLine] No server configured, set r1.ip, r2.ip or ts.ip in the config file.");
+		return ok && connected > 0;
+	}
+
+	/**
+	 * Connects to a robot and logs in.
+	 * @param client the client of the robot
+	 * @param key prefix of the robot's properties
+	 * @return true if the robot answered the login
+	 */
+	private boolean connectRobot(TCPClient client, String key) {
+		String ip = config.getProperty(key + ".ip");
+		int port = port(key, DEFAULT_ROBOT_PORT);
+		if(!controller.connect(ip, port, client)) {
+			progress("connect", "target=" + client.getName() + " status=failed ip=" + ip + " port=" + port);
+			return false;
+		}
+		try {
+			System.out.println(await(controller.request("Hello Robot", client, Constants.RESPONSE_TIMEOUT_MS)));
+		} catch (ExecutionException e) {
+			progress("connect", "target=" + client.getName() + " status=failed ip=" + ip + " port=" + port);
+			return false;
+		}
+		if(isReconnectEnabled()) controller.enableReconnect(client, "Hello Robot");
+		progress("connect", "target=" + client.getName() + " status=ok ip=" + ip + " port=" + port);
+		return true;
+	}
+
+	/**
+	 * Connects to the tracking-system, lists its markers and selects the first one.
+	 * @return true if the tracking-system answered the set up
+	 */
+	private boolean connectTrackingSystem() {
+		TCPClient client = controller.getClientTS();
+		String ip = config.getProperty("ts.ip");
+		int port = port("ts", DEFAULT_TRACKING_PORT);
+		if(!controller.connect(ip, port, client)) {
+			progress("connect", "target=" + client.getName() + " status=failed ip=" + ip + " port=" + port);
+			return false;
+		}
+		String[] trackers;
+		try {
+			await(controller.request("CM_GETSYSTEM", client, Constants.RESPONSE_TIMEOUT_MS));
+			trackers = await(controller.request("CM_GETTRACKERS", client, Constants.RESPONSE_TIMEOUT_MS)).trim().split(";");
+			controller.setTrackers(trackers);
+			if(!assignMarker(controller.getClientR1(), "ts.marker.r1", trackers) || !assignMarker(controller.getClientR2(), "ts.marker.r2", trackers)) {
+				progress("connect", "target=" + client.getName() + " status=failed ip=" + ip + " port=" + port);
+				return false;
+			}
+			await(controller.request(trackers[0], client, Constants.RESPONSE_TIMEOUT_MS));
+			await(controller.request("FORMAT_MATRIXROWWISE", client, Constants.RESPONSE_TIMEOUT_MS));
+		} catch (ExecutionException e) {
+			progress("connect", "target=" + client.getName() + " status=failed ip=" + ip + " port=" + port);
+			return false;
+		}
+		// the selected marker and the format are restored after reconnecting
+		if(isReconnectEnabled()) controller.enableReconnect(client, trackers[0], "FORMAT_MATRIXROWWISE");
+		progress("connect", "target=" + client.getName() + " status=ok ip=" + ip + " port=" + port
+				+ " trackers=" + quote(String.join(";", trackers))
+				+ " r1=" + quote(controller.getMarker(controller.getClientR1())) + " r2=" + quote(controller.getMarker(controller.getClientR2())));
+		return true;
+	}
+
+	/**
+	 * Assigns the configured marker to a robot.
+	 * @param robot client of the robot
+	 * @param key property naming the marker
+	 * @param trackers markers listed by the tracking-system
+	 * @return true if no marker is configured or the tracking-system lists it
+	 */
+	private boolean assignMarker(TCPClient robot, String key, String[] trackers) {
+		String marker = config.getProperty(key);
+		if(marker == null) return true;
+		marker = marker.trim();
+		if(!Arrays.asList(trackers).contains(marker)) {
+			System.err.println("[CommandLine] The tracking-system doesn't list marker " + marker + " of " + key + ".");
+			return false;
+		}
+		controller.setMarker(robot, marker);
+		return true;
+	}
+
+	/**
+	 * Calibrates a robot with the tracking-system.
+	 * If no workspace midpoint has been set, the current pose of the cutter-robot is taken, like the
+	 * midpoint button of the calibration menu does.
+	 * @param cutter true for the cutter-robot, false for the holder-robot
+	 * @return true if the calibration succeeded
+	 * @throws Exception if the calibration failed
+	 */
+	private boolean calibrate(boolean cutter) throws Exception {
+		String measurements = config.getProperty("calibration.measurements");
+		if(measurements != null && !calibration.setNumberOfMeasurements(Integer.parseInt(measurements.trim()))) return false;
+		if(TransformCoords.initialWorkspacePositionRelCutterRobot == null) {
+			double[] pose = Constants.convertPoseDataToDoubleArray(
+					await(controller.request("GetPositionHomRowWise", controller.getClientR1(), Constants.RESPONSE_TIMEOUT_MS)), 0);
+			calibration.setLocalWorkspaceMidpoint(pose);
+			calibration.setInitialMarkerPose(pose);
+			TransformCoords.initialWorkspacePositionRelCutterRobot = new ArrayRealVector(new double[] {pose[3], pose[3+4], pose[3+4+4]});
+			progress("calibrate", "midpoint=" + pose[3] + "," + pose[3+4] + "," + pose[3+4+4]);
+		}
+		TCPClient client = cutter ? controller.getClientR1() : controller.getClientR2();
+		boolean sampleWhileMoving = Boolean.parseBoolean(config.getProperty("calibration.sampleWhileMoving", "false").trim());
+		calibration.setSampleWhileMoving(sampleWhileMoving,
+				Double.parseDouble(config.getProperty("calibration.samplingSpeed", String.valueOf(QR24.DEFAULT_SAMPLING_SPEED)).trim()),
+				Double.parseDouble(config.getProperty("calibration.samplingDistance", String.valueOf(QR24.DEFAULT_SAMPLING_DISTANCE)).trim()));
+		if(sampleWhileMoving) controller.startTracking(client);
+		try {
+			if(!calibration.measuring(client)) return false;
+		} finally {
+			if(sampleWhileMoving) controller.stopTracking();
+		}
+		progress("calibrate", "target=" + client.getName() + " measuring=done");
+		RealMatrix[] XY = calibration.calibrate();
+		calibration.printTable(XY[0]);
+		calibration.printTable(XY[1]);
+		if(cutter) {
+			TransformCoords.cutterRobotToTrackingSystem = XY[1];
+		} else {
+			TransformCoords.holderRobotToTrackingSystem = XY[1];
+		}
+		return true;
+	}
+
+	/**
+	 * Loads the model to cut.
+	 * @param file the STL file
+	 * @return true if the file contains triangles
+	 * @throws IOException if the file can't be read
+	 */
+	private boolean load(Path file) throws IOException {
+		mesh = STLParser.parseSTLMesh(file);
+		progress("load", "file=" + quote(file.toString()) + " triangles=" + mesh.size());
+		return !mesh.isEmpty();
+	}
+
+	/**
+	 * Reports the cuts of the loaded model, if it is a closed convex solid and if the robots are ready to cut it.
+	 * @return true if a model has been loaded
+	 */
+	private boolean plan() {
+		if(mesh == null) {
+			System.err.println("[CommandLine] No model loaded, use load before plan.");
+			return false;
+		}
+		boolean calibrated = TransformCoords.cutterRobotToTrackingSystem != null && TransformCoords.holderRobotToTrackingSystem != null
+				&& TransformCoords.initialWorkspacePositionRelCutterRobot != null;
+		// only convex models can be cut by planar cuts
+		IndexedMesh solid = IndexedMesh.weld(mesh, IndexedMesh.DEFAULT_TOLERANCE);
+		// every triangle is cut from both sides
+		progress("plan", "triangles=" + mesh.size() + " cuts=" + 2 * mesh.size()
+				+ " min_z=" + mesh.getMinZ() + " max_z=" + mesh.getMaxZ() + " vertices=" + solid.getVertexCount()
+				+ " closed=" + solid.isClosed() + " convex=" + solid.isConvex(IndexedMesh.DEFAULT_TOLERANCE)
+				+ " calibrated=" + calibrated);
+		return true;
+	}
+
+	/**
+	 * Cuts the loaded model, motion commands wait while a robot is unresponsive.
+	 * @return true if all triangles have been cut
+	 * @throws Exception if a robot couldn't move
+	 */
+	private boolean cut() throws Exception {
+		if(mesh == null) {
+			System.err.println("[CommandLine] No model loaded, use load before cut.");
+			return false;
+		}
+		TCPClient clientR1 = controller.getClientR1();
+		TCPClient clientR2 = controller.getClientR2();
+		HealthMonitor healthMonitor = controller.startHealthMonitor();
+		if(!healthMonitor.getHealth(clientR1).getStatus().isUsable() || !healthMonitor.getHealth(clientR2).getStatus().isUsable()) {
+			System.err.println("[CommandLine] At least one connection to a robot server is not healthy.");
+			return false;
+		}
+		healthMonitor.addListener((client, previous, health) ->
+			progress("health", "target=" + client.getName() + " status=" + health.getStatus() + " previous=" + previous));
+		CuttingLogic cuttingLogic = new CuttingLogic(clientR1, clientR2, mesh);
+		cuttingLogic.setHealthMonitor(healthMonitor);
+		cuttingLogic.setPipelined(Boolean.parseBoolean(config.getProperty("cutting.pipelined", "false").trim()));
+		cuttingLogic.setProgressListener((index, count) ->
+			progress("cut", "triangle=" + (index + 1) + " of=" + count));
+		return cuttingLogic.cut();
+	}
+
+	/**
+	 * Ends the sessions of the connected servers.
+	 */
+	private void disconnect() {
+		controller.stopHealthMonitor();
+		quit(controller.getClientR1(), "Quit");
+		quit(controller.getClientR2(), "Quit");
+		quit(controller.getClientTS(), "CM_QUITCONNECTION");
+	}
+
+	/**
+	 * Ends the session of a server if it is connected.
+	 * @param client the client
+	 * @param command the command ending the session
+	 */
+	private void quit(TCPClient client, String command) {
+		if(client.isClosed()) return;
+		try {
+			await(controller.request(command, client, Constants.RESPONSE_TIMEOUT_MS));
+		} catch (ExecutionException e) {
+			// the server may close the connection without answering
+		}
+		client.closeConnection();
+	}
+
+	/**
+	 * Checks if lost connections are reopened, which is the default.
+	 * @return the property reconnect
+	 */
+	private boolean isReconnectEnabled() {
+		return Boolean.parseBoolean(config.getProperty("reconnect", "true").trim());
+	}
+
+	/**
+	 * Returns the configured port of a server.
+	 * @param key prefix of the server's properties
+	 * @param defaultPort the port if none is configured
+	 * @return the port
+	 */
+	private int port(String key, int defaultPort) {
+		String port = config.getProperty(key + ".port");
+		return port == null ? defaultPort : Integer.parseInt(port.trim());
+	}
+
+	/**
+	 * Waits for a response.
+	 * @param response the future of the response, which has a timeout already
+	 * @return the response
+	 * @throws ExecutionException if the connection is lost or the server didn't answer in time
+	 */
+	private static String await(CompletableFuture<String> response) throws ExecutionException {
+		try {
+			return response.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ExecutionException(e);
+		}
+	}
+
+	/**
+	 * Returns the argument of an option or step.
+	 * @param args the program start-arguments
+	 * @param index index of the argument
+	 * @param name name of the option or step
+	 * @return the argument
+	 * @throws IllegalArgumentException if the argument is missing
+	 */
+	private static String argument(String[] args, int index, String name) {
+		if(index >= args.length) throw new IllegalArgumentException("[CommandLine] " + name + " needs an argument.");
+		return args[index];
+	}
+
+	/**
+	 * Prints a progress line.
+	 * @param step name of the step
+	 * @param fields the fields as key=value separated by spaces
+	 */
+	private static void progress(String step, String fields) {
+		System.out.println(PROGRESS + " step=" + step + " " + fields);
+	}
+
+	/**
+	 * Quotes a value containing spaces for a progress line.
+	 * @param value the value
+	 * @return the value, in quotes if it contains spaces or quotes
+	 */
+	private static String quote(String value) {
+		if(value.indexOf(' ') < 0 && value.indexOf('"') < 0) return value;
+		return "\"" + value.replace("\"", "\\\"") + "\"";
+	}
+}
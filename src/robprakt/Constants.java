@@ -1,5 +1,7 @@
 package robprakt;
 
+import robprakt.network.PoseParser;
+
 public class Constants {
 	
 	/**
@@ -32,19 +34,31 @@ public class Constants {
 	 */
 	final static public double[] DEFAULT_LOCAL_WORKSPACE_MIDPOINT = {0.0,200.0,40.0};
 	
+	/**
+	 * time in milliseconds to wait for the response of a server
+	 */
+	final static public long RESPONSE_TIMEOUT_MS = 10000;
+	
+	/**
+	 * converts the 12 row-wise values of a pose sent by a server into a new double array
+	 * @param data the response of the server
+	 * @param index number of tokens in front of the pose data
+	 * @return the 12 values of the pose
+	 * @throws IllegalArgumentException if data doesn't contain a valid pose
+	 */
 	public static final double[] convertPoseDataToDoubleArray(String data, int index) {
-		String[] dataStringArray = data.split(" ");
-		double[] dataDoubleArray = new double[12];
-		try
-	    {
-			for(int counter = index; counter < dataDoubleArray.length + index; counter++) {
-				dataDoubleArray[counter-index] = Double.parseDouble(dataStringArray[counter]);
-			}
-	    }
-	    catch (NumberFormatException nfe)
-	    {
-	      System.out.println("[Constants] An error occured while converting an String array to double array.");
-	    }
-		return dataDoubleArray;
+		return convertPoseDataToDoubleArray(data, index, new double[PoseParser.POSE_VALUES]);
+	}
+	
+	/**
+	 * converts the 12 row-wise values of a pose sent by a server into the given double array
+	 * @param data the response of the server
+	 * @param index number of tokens in front of the pose data
+	 * @param pose array for the 12 values of the pose
+	 * @return the given array
+	 * @throws IllegalArgumentException if data doesn't contain a valid pose
+	 */
+	public static final double[] convertPoseDataToDoubleArray(String data, int index, double[] pose) {
+		return PoseParser.parse(data, index, pose);
 	}
 }
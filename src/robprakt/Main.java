@@ -7,8 +7,18 @@ import robprakt.graphics.MainFrame;
  */
 public class Main {	
 	
+	/**
+	 * the main entrance method, starts the GUI or runs the given steps headless
+	 * @param args the program start-arguments, see CommandLine
+	 */
 	public static void main(String[] args) {
-		new MainFrame("StyroCutRobot Setup Manager");
+		if(args.length == 0) {
+			new MainFrame("StyroCutRobot Setup Manager");
+			return;
+		}
+		// no display is needed and AWT isn't initialized
+		System.setProperty("java.awt.headless", "true");
+		System.exit(CommandLine.run(args));
 	}
 	
 	
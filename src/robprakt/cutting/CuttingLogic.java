@@ -1,6 +1,7 @@
 package robprakt.cutting;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.math3.geometry.euclidean.threed.Line;
 import org.apache.commons.math3.geometry.euclidean.threed.Plane;
@@ -11,6 +12,7 @@ import org.apache.commons.math3.linear.ArrayRealVector;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 
+import robprakt.network.HealthMonitor;
 import robprakt.network.TCPClient;
 
 /**
@@ -20,6 +22,19 @@ import robprakt.network.TCPClient;
  */
 public class CuttingLogic {
 	
+	/**
+	 * Listener notified about the progress of the cutting process.
+	 */
+	public interface ProgressListener {
+		
+		/**
+		 * Called after both cuts of a triangle have been executed.
+		 * @param index number of the triangle, starting at 0
+		 * @param count number of triangles
+		 */
+		void triangleCut(int index, int count);
+	}
+	
 	/**
 	 * transformCoords used for transforming between different coordinate systems
 	 */
@@ -83,13 +98,18 @@ public class CuttingLogic {
 	 * The number of triangles determines the number of cuts to completely cut the object.
 	 */
 	//TODO: Die Triangle mssen nach dem laden hier gespeichert werden.
-	private ArrayList<Triangle> triangles;
+	private List<Triangle> triangles;
 	
 	/**
 	 * Accuracy defines a tolerance for different calculations.
 	 */
 	private final double accuracy = Math.pow(10, -5);
 	
+	/**
+	 * progressListener notified after each triangle, null if none
+	 */
+	private ProgressListener progressListener;
+	
 	
 	//===========================
 	//==========METHODS==========
@@ -103,6 +123,27 @@ public class CuttingLogic {
 	 * @param clientR2 client for connecting to holder-robot
 	 */
 	public CuttingLogic(TCPClient clientR1, TCPClient clientR2, ArrayList<Triangle> sortedTriangleList) {
+		this(clientR1, clientR2, (List<Triangle>) sortedTriangleList);
+	}
+	
+	/**
+	 * Constructor of CuttingLogic creates TransformCoords and RobotMovement instances.
+	 * The triangles are created one at a time while cutting, so the model stays in its compact form.
+	 * @param clientR1 client for connecting to cutter-robot
+	 * @param clientR2 client for connecting to holder-robot
+	 * @param mesh triangles of the model, sorted like STLParser.parseSTLMesh does
+	 */
+	public CuttingLogic(TCPClient clientR1, TCPClient clientR2, Mesh mesh) {
+		this(clientR1, clientR2, mesh.asList());
+	}
+	
+	/**
+	 * Constructor of CuttingLogic creates TransformCoords and RobotMovement instances.
+	 * @param clientR1 client for connecting to cutter-robot
+	 * @param clientR2 client for connecting to holder-robot
+	 * @param sortedTriangleList triangles of the model
+	 */
+	private CuttingLogic(TCPClient clientR1, TCPClient clientR2, List<Triangle> sortedTriangleList) {
 		this.transformCoords = new TransformCoords(clientR1, clientR2);
 		this.robotMovement = new RobotMovement(transformCoords);
 		this.triangles = sortedTriangleList;
@@ -156,15 +197,30 @@ public class CuttingLogic {
 	
 	/**
 	 * Starts the cutting process.
+	 * The process stops at the first move a robot doesn't complete.
+	 * @return true if all triangles have been cut, false if a robot didn't reach its pose
 	 * @throws Exception if the holder robot couldn't move into default pose.
 	 */
-	public void cut() throws Exception {
+	public boolean cut() throws Exception {
 		//set cutting status to active
 		CuttingLogic.isCuttingActive = true;
-		
+		try {
+			return cutTriangles();
+		} finally {
+			//set cutting status to not active
+			CuttingLogic.isCuttingActive = false;
+		}
+	}
+	
+	/**
+	 * Moves the robots into initial position and cuts all triangles.
+	 * @return true if all triangles have been cut, false if a robot didn't reach its pose
+	 * @throws Exception if the holder robot couldn't move into default pose.
+	 */
+	private boolean cutTriangles() throws Exception {
 		//move robots into initial position
 		moveHolderRobotToDefaultPose();
-		robotMovement.moveToNeutralPosition();
+		if(!robotMovement.moveToNeutralPosition()) return stopped(0);
 		
 		//gradually calculate and execute cuts for each triangle
 		for(int cnt = 0; cnt < this.triangles.size(); cnt++) {
@@ -198,7 +254,7 @@ public class CuttingLogic {
 			RealMatrix poseMatrixHolderRobot = calcPoseHolderRobot(rotationMatrix);
 			
 			//move holder-robot into cutting position
-			robotMovement.moveMinChange(poseMatrixHolderRobot, this.transformCoords.getClientR2());
+			if(!robotMovement.moveMinChange(poseMatrixHolderRobot, this.transformCoords.getClientR2())) return stopped(cnt);
 			
 			//rotate Triangle so you can calculate with rotated vertices and rotated normal
 			Triangle rotTr = rotateTriangle(tr,rotationMatrix);
@@ -211,20 +267,20 @@ public class CuttingLogic {
 			//
 
 			//move to start position (maybe it is necessary to first move to auxiliary position)
-			moveToStartPosition(vertices[0]);
+			if(!moveToStartPosition(vertices[0])) return stopped(cnt);
 			
 			//cut through styro-foam
 			//start- to mid-point
-			robotMovement.moveCutterP2P(vertices[0], vertices[1]);
+			if(!robotMovement.moveCutterP2P(vertices[0], vertices[1])) return stopped(cnt);
 			//mid- to end-point
-			robotMovement.moveCutterP2P(vertices[1], vertices[2]);
+			if(!robotMovement.moveCutterP2P(vertices[1], vertices[2])) return stopped(cnt);
 			
 			//
 			//PREPARE FOR NEXT CUT
 			//
 			
 			//move to neutral position (potentially over auxiliary-position) 
-			this.moveToNeutralPosition(vertices[2]);
+			if(!this.moveToNeutralPosition(vertices[2])) return stopped(cnt);
 			
 			//
 			//PREPARE FOR SECOND CUT
@@ -242,7 +298,7 @@ public class CuttingLogic {
 			poseMatrixHolderRobot = calcPoseHolderRobot(rotationMatrix);
 			
 			//move holder-robot into cutting position
-			robotMovement.moveMinChange(poseMatrixHolderRobot, this.transformCoords.getClientR2());
+			if(!robotMovement.moveMinChange(poseMatrixHolderRobot, this.transformCoords.getClientR2())) return stopped(cnt);
 			
 			//rotate Triangle so you can calculate with rotated vertices and rotated normal
 			rotTr = rotateTriangle(tr,rotationMatrix);
@@ -255,27 +311,61 @@ public class CuttingLogic {
 			//
 			
 			//move to start position (maybe it is necessary to first move to auxiliary position)
-			moveToStartPosition(vertices[0]);
+			if(!moveToStartPosition(vertices[0])) return stopped(cnt);
 			
 			//move from Neutral-Position to startPoint of the trajectory
-			robotMovement.moveCutterP2P(this.neutralPositionCutterRobot,vertices[0]);
+			if(!robotMovement.moveCutterP2P(this.neutralPositionCutterRobot,vertices[0])) return stopped(cnt);
 			
 			//cut through styro-foam
 			//start- to mid-point
-			robotMovement.moveCutterP2P(vertices[0], vertices[1]);
+			if(!robotMovement.moveCutterP2P(vertices[0], vertices[1])) return stopped(cnt);
 			//mid- to end-point
-			robotMovement.moveCutterP2P(vertices[1], vertices[2]);
+			if(!robotMovement.moveCutterP2P(vertices[1], vertices[2])) return stopped(cnt);
 			
 			//
 			//PREPARE FOR NEXT CUT
 			//
 			
 			//move to neutral position (potentially over auxiliary-position) 
-			this.moveToNeutralPosition(vertices[2]);
+			if(!this.moveToNeutralPosition(vertices[2])) return stopped(cnt);
+			
+			if(progressListener != null) progressListener.triangleCut(cnt, this.triangles.size());
 		}
-		
-		//set cutting status to not active
-		CuttingLogic.isCuttingActive = false;
+		return true;
+	}
+	
+	/**
+	 * Reports that the cutting process stopped, as a robot didn't reach its pose.
+	 * @param cnt index of the triangle being cut
+	 * @return false
+	 */
+	private boolean stopped(int cnt) {
+		System.out.println("[CuttingLogic] Cutting stopped at triangle " + (cnt + 1) + " of " + this.triangles.size() + ", a robot didn't reach its pose.");
+		return false;
+	}
+	
+	/**
+	 * Setter for the health monitor, the robots' motion commands wait while a robot is unresponsive or disconnected.
+	 * @param healthMonitor monitor watching the clients of the robots, null to send motion commands right away
+	 */
+	public void setHealthMonitor(HealthMonitor healthMonitor) {
+		transformCoords.setHealthMonitor(healthMonitor);
+	}
+	
+	/**
+	 * Setter for the pipelined mode of the cutter-robot's trajectories, see RobotMovement.setPipelined.
+	 * @param pipelined true to stream the points of a straight line, false to confirm every point
+	 */
+	public void setPipelined(boolean pipelined) {
+		robotMovement.setPipelined(pipelined);
+	}
+	
+	/**
+	 * Setter for the progress listener, e.g. for reporting the progress of a headless run.
+	 * @param progressListener listener notified after each triangle, null for none
+	 */
+	public void setProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
 	}
 	
 	/**
@@ -363,17 +453,18 @@ public class CuttingLogic {
 	 * Handles whether to move straight to the start position,
 	 * or first to auxiliary and then to start position
 	 * @param startPosition
+	 * @return true if the cutter-robot reached the start position
 	 */
-	private void moveToStartPosition(RealVector startPosition) {
+	private boolean moveToStartPosition(RealVector startPosition) {
 		if(!(Math.abs(startPosition.getEntry(1) - this.radiusStyroCylinder) <= 1.0d)) {
 			//if startPosition is on the left or top line
 			//move from Neutral-Position to startPoint of the trajectory in a straight line
-			robotMovement.moveCutterP2P(this.neutralPositionCutterRobot,startPosition);
+			return robotMovement.moveCutterP2P(this.neutralPositionCutterRobot,startPosition);
 		} else {
 			//if startPosition is on the right line
 			//move from Neutral-Position to Auxiliary-Position then to startPoint of the trajectory in two straight lines
-			robotMovement.moveToAuxiliaryPosition();
-			robotMovement.moveCutterP2P(this.auxiliaryPositionCutterRobot,startPosition);
+			return robotMovement.moveToAuxiliaryPosition()
+					&& robotMovement.moveCutterP2P(this.auxiliaryPositionCutterRobot,startPosition);
 		}
 	}
 	
@@ -502,17 +593,18 @@ public class CuttingLogic {
 	 * or first to auxiliary and then neutral position.
 	 * Gets called after each cut through the styro-foam.
 	 * @param lastPosition
+	 * @return true if the cutter-robot reached the neutral position
 	 */
-	private void moveToNeutralPosition(RealVector lastPosition) {
+	private boolean moveToNeutralPosition(RealVector lastPosition) {
 		//move to neutral position
 		//check if last position of cutter robot was on left or right side
 		if(lastPosition.getEntry(1) < 0) {
 			//y-component is negative --> move straight to neutral
-			robotMovement.moveToNeutralPosition();
+			return robotMovement.moveToNeutralPosition();
 		} else {
 			//y-component is positive --> move to auxiliary and then to neutral position
-			robotMovement.moveToAuxiliaryPosition();
-			robotMovement.moveToNeutralPosition();
+			return robotMovement.moveToAuxiliaryPosition()
+					&& robotMovement.moveToNeutralPosition();
 		}
 	}
 }
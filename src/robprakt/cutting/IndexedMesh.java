@@ -0,0 +1,626 @@
+package robprakt.cutting;
+
+import java.util.Arrays;
+
+/**
+ * IndexedMesh stores every distinct vertex of a model once and the triangles as indices into
+ * the vertices, together with the neighbor of each triangle across each of its edges.
+ *
+ * STL files repeat a vertex for every facet using it, so the vertices of a Mesh are welded:
+ * vertices closer than the tolerance become one. The vertices are found with an open-addressing
+ * hash over their coordinates quantized to cells twice the tolerance wide, so only the eight
+ * cells around a vertex have to be searched. Triangles which collapse by welding are dropped.
+ *
+ * The adjacency tells if the model is closed and makes topology-aware checks like isConvex cheap.
+ */
+public final class IndexedMesh {
+
+	/**
+	 * default distance in millimeters within which vertices are welded
+	 */
+	public static final double DEFAULT_TOLERANCE = 1e-3;
+
+	/**
+	 * neighbor of an edge which belongs to one triangle only
+	 */
+	public static final int BOUNDARY = -1;
+
+	/**
+	 * neighbor of an edge which belongs to more than two triangles
+	 */
+	public static final int NON_MANIFOLD = -2;
+
+	/**
+	 * coordinates of the distinct vertices
+	 */
+	private final float[] x, y, z;
+
+	/**
+	 * number of distinct vertices
+	 */
+	private final int vertexCount;
+
+	/**
+	 * indices of the vertices, three per triangle
+	 */
+	private final int[] triangles;
+
+	/**
+	 * number of triangles
+	 */
+	private final int triangleCount;
+
+	/**
+	 * triangle across each edge, three per triangle, edge i runs from corner i to corner i+1
+	 */
+	private final int[] neighbors;
+
+	/**
+	 * number of triangles dropped because welding collapsed them
+	 */
+	private final int droppedTriangles;
+
+	/**
+	 * number of edges belonging to one triangle only
+	 */
+	private final int boundaryEdges;
+
+	/**
+	 * number of edges belonging to more than two triangles
+	 */
+	private final int nonManifoldEdges;
+
+	/**
+	 * Constructor of the mesh, use weld or a Builder
+	 * @param builder the builder holding the welded vertices and the triangles
+	 */
+	private IndexedMesh(Builder builder) {
+		this.vertexCount = builder.vertexCount;
+		this.x = Arrays.copyOf(builder.x, vertexCount);
+		this.y = Arrays.copyOf(builder.y, vertexCount);
+		this.z = Arrays.copyOf(builder.z, vertexCount);
+		this.triangleCount = builder.triangleCount;
+		this.triangles = Arrays.copyOf(builder.triangles, 3 * triangleCount);
+		this.droppedTriangles = builder.droppedTriangles;
+		this.neighbors = new int[3 * triangleCount];
+		int[] counts = connect(triangles, triangleCount, neighbors);
+		this.boundaryEdges = counts[0];
+		this.nonManifoldEdges = counts[1];
+	}
+
+	/**
+	 * Welds the vertices of a mesh.
+	 * @param mesh the mesh
+	 * @param tolerance distance within which vertices become one, e.g. DEFAULT_TOLERANCE
+	 * @return the indexed mesh with the triangles in the order of the mesh, without the collapsed ones
+	 */
+	public static IndexedMesh weld(Mesh mesh, double tolerance) {
+		// a closed mesh has about half as many vertices as triangles
+		Builder builder = new Builder(tolerance, mesh.size() / 2 + 16, mesh.size());
+		for(int t = 0; t < mesh.size(); t++) {
+			builder.addTriangle(
+					mesh.getX(t, 0), mesh.getY(t, 0), mesh.getZ(t, 0),
+					mesh.getX(t, 1), mesh.getY(t, 1), mesh.getZ(t, 1),
+					mesh.getX(t, 2), mesh.getY(t, 2), mesh.getZ(t, 2));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Getter for the number of distinct vertices
+	 * @return number of vertices
+	 */
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	/**
+	 * Getter for the number of triangles
+	 * @return number of triangles
+	 */
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+
+	/**
+	 * Getter for the number of dropped triangles
+	 * @return number of triangles which collapsed to a line or a point by welding
+	 */
+	public int getDroppedTriangleCount() {
+		return droppedTriangles;
+	}
+
+	/**
+	 * Getter for the number of boundary edges
+	 * @return number of edges belonging to one triangle only
+	 */
+	public int getBoundaryEdgeCount() {
+		return boundaryEdges;
+	}
+
+	/**
+	 * Getter for the number of non-manifold edges
+	 * @return number of edges belonging to more than two triangles
+	 */
+	public int getNonManifoldEdgeCount() {
+		return nonManifoldEdges;
+	}
+
+	/**
+	 * Checks if the mesh is closed, e.g. for cutting it out of a block
+	 * @return true if every edge belongs to exactly two triangles
+	 */
+	public boolean isClosed() {
+		return boundaryEdges == 0 && nonManifoldEdges == 0;
+	}
+
+	/**
+	 * Returns the x-coordinate of a vertex.
+	 * @param vertex index of the vertex
+	 * @return the coordinate
+	 */
+	public float getX(int vertex) {
+		checkVertex(vertex);
+		return x[vertex];
+	}
+
+	/**
+	 * Returns the y-coordinate of a vertex.
+	 * @param vertex index of the vertex
+	 * @return the coordinate
+	 */
+	public float getY(int vertex) {
+		checkVertex(vertex);
+		return y[vertex];
+	}
+
+	/**
+	 * Returns the z-coordinate of a vertex.
+	 * @param vertex index of the vertex
+	 * @return the coordinate
+	 */
+	public float getZ(int vertex) {
+		checkVertex(vertex);
+		return z[vertex];
+	}
+
+	/**
+	 * Returns the vertex at a corner of a triangle.
+	 * @param triangle index of the triangle
+	 * @param corner 0, 1 or 2
+	 * @return index of the vertex
+	 */
+	public int getVertex(int triangle, int corner) {
+		return triangles[halfEdge(triangle, corner)];
+	}
+
+	/**
+	 * Returns the triangle across an edge of a triangle.
+	 * @param triangle index of the triangle
+	 * @param edge 0, 1 or 2, edge i runs from corner i to corner i+1
+	 * @return index of the neighbor, BOUNDARY or NON_MANIFOLD
+	 */
+	public int getNeighbor(int triangle, int edge) {
+		return neighbors[halfEdge(triangle, edge)];
+	}
+
+	/**
+	 * Checks if the mesh is closed and convex. Every pair of neighboring triangles is checked,
+	 * the vertex of a neighbor not on the shared edge must lie on the same side of the triangle
+	 * for all pairs. For a closed and connected mesh this local check means the whole mesh is convex.
+	 * The triangles have to be oriented consistently, either all outwards or all inwards.
+	 * @param tolerance distance in millimeters a vertex may lie on the wrong side of a triangle
+	 * @return true if the mesh is closed and no edge is concave
+	 */
+	public boolean isConvex(double tolerance) {
+		if(!isClosed()) return false;
+		double front = Double.NEGATIVE_INFINITY;
+		double back = Double.POSITIVE_INFINITY;
+		for(int t = 0; t < triangleCount; t++) {
+			int a = triangles[3 * t], b = triangles[3 * t + 1], c = triangles[3 * t + 2];
+			//normal = AB*BC like Triangle
+			double e1x = (double) x[b] - x[a], e1y = (double) y[b] - y[a], e1z = (double) z[b] - z[a];
+			double e2x = (double) x[c] - x[b], e2y = (double) y[c] - y[b], e2z = (double) z[c] - z[b];
+			double nx = e1y * e2z - e1z * e2y;
+			double ny = e1z * e2x - e1x * e2z;
+			double nz = e1x * e2y - e1y * e2x;
+			double norm = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if(norm == 0) continue;
+			for(int edge = 0; edge < 3; edge++) {
+				int neighbor = neighbors[3 * t + edge];
+				// the edges are checked from both sides, once is enough
+				if(neighbor < t) continue;
+				int opposite = opposite(neighbor, triangles[3 * t + edge], triangles[3 * t + (edge + 1) % 3]);
+				double distance = (nx * (x[opposite] - x[a]) + ny * (y[opposite] - y[a]) + nz * (z[opposite] - z[a])) / norm;
+				front = Math.max(front, distance);
+				back = Math.min(back, distance);
+				if(front > tolerance && back < -tolerance) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the vertex of a triangle which isn't on an edge.
+	 * @param triangle index of the triangle
+	 * @param u first vertex of the edge
+	 * @param v second vertex of the edge
+	 * @return index of the third vertex
+	 */
+	private int opposite(int triangle, int u, int v) {
+		for(int corner = 0; corner < 3; corner++) {
+			int w = triangles[3 * triangle + corner];
+			if(w != u && w != v) return w;
+		}
+		throw new IllegalStateException("[IndexedMesh] Triangle " + triangle + " has no vertex besides its edge.");
+	}
+
+	/**
+	 * Finds the neighbors across the edges of all triangles with an open-addressing map of the edges.
+	 * @param triangles indices of the vertices, three per triangle
+	 * @param triangleCount number of triangles
+	 * @param neighbors receives the neighbor across each edge
+	 * @return number of boundary edges and number of non-manifold edges
+	 */
+	private static int[] connect(int[] triangles, int triangleCount, int[] neighbors) {
+		int halfEdges = 3 * triangleCount;
+		int capacity = Integer.highestOneBit(Math.max(2 * halfEdges, 16) - 1) << 1;
+		long[] keys = new long[capacity];
+		// first half-edge of each edge, -1 if the slot is free
+		int[] first = new int[capacity];
+		// number of half-edges of each edge
+		int[] uses = new int[capacity];
+		Arrays.fill(first, -1);
+		Arrays.fill(neighbors, BOUNDARY);
+		for(int h = 0; h < halfEdges; h++) {
+			int u = triangles[h];
+			int v = triangles[h - h % 3 + (h + 1) % 3];
+			long key = ((long) Math.min(u, v) << 32) | Math.max(u, v);
+			int slot = (int) mix(key) & (capacity - 1);
+			while(first[slot] >= 0 && keys[slot] != key) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			if(first[slot] < 0) {
+				keys[slot] = key;
+				first[slot] = h;
+			} else if(uses[slot] == 1) {
+				int other = first[slot];
+				neighbors[h] = other / 3;
+				neighbors[other] = h / 3;
+			}
+			uses[slot]++;
+		}
+		int boundary = 0;
+		int nonManifold = 0;
+		for(int slot = 0; slot < capacity; slot++) {
+			if(first[slot] < 0) continue;
+			if(uses[slot] == 1) boundary++;
+			else if(uses[slot] > 2) nonManifold++;
+		}
+		if(nonManifold > 0) {
+			// the half-edges of edges with more than two triangles have no single neighbor
+			for(int h = 0; h < halfEdges; h++) {
+				int u = triangles[h];
+				int v = triangles[h - h % 3 + (h + 1) % 3];
+				long key = ((long) Math.min(u, v) << 32) | Math.max(u, v);
+				int slot = (int) mix(key) & (capacity - 1);
+				while(keys[slot] != key) {
+					slot = (slot + 1) & (capacity - 1);
+				}
+				if(uses[slot] > 2) neighbors[h] = NON_MANIFOLD;
+			}
+		}
+		return new int[] {boundary, nonManifold};
+	}
+
+	/**
+	 * Spreads the bits of a key over the hash.
+	 * @param key the key
+	 * @return the hash
+	 */
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	/**
+	 * Returns the index of a half-edge.
+	 * @param triangle index of the triangle
+	 * @param corner 0, 1 or 2
+	 * @return the index
+	 */
+	private int halfEdge(int triangle, int corner) {
+		if(triangle < 0 || triangle >= triangleCount) throw new IndexOutOfBoundsException("[IndexedMesh] Triangle " + triangle + " of " + triangleCount + ".");
+		if(corner < 0 || corner > 2) throw new IndexOutOfBoundsException("[IndexedMesh] Corner " + corner + " of a triangle.");
+		return 3 * triangle + corner;
+	}
+
+	/**
+	 * Checks the index of a vertex.
+	 * @param vertex index of the vertex
+	 */
+	private void checkVertex(int vertex) {
+		if(vertex < 0 || vertex >= vertexCount) throw new IndexOutOfBoundsException("[IndexedMesh] Vertex " + vertex + " of " + vertexCount + ".");
+	}
+
+	/**
+	 * Builder welding the vertices of triangles while they are added.
+	 */
+	public static final class Builder {
+
+		/**
+		 * distance within which vertices become one
+		 */
+		private final double tolerance;
+
+		/**
+		 * width of the cells of the hash
+		 */
+		private final double cellSize;
+
+		/**
+		 * coordinates of the distinct vertices
+		 */
+		private float[] x, y, z;
+
+		/**
+		 * next vertex in the same cell, -1 for the last one
+		 */
+		private int[] next;
+
+		/**
+		 * number of distinct vertices
+		 */
+		private int vertexCount;
+
+		/**
+		 * quantized coordinates of the cells of the hash
+		 */
+		private int[] cellX, cellY, cellZ;
+
+		/**
+		 * first vertex of each cell of the hash, -1 if the slot is free
+		 */
+		private int[] cellHead;
+
+		/**
+		 * number of used slots of the hash
+		 */
+		private int cells;
+
+		/**
+		 * indices of the vertices, three per triangle
+		 */
+		private int[] triangles;
+
+		/**
+		 * number of triangles
+		 */
+		private int triangleCount;
+
+		/**
+		 * number of triangles dropped because welding collapsed them
+		 */
+		private int droppedTriangles;
+
+		/**
+		 * Constructor of the builder
+		 * @param tolerance distance in millimeters within which vertices become one, greater than 0
+		 */
+		public Builder(double tolerance) {
+			this(tolerance, 1024, 1024);
+		}
+
+		/**
+		 * Constructor of the builder
+		 * @param tolerance distance in millimeters within which vertices become one, greater than 0
+		 * @param expectedVertices number of distinct vertices the builder has room for before growing
+		 * @param expectedTriangles number of triangles the builder has room for before growing
+		 */
+		public Builder(double tolerance, int expectedVertices, int expectedTriangles) {
+			if(!(tolerance > 0)) throw new IllegalArgumentException("[IndexedMesh] Tolerance has to be greater than 0.");
+			this.tolerance = tolerance;
+			// a vertex within the tolerance is in the same cell or the adjacent one on the nearer side
+			this.cellSize = 2 * tolerance;
+			int vertices = Math.max(expectedVertices, 16);
+			x = new float[vertices];
+			y = new float[vertices];
+			z = new float[vertices];
+			next = new int[vertices];
+			triangles = new int[3 * Math.max(expectedTriangles, 16)];
+			int capacity = Integer.highestOneBit(2 * vertices - 1) << 1;
+			cellX = new int[capacity];
+			cellY = new int[capacity];
+			cellZ = new int[capacity];
+			cellHead = new int[capacity];
+			Arrays.fill(cellHead, -1);
+		}
+
+		/**
+		 * Adds a vertex, or finds one within the tolerance.
+		 * @param px x-coordinate
+		 * @param py y-coordinate
+		 * @param pz z-coordinate
+		 * @return index of the vertex
+		 */
+		public int addVertex(float px, float py, float pz) {
+			double qx = px / cellSize, qy = py / cellSize, qz = pz / cellSize;
+			int ix = (int) Math.floor(qx), iy = (int) Math.floor(qy), iz = (int) Math.floor(qz);
+			// the adjacent cell on the side the vertex is closer to
+			int dx = qx - ix < 0.5 ? -1 : 1, dy = qy - iy < 0.5 ? -1 : 1, dz = qz - iz < 0.5 ? -1 : 1;
+			double limit = tolerance * tolerance;
+			for(int i = 0; i < 8; i++) {
+				int slot = find(ix + ((i & 1) != 0 ? dx : 0), iy + ((i & 2) != 0 ? dy : 0), iz + ((i & 4) != 0 ? dz : 0));
+				for(int v = slot < 0 ? -1 : cellHead[slot]; v >= 0; v = next[v]) {
+					double ex = x[v] - px, ey = y[v] - py, ez = z[v] - pz;
+					if(ex * ex + ey * ey + ez * ez <= limit) return v;
+				}
+			}
+			if(vertexCount == x.length) growVertices();
+			int v = vertexCount++;
+			x[v] = px;
+			y[v] = py;
+			z[v] = pz;
+			int slot = insert(ix, iy, iz);
+			next[v] = cellHead[slot];
+			cellHead[slot] = v;
+			return v;
+		}
+
+		/**
+		 * Adds a triangle, welding its vertices. A triangle which collapses is dropped.
+		 * @param ax x-coordinate of the first vertex
+		 * @param ay y-coordinate of the first vertex
+		 * @param az z-coordinate of the first vertex
+		 * @param bx x-coordinate of the second vertex
+		 * @param by y-coordinate of the second vertex
+		 * @param bz z-coordinate of the second vertex
+		 * @param cx x-coordinate of the third vertex
+		 * @param cy y-coordinate of the third vertex
+		 * @param cz z-coordinate of the third vertex
+		 * @return index of the triangle, -1 if it has been dropped
+		 */
+		public int addTriangle(float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz) {
+			return addTriangle(addVertex(ax, ay, az), addVertex(bx, by, bz), addVertex(cx, cy, cz));
+		}
+
+		/**
+		 * Adds a triangle of vertices added already. A triangle which collapses is dropped.
+		 * @param a index of the first vertex
+		 * @param b index of the second vertex
+		 * @param c index of the third vertex
+		 * @return index of the triangle, -1 if it has been dropped
+		 */
+		public int addTriangle(int a, int b, int c) {
+			if(a < 0 || b < 0 || c < 0 || a >= vertexCount || b >= vertexCount || c >= vertexCount) throw new IndexOutOfBoundsException(
+					"[IndexedMesh] Vertex of triangle " + a + ", " + b + ", " + c + " of " + vertexCount + ".");
+			if(a == b || b == c || c == a) {
+				droppedTriangles++;
+				return -1;
+			}
+			if(3 * triangleCount + 3 > triangles.length) growTriangles();
+			triangles[3 * triangleCount] = a;
+			triangles[3 * triangleCount + 1] = b;
+			triangles[3 * triangleCount + 2] = c;
+			return triangleCount++;
+		}
+
+		/**
+		 * Creates the mesh and finds the neighbors of the triangles.
+		 * @return the mesh
+		 */
+		public IndexedMesh build() {
+			return new IndexedMesh(this);
+		}
+
+		/**
+		 * Finds the slot of a cell.
+		 * @param ix quantized x-coordinate
+		 * @param iy quantized y-coordinate
+		 * @param iz quantized z-coordinate
+		 * @return the slot or -1 if the cell is empty
+		 */
+		private int find(int ix, int iy, int iz) {
+			int mask = cellHead.length - 1;
+			for(int slot = hash(ix, iy, iz) & mask; cellHead[slot] >= 0; slot = (slot + 1) & mask) {
+				if(cellX[slot] == ix && cellY[slot] == iy && cellZ[slot] == iz) return slot;
+			}
+			return -1;
+		}
+
+		/**
+		 * Finds or creates the slot of a cell.
+		 * @param ix quantized x-coordinate
+		 * @param iy quantized y-coordinate
+		 * @param iz quantized z-coordinate
+		 * @return the slot
+		 */
+		private int insert(int ix, int iy, int iz) {
+			int slot = find(ix, iy, iz);
+			if(slot >= 0) return slot;
+			if(2 * (cells + 1) > cellHead.length) rehash();
+			int mask = cellHead.length - 1;
+			slot = hash(ix, iy, iz) & mask;
+			while(cellHead[slot] >= 0) {
+				slot = (slot + 1) & mask;
+			}
+			cellX[slot] = ix;
+			cellY[slot] = iy;
+			cellZ[slot] = iz;
+			cells++;
+			// the caller links the vertex into the cell
+			return slot;
+		}
+
+		/**
+		 * Doubles the slots of the hash.
+		 */
+		private void rehash() {
+			int[] oldX = cellX, oldY = cellY, oldZ = cellZ, oldHead = cellHead;
+			int capacity = 2 * oldHead.length;
+			cellX = new int[capacity];
+			cellY = new int[capacity];
+			cellZ = new int[capacity];
+			cellHead = new int[capacity];
+			Arrays.fill(cellHead, -1);
+			int mask = capacity - 1;
+			for(int old = 0; old < oldHead.length; old++) {
+				if(oldHead[old] < 0) continue;
+				int slot = hash(oldX[old], oldY[old], oldZ[old]) & mask;
+				while(cellHead[slot] >= 0) {
+					slot = (slot + 1) & mask;
+				}
+				cellX[slot] = oldX[old];
+				cellY[slot] = oldY[old];
+				cellZ[slot] = oldZ[old];
+				cellHead[slot] = oldHead[old];
+			}
+		}
+
+		/**
+		 * Makes room for more vertices.
+		 */
+		private void growVertices() {
+			int capacity = grown(x.length);
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+			z = Arrays.copyOf(z, capacity);
+			next = Arrays.copyOf(next, capacity);
+		}
+
+		/**
+		 * Makes room for more triangles, the array always holds whole triangles.
+		 */
+		private void growTriangles() {
+			int capacity = Math.min(grown(triangles.length / 3), (Integer.MAX_VALUE - 8) / 3);
+			if(capacity <= triangles.length / 3) throw new OutOfMemoryError("[IndexedMesh] Too many triangles.");
+			triangles = Arrays.copyOf(triangles, 3 * capacity);
+		}
+
+		/**
+		 * Returns the grown length of an array.
+		 * @param length current length
+		 * @return new length
+		 */
+		private static int grown(int length) {
+			int capacity = length + (length >> 1) + 3;
+			if(capacity < 0 || capacity > Integer.MAX_VALUE - 8) capacity = Integer.MAX_VALUE - 8;
+			if(capacity <= length) throw new OutOfMemoryError("[IndexedMesh] Too many vertices or triangles.");
+			return capacity;
+		}
+
+		/**
+		 * Hashes the quantized coordinates of a cell.
+		 * @param ix quantized x-coordinate
+		 * @param iy quantized y-coordinate
+		 * @param iz quantized z-coordinate
+		 * @return the hash
+		 */
+		private static int hash(int ix, int iy, int iz) {
+			long h = ix * 0x9E3779B97F4A7C15L + iy * 0xC2B2AE3D27D4EB4FL + iz * 0x165667B19E3779F9L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+}
@@ -0,0 +1,404 @@
+package robprakt.cutting;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Mesh holds the triangles of a model in primitive arrays, one array per coordinate
+ * (structure of arrays), instead of one Triangle with four Vector3D per facet.
+ * A triangle takes 48 bytes: three vertices and the normal as floats, which is the precision of STL files.
+ *
+ * Triangles are addressed by their index, the vertices of a triangle by their corner 0, 1 or 2.
+ * Code which needs Triangle objects can use asList, which creates them on access only.
+ */
+public final class Mesh {
+
+	/**
+	 * default number of triangles the arrays have room for
+	 */
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * coordinates of the vertices, three consecutive entries per triangle
+	 */
+	private float[] x, y, z;
+
+	/**
+	 * coordinates of the normals, one entry per triangle
+	 */
+	private float[] nx, ny, nz;
+
+	/**
+	 * number of triangles
+	 */
+	private int size;
+
+	/**
+	 * Constructor of an empty mesh
+	 */
+	public Mesh() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor of an empty mesh
+	 * @param capacity number of triangles the mesh has room for before growing
+	 */
+	public Mesh(int capacity) {
+		if(capacity < 0) throw new IllegalArgumentException("[Mesh] Capacity has to be at least 0.");
+		x = new float[3 * capacity];
+		y = new float[3 * capacity];
+		z = new float[3 * capacity];
+		nx = new float[capacity];
+		ny = new float[capacity];
+		nz = new float[capacity];
+	}
+
+	/**
+	 * Adds a triangle, its normal is calculated like Triangle does.
+	 * @param ax x-coordinate of the first vertex
+	 * @param ay y-coordinate of the first vertex
+	 * @param az z-coordinate of the first vertex
+	 * @param bx x-coordinate of the second vertex
+	 * @param by y-coordinate of the second vertex
+	 * @param bz z-coordinate of the second vertex
+	 * @param cx x-coordinate of the third vertex
+	 * @param cy y-coordinate of the third vertex
+	 * @param cz z-coordinate of the third vertex
+	 * @return index of the triangle
+	 * @throws IllegalArgumentException if the triangle has no area
+	 */
+	public int add(float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz) {
+		if(size == nx.length) grow();
+		int v = 3 * size;
+		x[v] = ax; y[v] = ay; z[v] = az;
+		x[v + 1] = bx; y[v + 1] = by; z[v + 1] = bz;
+		x[v + 2] = cx; y[v + 2] = cy; z[v + 2] = cz;
+		//normal = AB*BC, assuming the vertices are given for negative orientation
+		double e1x = (double) bx - ax, e1y = (double) by - ay, e1z = (double) bz - az;
+		double e2x = (double) cx - bx, e2y = (double) cy - by, e2z = (double) cz - bz;
+		double px = e1y * e2z - e1z * e2y;
+		double py = e1z * e2x - e1x * e2z;
+		double pz = e1x * e2y - e1y * e2x;
+		double norm = Math.sqrt(px * px + py * py + pz * pz);
+		if(norm == 0) throw new IllegalArgumentException("[Mesh] Triangle " + size + " has no area, so it has no normal.");
+		nx[size] = (float) (px / norm);
+		ny[size] = (float) (py / norm);
+		nz[size] = (float) (pz / norm);
+		return size++;
+	}
+
+	/**
+	 * Adds a triangle, its normal is calculated like Triangle does.
+	 * @param a first vertex
+	 * @param b second vertex
+	 * @param c third vertex
+	 * @return index of the triangle
+	 */
+	public int add(Vector3D a, Vector3D b, Vector3D c) {
+		return add((float) a.getX(), (float) a.getY(), (float) a.getZ(),
+				(float) b.getX(), (float) b.getY(), (float) b.getZ(),
+				(float) c.getX(), (float) c.getY(), (float) c.getZ());
+	}
+
+	/**
+	 * Adds the triangles of a list.
+	 * @param triangles the triangles
+	 * @return a mesh containing the triangles in the order of the list
+	 */
+	public static Mesh of(List<Triangle> triangles) {
+		Mesh mesh = new Mesh(triangles.size());
+		for(Triangle t : triangles) {
+			Vector3D[] v = t.getVertices();
+			mesh.add(v[0], v[1], v[2]);
+		}
+		return mesh;
+	}
+
+	/**
+	 * Appends the triangles of another mesh, e.g. of a part of a file parsed in parallel.
+	 * @param other the mesh whose triangles are added after the ones of this mesh in their order
+	 */
+	void append(Mesh other) {
+		if((long) size + other.size > (Integer.MAX_VALUE - 8) / 3) throw new OutOfMemoryError("[Mesh] Too many triangles.");
+		if(size + other.size > nx.length) resize(size + other.size);
+		System.arraycopy(other.x, 0, x, 3 * size, 3 * other.size);
+		System.arraycopy(other.y, 0, y, 3 * size, 3 * other.size);
+		System.arraycopy(other.z, 0, z, 3 * size, 3 * other.size);
+		System.arraycopy(other.nx, 0, nx, size, other.size);
+		System.arraycopy(other.ny, 0, ny, size, other.size);
+		System.arraycopy(other.nz, 0, nz, size, other.size);
+		size += other.size;
+	}
+
+	/**
+	 * Getter for the number of triangles
+	 * @return number of triangles
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Checks if the mesh is empty
+	 * @return true if there are no triangles
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns the x-coordinate of a vertex.
+	 * @param triangle index of the triangle
+	 * @param corner 0, 1 or 2
+	 * @return the coordinate
+	 */
+	public float getX(int triangle, int corner) {
+		return x[vertex(triangle, corner)];
+	}
+
+	/**
+	 * Returns the y-coordinate of a vertex.
+	 * @param triangle index of the triangle
+	 * @param corner 0, 1 or 2
+	 * @return the coordinate
+	 */
+	public float getY(int triangle, int corner) {
+		return y[vertex(triangle, corner)];
+	}
+
+	/**
+	 * Returns the z-coordinate of a vertex.
+	 * @param triangle index of the triangle
+	 * @param corner 0, 1 or 2
+	 * @return the coordinate
+	 */
+	public float getZ(int triangle, int corner) {
+		return z[vertex(triangle, corner)];
+	}
+
+	/**
+	 * Returns the x-component of the normal of a triangle.
+	 * @param triangle index of the triangle
+	 * @return the component of the unit normal
+	 */
+	public float getNormalX(int triangle) {
+		checkIndex(triangle);
+		return nx[triangle];
+	}
+
+	/**
+	 * Returns the y-component of the normal of a triangle.
+	 * @param triangle index of the triangle
+	 * @return the component of the unit normal
+	 */
+	public float getNormalY(int triangle) {
+		checkIndex(triangle);
+		return ny[triangle];
+	}
+
+	/**
+	 * Returns the z-component of the normal of a triangle.
+	 * @param triangle index of the triangle
+	 * @return the component of the unit normal
+	 */
+	public float getNormalZ(int triangle) {
+		checkIndex(triangle);
+		return nz[triangle];
+	}
+
+	/**
+	 * Returns the highest z-coordinate of the vertices of a triangle.
+	 * @param triangle index of the triangle
+	 * @return the highest z-coordinate
+	 */
+	public float getMaxZ(int triangle) {
+		int v = vertex(triangle, 0);
+		return Math.max(z[v], Math.max(z[v + 1], z[v + 2]));
+	}
+
+	/**
+	 * Returns the lowest z-coordinate of all vertices.
+	 * @return the lowest z-coordinate, positive infinity if the mesh is empty
+	 */
+	public float getMinZ() {
+		float min = Float.POSITIVE_INFINITY;
+		for(int v = 0; v < 3 * size; v++) {
+			if(z[v] < min) min = z[v];
+		}
+		return min;
+	}
+
+	/**
+	 * Returns the highest z-coordinate of all vertices.
+	 * @return the highest z-coordinate, negative infinity if the mesh is empty
+	 */
+	public float getMaxZ() {
+		float max = Float.NEGATIVE_INFINITY;
+		for(int v = 0; v < 3 * size; v++) {
+			if(z[v] > max) max = z[v];
+		}
+		return max;
+	}
+
+	/**
+	 * Creates a Triangle of the mesh, e.g. for the cutting logic.
+	 * @param triangle index of the triangle
+	 * @return a new triangle with the vertices and the normal of the mesh
+	 */
+	public Triangle getTriangle(int triangle) {
+		int v = vertex(triangle, 0);
+		return new Triangle(new Vector3D[] {
+				new Vector3D(x[v], y[v], z[v]),
+				new Vector3D(x[v + 1], y[v + 1], z[v + 1]),
+				new Vector3D(x[v + 2], y[v + 2], z[v + 2])},
+				new Vector3D(nx[triangle], ny[triangle], nz[triangle]));
+	}
+
+	/**
+	 * Returns a read-only view of the mesh as list of triangles.
+	 * The triangles are created on every access and not kept, so the view takes no memory of its own.
+	 * @return the view
+	 */
+	public List<Triangle> asList() {
+		return new TriangleList();
+	}
+
+	/**
+	 * Sorts the triangles by the highest z-coordinate of their vertices, highest first.
+	 * Triangles with the same height keep their order.
+	 */
+	public void sortByMaxZDescending() {
+		// the key in the upper half orders by height, the index in the lower half keeps equal heights in order
+		long[] keys = new long[size];
+		for(int i = 0; i < size; i++) {
+			keys[i] = ((long) sortableBits(-getMaxZ(i)) << 32) | i;
+		}
+		Arrays.sort(keys);
+		int[] order = new int[size];
+		for(int i = 0; i < size; i++) {
+			order[i] = (int) keys[i];
+		}
+		x = permuteVertices(x, order);
+		y = permuteVertices(y, order);
+		z = permuteVertices(z, order);
+		nx = permute(nx, order);
+		ny = permute(ny, order);
+		nz = permute(nz, order);
+	}
+
+	/**
+	 * Removes all triangles, the arrays are kept for new ones.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Shrinks the arrays to the number of triangles.
+	 */
+	public void trimToSize() {
+		resize(size);
+	}
+
+	/**
+	 * Returns a float as int which orders like the float.
+	 * @param value the float, not NaN
+	 * @return int ordering like the float, 0 and -0 are the same
+	 */
+	private static int sortableBits(float value) {
+		int bits = Float.floatToIntBits(value + 0.0f);
+		return bits ^ ((bits >> 31) & 0x7fffffff);
+	}
+
+	/**
+	 * Reorders the vertices of the triangles.
+	 * @param values three values per triangle
+	 * @param order index of the triangle for each new position
+	 * @return the reordered values
+	 */
+	private float[] permuteVertices(float[] values, int[] order) {
+		float[] result = new float[values.length];
+		for(int i = 0; i < size; i++) {
+			System.arraycopy(values, 3 * order[i], result, 3 * i, 3);
+		}
+		return result;
+	}
+
+	/**
+	 * Reorders the values of the triangles.
+	 * @param values one value per triangle
+	 * @param order index of the triangle for each new position
+	 * @return the reordered values
+	 */
+	private float[] permute(float[] values, int[] order) {
+		float[] result = new float[values.length];
+		for(int i = 0; i < size; i++) {
+			result[i] = values[order[i]];
+		}
+		return result;
+	}
+
+	/**
+	 * Makes room for more triangles.
+	 */
+	private void grow() {
+		int capacity = nx.length + (nx.length >> 1) + 1;
+		if(capacity < 0 || 3L * capacity > Integer.MAX_VALUE - 8) capacity = (Integer.MAX_VALUE - 8) / 3;
+		if(capacity <= size) throw new OutOfMemoryError("[Mesh] Too many triangles.");
+		resize(capacity);
+	}
+
+	/**
+	 * Changes the room of the arrays.
+	 * @param capacity number of triangles
+	 */
+	private void resize(int capacity) {
+		x = Arrays.copyOf(x, 3 * capacity);
+		y = Arrays.copyOf(y, 3 * capacity);
+		z = Arrays.copyOf(z, 3 * capacity);
+		nx = Arrays.copyOf(nx, capacity);
+		ny = Arrays.copyOf(ny, capacity);
+		nz = Arrays.copyOf(nz, capacity);
+	}
+
+	/**
+	 * Returns the index of a vertex in the coordinate arrays.
+	 * @param triangle index of the triangle
+	 * @param corner 0, 1 or 2
+	 * @return the index
+	 */
+	private int vertex(int triangle, int corner) {
+		checkIndex(triangle);
+		if(corner < 0 || corner > 2) throw new IndexOutOfBoundsException("[Mesh] Corner " + corner + " of a triangle.");
+		return 3 * triangle + corner;
+	}
+
+	/**
+	 * Checks the index of a triangle.
+	 * @param triangle index of the triangle
+	 */
+	private void checkIndex(int triangle) {
+		if(triangle < 0 || triangle >= size) throw new IndexOutOfBoundsException("[Mesh] Triangle " + triangle + " of " + size + ".");
+	}
+
+	/**
+	 * Read-only list creating the triangles of the mesh on access.
+	 */
+	private final class TriangleList extends AbstractList<Triangle> implements RandomAccess {
+
+		@Override
+		public Triangle get(int index) {
+			return getTriangle(index);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+}
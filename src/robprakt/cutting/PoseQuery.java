@@ -0,0 +1,297 @@
+package robprakt.cutting;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import robprakt.Constants;
+import robprakt.network.PoseParser;
+import robprakt.network.TCPClient;
+
+/**
+ * PoseQuery measures the pose of a robot's end-effector with GetPositionHomRowWise and merges
+ * queries which are made at about the same time into a single request.
+ *
+ * A query is answered by the latest reading if that has been requested within the time to live,
+ * otherwise it waits for a request which is already on its way if there is one, and sends a new
+ * request only if neither exists. A fresh query accepts only readings which have been requested
+ * after the query has been made. Sending a movement command to the robot has to invalidate the
+ * readings, since they don't describe the pose the robot is moving to.
+ */
+public class PoseQuery {
+
+	/**
+	 * command measuring the pose
+	 */
+	public static final String COMMAND = "GetPositionHomRowWise";
+
+	/**
+	 * default time to live of a reading in milliseconds
+	 */
+	public static final long DEFAULT_TIME_TO_LIVE_MS = 5;
+
+	/**
+	 * A pose measured by the robot.
+	 */
+	private static final class Reading {
+
+		/**
+		 * row-wise values of the 3x4 pose
+		 */
+		final double[] pose;
+
+		/**
+		 * System.nanoTime when the reading has been requested
+		 */
+		final long requestedNanos;
+
+		/**
+		 * Constructor of the reading
+		 * @param pose row-wise values of the 3x4 pose
+		 * @param requestedNanos System.nanoTime when the reading has been requested
+		 */
+		Reading(double[] pose, long requestedNanos) {
+			this.pose = pose;
+			this.requestedNanos = requestedNanos;
+		}
+	}
+
+	/**
+	 * A request which hasn't been answered yet.
+	 */
+	private static final class Flight {
+
+		/**
+		 * completed with the reading
+		 */
+		final CompletableFuture<Reading> reading = new CompletableFuture<Reading>();
+
+		/**
+		 * System.nanoTime when the request has been sent
+		 */
+		final long requestedNanos = System.nanoTime();
+	}
+
+	/**
+	 * client of the robot
+	 */
+	private final TCPClient client;
+
+	/**
+	 * the latest reading, null if there is none or it has been invalidated
+	 */
+	private final AtomicReference<Reading> latest = new AtomicReference<Reading>();
+
+	/**
+	 * the latest request which hasn't been answered yet, null if there is none
+	 */
+	private final AtomicReference<Flight> inFlight = new AtomicReference<Flight>();
+
+	/**
+	 * System.nanoTime of the last invalidation, readings requested before aren't used
+	 */
+	private volatile long invalidatedNanos = System.nanoTime();
+
+	/**
+	 * time to live of a reading in nanoseconds
+	 */
+	private volatile long timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIME_TO_LIVE_MS);
+
+	/**
+	 * number of queries
+	 */
+	private final AtomicLong queries = new AtomicLong();
+
+	/**
+	 * number of requests sent to the robot
+	 */
+	private final AtomicLong requests = new AtomicLong();
+
+	/**
+	 * Constructor of the query
+	 * @param client client of the robot
+	 */
+	public PoseQuery(TCPClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Setter for the time to live of a reading
+	 * @param timeToLive time a reading is used for after it has been requested, 0 to merge only simultaneous queries
+	 * @param unit unit of the time to live
+	 */
+	public void setTimeToLive(long timeToLive, TimeUnit unit) {
+		this.timeToLiveNanos = unit.toNanos(timeToLive);
+	}
+
+	/**
+	 * Getter for the time to live of a reading
+	 * @param unit the unit of the result
+	 * @return time a reading is used for after it has been requested
+	 */
+	public long getTimeToLive(TimeUnit unit) {
+		return unit.convert(timeToLiveNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns the pose, measured within the time to live.
+	 * @param pose array for the 12 row-wise values of the 3x4 pose
+	 * @return the given array
+	 * @throws IllegalArgumentException if the robot's response isn't a valid pose
+	 * @throws IllegalStateException if the robot didn't answer in time or the connection has been closed
+	 */
+	public double[] query(double[] pose) {
+		return query(System.nanoTime() - timeToLiveNanos, pose);
+	}
+
+	/**
+	 * Returns the pose, measured after this method has been called.
+	 * @param pose array for the 12 row-wise values of the 3x4 pose
+	 * @return the given array
+	 * @throws IllegalArgumentException if the robot's response isn't a valid pose
+	 * @throws IllegalStateException if the robot didn't answer in time or the connection has been closed
+	 */
+	public double[] queryFresh(double[] pose) {
+		return query(System.nanoTime(), pose);
+	}
+
+	/**
+	 * Discards the readings, e.g. because the robot has been commanded to move.
+	 * Requests which are on their way already don't answer later queries either.
+	 */
+	public void invalidate() {
+		invalidatedNanos = System.nanoTime();
+		latest.set(null);
+	}
+
+	/**
+	 * Getter for the number of queries
+	 * @return number of queries answered or failed so far
+	 */
+	public long getQueryCount() {
+		return queries.get();
+	}
+
+	/**
+	 * Getter for the number of requests
+	 * @return number of GetPositionHomRowWise requests sent to the robot so far
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns a pose requested at or after the given time.
+	 * If the connection is lost meanwhile and the client reconnects, the pose is requested once more.
+	 * @param notBeforeNanos System.nanoTime, readings requested earlier aren't used
+	 * @param pose array for the 12 row-wise values of the 3x4 pose
+	 * @return the given array
+	 */
+	private double[] query(long notBeforeNanos, double[] pose) {
+		queries.incrementAndGet();
+		try {
+			return attempt(notBeforeNanos, pose);
+		} catch (IllegalStateException e) {
+			if(!recovered(e)) throw e;
+			return attempt(notBeforeNanos, pose);
+		}
+	}
+
+	/**
+	 * Waits for the client to be reconnected after a query failed.
+	 * @param failure the exception of the query
+	 * @return true if the connection has been lost and the client has been reconnected
+	 */
+	private boolean recovered(IllegalStateException failure) {
+		try {
+			return client.awaitRecovery(failure, Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a pose requested at or after the given time, without retrying.
+	 * @param notBeforeNanos System.nanoTime, readings requested earlier aren't used
+	 * @param pose array for the 12 row-wise values of the 3x4 pose
+	 * @return the given array
+	 */
+	private double[] attempt(long notBeforeNanos, double[] pose) {
+		long invalidated = invalidatedNanos;
+		if(invalidated - notBeforeNanos > 0) notBeforeNanos = invalidated;
+		while(true) {
+			Reading reading = latest.get();
+			if(reading != null && reading.requestedNanos - notBeforeNanos >= 0) return copy(reading, pose);
+			Flight flight = inFlight.get();
+			if(flight != null && flight.requestedNanos - notBeforeNanos >= 0) return copy(await(flight), pose);
+			// the request on its way, if any, has been sent too early
+			Flight mine = new Flight();
+			if(inFlight.compareAndSet(flight, mine)) {
+				send(mine);
+				return copy(await(mine), pose);
+			}
+			// another query has sent a request meanwhile, which might be recent enough
+		}
+	}
+
+	/**
+	 * Sends a request, its reading becomes the latest one unless a newer one has arrived first.
+	 * @param flight the request
+	 */
+	private void send(Flight flight) {
+		requests.incrementAndGet();
+		client.request(COMMAND).whenComplete((response, error) -> {
+			inFlight.compareAndSet(flight, null);
+			if(error != null) {
+				flight.reading.completeExceptionally(error);
+				return;
+			}
+			Reading reading;
+			try {
+				reading = new Reading(PoseParser.parse(response, new double[PoseParser.POSE_VALUES]), flight.requestedNanos);
+			} catch (IllegalArgumentException e) {
+				flight.reading.completeExceptionally(e);
+				return;
+			}
+			if(reading.requestedNanos - invalidatedNanos >= 0) {
+				latest.accumulateAndGet(reading, (current, next) ->
+					current == null || next.requestedNanos - current.requestedNanos > 0 ? next : current);
+			}
+			flight.reading.complete(reading);
+		});
+	}
+
+	/**
+	 * Waits for the reading of a request.
+	 * @param flight the request
+	 * @return the reading
+	 */
+	private static Reading await(Flight flight) {
+		try {
+			return flight.reading.get(Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("[PoseQuery] Interrupted while waiting for \"" + COMMAND + "\".", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IllegalArgumentException) throw (IllegalArgumentException) e.getCause();
+			throw new IllegalStateException("[PoseQuery] No response of robot to \"" + COMMAND + "\".", e);
+		} catch (TimeoutException e) {
+			throw new IllegalStateException("[PoseQuery] No response of robot to \"" + COMMAND + "\".", e);
+		}
+	}
+
+	/**
+	 * Copies the pose of a reading.
+	 * @param reading the reading
+	 * @param pose array for the 12 row-wise values
+	 * @return the given array
+	 */
+	private static double[] copy(Reading reading, double[] pose) {
+		System.arraycopy(reading.pose, 0, pose, 0, PoseParser.POSE_VALUES);
+		return pose;
+	}
+}
@@ -1,11 +1,14 @@
 package robprakt.cutting;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 
+import robprakt.network.Pipeline;
+import robprakt.network.PoseCommandEncoder;
 import robprakt.network.TCPClient;
 
 /**
@@ -37,6 +40,18 @@ public class RobotMovement {
 	 */
 	private double quantizationStep;
 	
+	/**
+	 * pipelined sets whether the points of a trajectory are streamed without waiting for the robot
+	 * to reach each of them, which requires a robot server queuing the MoveMinChange targets
+	 */
+	private boolean pipelined = false;
+	
+	/**
+	 * poseCommandEncoder writes the MoveMinChangeRowWiseStatus commands into a reusable buffer,
+	 * so no Strings are created for the points of a trajectory
+	 */
+	private final PoseCommandEncoder poseCommandEncoder = new PoseCommandEncoder();
+	
 	
 	//===========================
 	//==========METHODS==========
@@ -78,56 +93,112 @@ public class RobotMovement {
 	
 	//=======MOVEMENT-LOGIC======
 	
+	/**
+	 * Setter for the pipelined mode.
+	 * In pipelined mode all points of a trajectory are sent at once and only the end point is confirmed
+	 * by measuring the pose, which saves a round trip per point. This is only correct if the robot server
+	 * queues the MoveMinChange targets and moves to them one after another, like RobotSimulator does.
+	 * By default every point is confirmed before the next one is sent.
+	 * @param pipelined true to stream the points of a trajectory
+	 */
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+	
 	/**
 	 * Moves cutter-robots end-effector from a start-position to an end-position.
 	 * @param startPosition (homogeneous) relative to workspace
 	 * @param endPosition (homogeneous) relative to workspace
+	 * @return true if the robot accepted all points of the trajectory
 	 */
-	protected void moveCutterP2P(RealVector startPosition, RealVector endPosition) {
+	protected boolean moveCutterP2P(RealVector startPosition, RealVector endPosition) {
 		RealVector startPos = transformCoords.getTrajectoryMatrixForCuttersEndeffector(startPosition).getColumnVector(3);
 		RealVector endPos = transformCoords.getTrajectoryMatrixForCuttersEndeffector(endPosition).getColumnVector(3);
-		this.movementHandler(	this.calcP2PTrajectoryForStraight(startPos, endPos)
+		return this.movementHandler(	this.calcP2PTrajectoryForStraight(startPos, endPos)
 								,this.transformCoords.getClientR1());
 	}
 	
 	/**
 	 * Moves cutter-robots end-effector from the current position to the neutral position.
+	 * @return true if the robot accepted all points of the trajectory
 	 */
-	protected void moveToNeutralPosition() {
+	protected boolean moveToNeutralPosition() {
 		//get current position (homogeneous) of cutter-robots end-effector
 		RealVector currentPosition = this.transformCoords.measureCutterRobotPose().getColumnVector(3);
-		this.movementHandler(	this.calcP2PTrajectoryForStraight(currentPosition, this.neutralPosition)
+		return this.movementHandler(	this.calcP2PTrajectoryForStraight(currentPosition, this.neutralPosition)
 								,this.transformCoords.getClientR1());
 	}
 	
 	/**
 	 * Moves cutter-robots end-effector from the current position to the auxiliary position.
+	 * @return true if the robot accepted all points of the trajectory
 	 */
-	protected void moveToAuxiliaryPosition() {
+	protected boolean moveToAuxiliaryPosition() {
 		//get current position (homogeneous) of cutter-robots end-effector
 		RealVector currentPosition = this.transformCoords.measureCutterRobotPose().getColumnVector(3);
-		this.movementHandler(	this.calcP2PTrajectoryForStraight(currentPosition, this.auxiliaryPosition)
+		return this.movementHandler(	this.calcP2PTrajectoryForStraight(currentPosition, this.auxiliaryPosition)
 								,this.transformCoords.getClientR1());
 	}
 	
 	/**
 	 * Handles gradually moving the robot from point to point.
+	 * Stops at the first point the robot doesn't accept.
 	 * @param positions to move to, which define a trajectory
 	 * @param client for identifying which robot to communicate with
+	 * @return true if the robot accepted all points and reached the last one
 	 */
-	private void movementHandler(ArrayList<RealVector> positions,TCPClient client) {
+	private boolean movementHandler(ArrayList<RealVector> positions,TCPClient client) {
 		RealMatrix poseMatrix3x4 = new Array2DRowRealMatrix(3,4);
 		//setting the orientation of the end-effector depending on robot-type
 		RealMatrix rotMat = (client.isEqual(this.transformCoords.getClientR1()))
 				? TransformCoords.standardCutterToolOrientation
 				: TransformCoords.rotPartOfHolderRobotsEndeffectorDefaultPoseRelCutterRobot;
 		poseMatrix3x4.setSubMatrix(rotMat.getData(), 0, 0);
+		if(this.pipelined) return this.streamTrajectory(positions, poseMatrix3x4, client);
 		//moving to each point with a certain precision
+		for(int i = 0; i < positions.size(); i++) {
+			poseMatrix3x4.setColumnVector(3, positions.get(i));
+			if(!this.moveMinChange(poseMatrix3x4, client)) {
+				System.out.println("[RobotMovement] Robot didn't accept trajectory point " + i + ".");
+				return false;
+			}
+			this.comparePoses(poseMatrix3x4, client);
+		}
+		return true;
+	}
+	
+	/**
+	 * Streams all points of a trajectory, so only one round trip of latency is added
+	 * for the whole straight instead of one per point. See setPipelined.
+	 * @param positions to move to, which define a trajectory
+	 * @param poseMatrix3x4 pose matrix with the orientation of the end-effector, gets the position of the last point
+	 * @param client for identifying which robot to communicate with
+	 * @return true if the robot accepted all points and reached the last one
+	 */
+	private boolean streamTrajectory(ArrayList<RealVector> positions, RealMatrix poseMatrix3x4, TCPClient client) {
+		Pipeline pipeline = client.openPipeline();
+		//the measured poses are outdated once the robot moves
+		this.transformCoords.invalidatePose(client);
+		List<String> responses = pipeline.getResponses();
+		//number of points accepted so far
+		int accepted = 0;
 		for(RealVector pos : positions) {
 			poseMatrix3x4.setColumnVector(3, pos);
-			this.moveMinChange(poseMatrix3x4, client);
-			this.comparePoses(poseMatrix3x4, client);
+			if(!pipeline.send(poseCommandEncoder.encode(poseMatrix3x4))) break;
+			//stop streaming as soon as a point has been rejected
+			while(accepted < responses.size() && "true".equals(responses.get(accepted))) accepted++;
+			if(accepted < responses.size()) break;
 		}
+		pipeline.drain();
+		while(accepted < responses.size() && "true".equals(responses.get(accepted))) accepted++;
+		if(accepted < positions.size()) {
+			System.out.println("[RobotMovement] Robot didn't accept trajectory point " + accepted + ": "
+					+ (accepted < responses.size() ? responses.get(accepted) : "not sent"));
+			return false;
+		}
+		//moving to the end point with a certain precision
+		this.comparePoses(poseMatrix3x4, client);
+		return true;
 	}
 	
 	/**
@@ -141,28 +212,34 @@ public class RobotMovement {
 		//defining deviation for the stop criterion
 		double deviation = 0.1; //TODO: Abweichung ggf. vergrern oder verringern
 		double actualDeviation = this.quantizationStep; //setting 
+		//the measured pose is parsed into the same array in every iteration,
+		//each iteration needs a pose measured after the previous one
+		double[] currentPose = new double[12];
+		boolean cutterRobot = client.isEqual(this.transformCoords.getClientR1());
 		while(actualDeviation > deviation) {
-			RealMatrix currentPose = client.isEqual(this.transformCoords.getClientR1()) ?
-			this.transformCoords.measureCutterRobotPose().getSubMatrix(0, 0, 2, 3)
-			: this.transformCoords.measureHolderRobotPose().getSubMatrix(0, 0, 2, 3);
-			RealMatrix deviationPoseMatrix = poseMatrix3x4.subtract(currentPose);
+			if(cutterRobot) {
+				this.transformCoords.measureCutterRobotPose(currentPose, true);
+			} else {
+				this.transformCoords.measureHolderRobotPose(currentPose, true);
+			}
 			//get maximum deviation
-			actualDeviation = this.maxDeviation(deviationPoseMatrix);
+			actualDeviation = this.maxDeviation(poseMatrix3x4, currentPose);
 		}
 	}
 	
 	/**
-	 * Returns greatest double value (according to amount) of a 3x4 matrix.
-	 * @param deviationPoseMatrix3x4
+	 * Returns greatest difference (according to amount) between a 3x4 goal pose and a measured pose.
+	 * @param goalPoseMatrix3x4 goal-pose-matrix 3x4
+	 * @param currentPose row-wise values of the measured 3x4 pose
 	 * @return maxDeviation maximum deviation found in matrix
 	 */
-	private double maxDeviation(RealMatrix deviationPoseMatrix3x4) {
+	private double maxDeviation(RealMatrix goalPoseMatrix3x4, double[] currentPose) {
 		//TODO: bestenfalls sollte hier eine TimeOutException hinzugefgt werden.
 		double maxDeviation = 0;
 		for(int row = 0; row < 3; row++) {
 			for(int col = 0; col < 4; col++) {
 				//get according to amount the greatest value of deviationPoseMatrix
-				double nextValue = Math.abs(deviationPoseMatrix3x4.getEntry(row, col));
+				double nextValue = Math.abs(goalPoseMatrix3x4.getEntry(row, col) - currentPose[row*4 + col]);
 				maxDeviation = Math.max(maxDeviation, nextValue);
 			}
 		}
@@ -230,12 +307,7 @@ public class RobotMovement {
 	 * @return 	true if position and configuration are valid
 	 */
 	protected boolean moveMinChange(RealMatrix poseMatrix, TCPClient client) {
-		String command = "MoveMinChangeRowWiseStatus" 	+ " " + poseMatrix.getEntry(0,0) + " " + poseMatrix.getEntry(0,1) + " " + poseMatrix.getEntry(0,2) + " " + poseMatrix.getEntry(0,3)
-														+ " " + poseMatrix.getEntry(1,0) + " " + poseMatrix.getEntry(1,1) + " " + poseMatrix.getEntry(1,2) + " " + poseMatrix.getEntry(1,3)
-														+ " " + poseMatrix.getEntry(2,0) + " " + poseMatrix.getEntry(2,1) + " " + poseMatrix.getEntry(2,2) + " " + poseMatrix.getEntry(2,3)
-														+ " " + "noflip lefty"; //TODO: ggf. sollte man die Parameter noflip lefty etc. noch sinniger bestimmen.
-		transformCoords.send(command, client);
 		// if the robot accepts the command, it returns true
-		return "true".equals((transformCoords.response(client)));
+		return "true".equals(transformCoords.request(poseCommandEncoder.encode(poseMatrix), client));
 	}
 }
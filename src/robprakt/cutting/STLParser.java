@@ -1,21 +1,22 @@
 package robprakt.cutting;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.StringTokenizer;
-
-import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Stream;
 
 /**
  * This class is a parser for STL files. Currently, normals specified in the 
@@ -26,8 +27,57 @@ import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
  * 
  *  * -reversion: mar 2017 Andrew
  * updated logic to handle binary STL files with "solid" in the header 
+ * 
+ * The file is memory-mapped instead of being read into the heap, binary files
+ * are read from the mapping directly. parseSTLMesh keeps the triangles in a
+ * compact Mesh instead of Triangle objects.
+ * ASCII files are parsed from the bytes, large ones in parallel chunks.
+ * visitSTL and streamSTL read files of any size block by block with STLReader.
  */
 public class STLParser {
+	
+	/**
+	 * size of the header of a binary STL file in bytes
+	 */
+	static final int BINARY_HEADER_SIZE = 80;
+	
+	/**
+	 * size of the header and the number of triangles of a binary STL file in bytes
+	 */
+	static final int BINARY_DATA_OFFSET = BINARY_HEADER_SIZE + 4;
+	
+	/**
+	 * size of a triangle in a binary STL file in bytes: normal, three vertices and the attribute
+	 */
+	static final int BINARY_TRIANGLE_SIZE = 50;
+	
+	/**
+	 * size in bytes from which ASCII files are parsed in parallel
+	 */
+	private static final int ASCII_PARALLEL_THRESHOLD = 1 << 20;
+	
+	/**
+	 * minimal size of a chunk of an ASCII file parsed in parallel in bytes
+	 */
+	private static final int ASCII_CHUNK_SIZE = 256 << 10;
+	
+	/**
+	 * powers of ten which are exact doubles
+	 */
+	private static final double[] POWERS_OF_TEN = new double[23];
+	
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for(int i = 1; i < POWERS_OF_TEN.length; i++) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+	}
+	
+	/**
+	 * keywords of ASCII files in lower case
+	 */
+	static final byte[] FACET = "facet".getBytes(StandardCharsets.US_ASCII),
+			VERTEX = "vertex".getBytes(StandardCharsets.US_ASCII),
+			ENDFACET = "endfacet".getBytes(StandardCharsets.US_ASCII);
+	
 	/**
 	 * Parses an STL file, attempting to automatically detect whether the file 
 	 * is an ASCII or binary STL file
@@ -37,19 +87,82 @@ public class STLParser {
 	 * @throws IOException Thrown if there was a problem reading the file 
 	 * (typically means the file does not exist or is not a file).
 	 * @throws IllegalArgumentException Thrown if the STL is not properly 
-	 * formatted
+	 * formatted or larger than 2GB
 	 */
 	public static List<Triangle> parseSTLFile(Path filepath) throws IOException{
-		byte[] allBytes = Files.readAllBytes(filepath);
+		return new ArrayList<>(parseSTLMesh(filepath).asList());
+	}
+	
+	/**
+	 * Parses an STL file into a Mesh, attempting to automatically detect whether the file 
+	 * is an ASCII or binary STL file. The triangles are sorted by their highest vertex, highest first.
+	 * @param filepath The file to parse
+	 * @return A mesh of all of the triangles in the STL file.
+	 * @throws IOException Thrown if there was a problem reading the file 
+	 * (typically means the file does not exist or is not a file).
+	 * @throws IllegalArgumentException Thrown if the STL is not properly 
+	 * formatted or larger than 2GB
+	 */
+	public static Mesh parseSTLMesh(Path filepath) throws IOException{
+		ByteBuffer allBytes = map(filepath);
 		// determine if it is ASCII or binary STL
-
+		boolean isASCIISTL = isASCII(allBytes);
+		if(!isASCIISTL) isbinaryfile(allBytes);
+		
+		// read file to mesh of triangles
+		Mesh mesh;
+		if(isASCIISTL){
+			mesh = readASCIIMesh(allBytes);
+		} else {
+			mesh = readBinaryMesh(allBytes);
+		}
+		
+		mesh.sortByMaxZDescending();
+		mesh.trimToSize();
+		return mesh;
+	}
+	
+	/**
+	 * Reads an STL file block by block, see STLReader. Only a block of triangles and a buffer
+	 * are kept in memory, so files larger than the heap can be processed, e.g. for statistics.
+	 * @param filepath The file to read
+	 * @param blockSize maximal number of triangles per block
+	 * @param visitor gets the blocks in the order of the file
+	 * @return number of triangles in the file
+	 * @throws IOException Thrown if there was a problem reading the file
+	 * @throws IllegalArgumentException Thrown if the STL is not properly formatted
+	 */
+	public static long visitSTL(Path filepath, int blockSize, STLReader.BlockVisitor visitor) throws IOException {
+		try (STLReader reader = STLReader.open(filepath)) {
+			return reader.accept(blockSize, visitor);
+		}
+	}
+	
+	/**
+	 * Streams the triangles of an STL file in the order of the file while it is read, see STLReader.
+	 * The stream has to be closed to close the file.
+	 * @param filepath The file to read
+	 * @return the triangles
+	 * @throws IOException Thrown if the file can't be opened
+	 */
+	public static Stream<Triangle> streamSTL(Path filepath) throws IOException {
+		return STLReader.open(filepath).stream();
+	}
+	
+	/**
+	 * Determines if an STL file is ASCII from its first bytes: it is if it starts with "solid" and
+	 * the second line starts with "facet" or "endsolid".
+	 * @param head the start of the file, at least up to 512 bytes if there are
+	 * @return true for an ASCII file, false if the file should be binary
+	 */
+	static boolean isASCII(ByteBuffer head) {
 		//some binary STL files has "solid" in the first 80 chars
 		//this breaks logic that determines if a file is ascii based on it
 		//simply beginning with "solid"
 		boolean isASCIISTL = false;
 		
 		//read the first 512 chars or less
-		String buf = readblock(allBytes, 0, 512);
+		String buf = readblock(head, 0, 512);
 		StringBuffer sb = new StringBuffer();
 		int inl = readline(buf, sb, 0);
 		String line = sb.toString();
@@ -66,51 +179,36 @@ public class STLParser {
 					isASCIISTL = true; //empty ascii file
 				else if(token.equals("facet")) {
 					isASCIISTL = true; //ascii file
-				} else if (isbinaryfile(allBytes))
-					isASCIISTL = false; //binary file					
-			} else { //no linefeed
-				if (isbinaryfile(allBytes))
-					isASCIISTL = false; //binary file
-			}				
-		} else {//does not starts with "solid" 
-			if (isbinaryfile(allBytes)) 
-				isASCIISTL = false; //binary file
-		}
-		
-		// read file to array of triangles
-		List<Triangle> mesh;
-		if(isASCIISTL){
-			Charset charset = Charset.forName("UTF-8");
-			mesh = readASCII(charset.decode(ByteBuffer.wrap(allBytes)).toString().toLowerCase());
-		} else {
-			mesh = readBinary(allBytes);
-		}
-		
-		Collections.sort(mesh, new Comparator<Triangle>() {
-			
-			@Override
-			public int compare(Triangle o1, Triangle o2) {
-				Vector3D[] o1V = o1.getVertices();
-				Vector3D[] o2V = o2.getVertices();
-				double maxo1 = Double.NEGATIVE_INFINITY;
-				double maxo2 = Double.NEGATIVE_INFINITY;
-				for(int i=0; i<3;i++) {
-					double o1z = o1V[i].getZ();
-					double o2z = o2V[i].getZ();
-					if(o1z>=maxo1) maxo1 = o1z;
-					if(o2z>=maxo2) maxo2 = o2z;
 				}
-				
-				int ret = 0;
-				if(maxo1>maxo2) return -1;
-				else if(maxo1<maxo2) return 1;
-				else return 0;
 			}
-		});
-		
-		return mesh;
+		}
+		return isASCIISTL;
 	}
 		
+	/**
+	 * Maps a file into memory read-only, the mapping stays valid after the channel is closed.
+	 * @param filepath The file to map
+	 * @return the content of the file
+	 * @throws IOException if the file can't be read
+	 * @throws IllegalArgumentException if the file is larger than 2GB
+	 */
+	private static ByteBuffer map(Path filepath) throws IOException {
+		try (FileChannel channel = FileChannel.open(filepath, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE) throw new IllegalArgumentException("STL file is larger than 2GB: " + filepath);
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+	}
+	
+	public static String readblock(ByteBuffer allBytes, int offset, int length) {
+		if(allBytes.limit()-offset<length) length = allBytes.limit()-offset;
+		Charset charset = Charset.forName("UTF-8");
+		ByteBuffer block = allBytes.duplicate();
+		block.position(offset).limit(offset+length);
+		CharBuffer decode = charset.decode(block);
+		return decode.toString().toLowerCase();
+	}
+	
 	public static String readblock(byte[] allBytes, int offset, int length) {
 		if(allBytes.length-offset<length) length = allBytes.length-offset;
 		Charset charset = Charset.forName("UTF-8");
@@ -127,6 +225,18 @@ public class STLParser {
 		return il;
 	}
 	
+	public static boolean isbinaryfile(ByteBuffer allBytes) throws IllegalArgumentException {
+		if (allBytes.limit()<BINARY_DATA_OFFSET)
+			throw new IllegalArgumentException("invalid binary file, length<84");
+		long numtriangles = allBytes.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(BINARY_HEADER_SIZE) & 0xffffffffL;
+		if (allBytes.limit() >= BINARY_DATA_OFFSET + numtriangles * BINARY_TRIANGLE_SIZE)
+			return true; //is binary file
+		else {
+			String msg = "invalid binary file, num triangles does not match length specs";
+			throw new IllegalArgumentException(msg);
+		}
+	}
+	
 	public static boolean isbinaryfile(byte[] allBytes) throws IllegalArgumentException {
 		if (allBytes.length<84)
 			throw new IllegalArgumentException("invalid binary file, length<84");			
@@ -159,58 +269,322 @@ public class STLParser {
 	 * formatted
 	 */
 	public static List<Triangle> readASCII(String content) {
-		// string is lowercase
-		ArrayList<Triangle> triangles = new ArrayList<>();
-				
+		return new ArrayList<>(readASCIIMesh(content).asList());
+	}
+	
+	/**
+	 * Reads an STL ASCII file content provided as a String into a Mesh
+	 * @param content ASCII STL
+	 * @return A mesh of all of the triangles in the STL file.
+	 * @throws IllegalArgumentException Thrown if the STL is not properly 
+	 * formatted
+	 */
+	public static Mesh readASCIIMesh(String content) {
+		return readASCIIMesh(StandardCharsets.UTF_8.encode(content));
+	}
+	
+	/**
+	 * Reads an STL ASCII file content provided as a buffer, e.g. a mapped file, into a Mesh.
+	 * The bytes are parsed in place, keywords are matched regardless of their case.
+	 * Large files are split at "facet" keywords into chunks, which are parsed in parallel
+	 * on the common fork/join pool and put together in the order of the file.
+	 * @param allBytes ASCII STL
+	 * @return A mesh of all of the triangles in the STL file.
+	 * @throws IllegalArgumentException Thrown if the STL is not properly 
+	 * formatted
+	 */
+	public static Mesh readASCIIMesh(ByteBuffer allBytes) {
+		ByteBuffer content = allBytes.slice();
+		int length = content.limit();
+		int chunks = 1;
+		if(length >= ASCII_PARALLEL_THRESHOLD) {
+			chunks = Math.min(length / ASCII_CHUNK_SIZE, 4 * ForkJoinPool.getCommonPoolParallelism());
+		}
+		if(chunks <= 1) return new ASCIIChunk(content, 0, length).parse();
+		
+		List<ASCIIChunk> tasks = new ArrayList<>(chunks);
+		int start = 0;
+		for(int i = 1; i <= chunks && start < length; i++) {
+			int end = i == chunks ? length : nextFacet(content, Math.max(start + 1, (int) ((long) length * i / chunks)));
+			tasks.add(new ASCIIChunk(content, start, end));
+			start = end;
+		}
+		ForkJoinTask.invokeAll(tasks);
 		
-		int position = 0;
-		scan:
-		{
-			while (position < content.length() & position >= 0) {
-				position = content.indexOf("facet", position);
-				if (position < 0) {
-					break scan;
+		int size = 0;
+		for(ASCIIChunk task : tasks) {
+			// the first error of the file is reported, like a sequential parser would
+			if(task.failure != null) throw task.failure;
+			size += task.getRawResult().size();
+		}
+		Mesh triangles = new Mesh(size);
+		for(ASCIIChunk task : tasks) {
+			triangles.append(task.getRawResult());
+		}
+		return triangles;
+	}
+	
+	/**
+	 * Looks for the next "facet" keyword, where a chunk of an ASCII file can start.
+	 * @param content ASCII STL
+	 * @param from position to start from
+	 * @return position of the keyword, the end of the content if there is none
+	 */
+	private static int nextFacet(ByteBuffer content, int from) {
+		int length = content.limit();
+		for(int p = from; p < length; p++) {
+			if(isKeyword(content, p, FACET) && (p == 0 || isWhitespace(content.get(p - 1)))) return p;
+		}
+		return length;
+	}
+	
+	/**
+	 * Checks if a keyword is the token at a position, ignoring case.
+	 * @param content ASCII STL
+	 * @param position start of the token
+	 * @param keyword the keyword in lower case
+	 * @return true if the token at the position is the keyword
+	 */
+	static boolean isKeyword(ByteBuffer content, int position, byte[] keyword) {
+		int end = position + keyword.length;
+		if(end > content.limit() || !startsWith(content, position, keyword)) return false;
+		return end == content.limit() || isWhitespace(content.get(end));
+	}
+	
+	/**
+	 * Checks if the bytes at a position are a keyword, ignoring case.
+	 * @param content ASCII STL
+	 * @param position the position, the keyword has to fit into the content
+	 * @param keyword the keyword in lower case
+	 * @return true if the bytes are the keyword
+	 */
+	static boolean startsWith(ByteBuffer content, int position, byte[] keyword) {
+		for(int i = 0; i < keyword.length; i++) {
+			// setting bit 5 lower-cases letters, no other byte becomes a lower-case letter
+			if((content.get(position + i) | 0x20) != keyword[i]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Parses a decimal number. Numbers with up to 18 significant digits and small exponents are
+	 * scanned directly and rounded once, others are left to Double.parseDouble.
+	 * @param content ASCII STL
+	 * @param from first position of the number
+	 * @param to position after the number
+	 * @return the number rounded to float like (float) Double.parseDouble does
+	 * @throws NumberFormatException if the token is not a number
+	 */
+	static float parseFloat(ByteBuffer content, int from, int to) {
+		int p = from;
+		boolean negative = false;
+		if(p < to && (content.get(p) == '-' || content.get(p) == '+')) {
+			negative = content.get(p) == '-';
+			p++;
+		}
+		long mantissa = 0;
+		int digits = 0, exponent = 0;
+		boolean any = false, exact = true;
+		for(; p < to && isDigit(content.get(p)); p++, any = true) {
+			if(digits < 18) {
+				mantissa = 10 * mantissa + (content.get(p) - '0');
+				if(mantissa != 0) digits++;
+			} else {
+				exponent++;
+				exact &= content.get(p) == '0';
+			}
+		}
+		if(p < to && content.get(p) == '.') {
+			for(p++; p < to && isDigit(content.get(p)); p++, any = true) {
+				if(digits < 18) {
+					mantissa = 10 * mantissa + (content.get(p) - '0');
+					if(mantissa != 0) digits++;
+					exponent--;
+				} else {
+					exact &= content.get(p) == '0';
 				}
-				try {
-					Vector3D[] vertices = new Vector3D[3];
-					for (int v = 0; v < vertices.length; v++) {
-						position = content.indexOf("vertex", position) + "vertex".length();
-						while (Character.isWhitespace(content.charAt(position))) {
-							position++;
-						}
-						int nextSpace;
-						double[] vals = new double[3];
-						for (int d = 0; d < vals.length; d++) {
-							nextSpace = position + 1;
-							while (!Character.isWhitespace(content.charAt(nextSpace))) {
-								nextSpace++;
-							}
-							String value = content.substring(position, nextSpace);
-							vals[d] = Double.parseDouble(value);
-							position = nextSpace;
-							while (Character.isWhitespace(content.charAt(position))) {
-								position++;
-							}
+			}
+		}
+		if(any && p < to && (content.get(p) | 0x20) == 'e') {
+			p++;
+			boolean negativeExponent = false;
+			if(p < to && (content.get(p) == '-' || content.get(p) == '+')) {
+				negativeExponent = content.get(p) == '-';
+				p++;
+			}
+			int value = 0;
+			boolean anyDigit = false;
+			for(; p < to && isDigit(content.get(p)); p++, anyDigit = true) {
+				if(value < 100000) value = 10 * value + (content.get(p) - '0');
+			}
+			if(!anyDigit) any = false;
+			exponent += negativeExponent ? -value : value;
+		}
+		// a mantissa below 2^53 and a power of ten below 10^23 are exact doubles, so one division or multiplication rounds correctly
+		if(any && exact && p == to && mantissa < (1L << 53) && Math.abs(exponent) < POWERS_OF_TEN.length) {
+			double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+			return (float) (negative ? -value : value);
+		}
+		return (float) Double.parseDouble(text(content, from, to));
+	}
+	
+	/**
+	 * Checks if a byte is a decimal digit.
+	 * @param b the byte
+	 * @return true for 0 to 9
+	 */
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+	
+	/**
+	 * Returns the text between two positions.
+	 * @param content ASCII STL
+	 * @param from first position
+	 * @param to position after the text
+	 * @return the text
+	 */
+	static String text(ByteBuffer content, int from, int to) {
+		byte[] bytes = new byte[to - from];
+		for(int i = 0; i < bytes.length; i++) bytes[i] = content.get(from + i);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Checks if a byte separates tokens, like Character.isWhitespace for ASCII.
+	 * @param b the byte
+	 * @return true for space, tab, line feed, carriage return, form feed and the separator controls
+	 */
+	static boolean isWhitespace(byte b) {
+		return b == ' ' || (b >= 0x09 && b <= 0x0d) || (b >= 0x1c && b <= 0x1f);
+	}
+	
+	/**
+	 * A part of an ASCII STL file, starting at a "facet" keyword or the start of the file.
+	 * The part is parsed into its own mesh, an error is kept to be reported in the order of the file.
+	 */
+	@SuppressWarnings("serial")
+	private static final class ASCIIChunk extends RecursiveTask<Mesh> {
+		
+		/**
+		 * the whole file
+		 */
+		private final ByteBuffer content;
+		
+		/**
+		 * first position of the part
+		 */
+		private final int start;
+		
+		/**
+		 * position after the part
+		 */
+		private final int end;
+		
+		/**
+		 * the error parsing the part, null if there is none
+		 */
+		IllegalArgumentException failure;
+		
+		/**
+		 * Constructor of the part
+		 * @param content the whole file
+		 * @param start first position of the part
+		 * @param end position after the part
+		 */
+		ASCIIChunk(ByteBuffer content, int start, int end) {
+			this.content = content;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected Mesh compute() {
+			try {
+				return parse();
+			} catch (IllegalArgumentException e) {
+				failure = e;
+				return new Mesh(0);
+			}
+		}
+		
+		/**
+		 * Parses the part. Tokens between the keywords, like "normal", "outer loop" and the values of
+		 * the normal, are skipped, since the normal is calculated from the vertices.
+		 * @return the triangles of the part
+		 * @throws IllegalArgumentException if the part is not properly formatted
+		 */
+		Mesh parse() {
+			// a facet takes about 250 bytes in usual exports
+			Mesh triangles = new Mesh(Math.max(16, (end - start) / 256));
+			float[] vertices = new float[9];
+			int vertex = -1; // -1 outside of a facet
+			int p = skipWhitespace(start);
+			while(p < end) {
+				int tokenEnd = skipToken(p);
+				if(isKeyword(content, p, FACET)) {
+					if(vertex >= 0) throw malformed(p, null);
+					vertex = 0;
+				} else if(isKeyword(content, p, VERTEX)) {
+					if(vertex < 0 || vertex == 3) throw malformed(p, null);
+					for(int d = 0; d < 3; d++) {
+						p = skipWhitespace(tokenEnd);
+						tokenEnd = skipToken(p);
+						try {
+							vertices[3 * vertex + d] = parseFloat(content, p, tokenEnd);
+						} catch (NumberFormatException e) {
+							throw malformed(p, e);
 						}
-						vertices[v] = new Vector3D(vals[0], vals[1], vals[2]);
-					}
-					position = content.indexOf("endfacet", position)+"endfacet".length();
-					triangles.add(new Triangle(vertices[0], vertices[1], vertices[2]));
-				} catch (Exception ex) {
-					int back = position - 128;
-					if (back < 0) {
-						back = 0;
 					}
-					int forward = position + 128;
-					if (position > content.length()) {
-						forward = content.length();
+					vertex++;
+				} else if(isKeyword(content, p, ENDFACET)) {
+					if(vertex != 3) throw malformed(p, null);
+					try {
+						triangles.add(vertices[0], vertices[1], vertices[2], vertices[3], vertices[4], vertices[5],
+								vertices[6], vertices[7], vertices[8]);
+					} catch (IllegalArgumentException e) {
+						throw malformed(p, e);
 					}
-					throw new IllegalArgumentException("Malformed STL syntax near \"" + content.substring(back, forward) + "\"", ex);
+					vertex = -1;
 				}
+				p = skipWhitespace(tokenEnd);
 			}
+			if(vertex >= 0) throw malformed(end, null);
+			return triangles;
 		}
 		
-		return triangles;
+		/**
+		 * Skips whitespace.
+		 * @param p the position to start from
+		 * @return position of the next token, the end of the part if there is none
+		 */
+		private int skipWhitespace(int p) {
+			while(p < end && isWhitespace(content.get(p))) p++;
+			return p;
+		}
+		
+		/**
+		 * Skips a token, which might reach beyond the part only at the end of the file.
+		 * @param p the first position of the token
+		 * @return position after the token
+		 */
+		private int skipToken(int p) {
+			int limit = content.limit();
+			while(p < limit && !isWhitespace(content.get(p))) p++;
+			return p;
+		}
+		
+		/**
+		 * Creates the exception for a malformed file, showing the text around the error.
+		 * @param position position of the error
+		 * @param cause the cause, null if there is none
+		 * @return the exception
+		 */
+		private IllegalArgumentException malformed(int position, Exception cause) {
+			int back = Math.max(0, position - 128);
+			int forward = Math.min(content.limit(), position + 128);
+			return new IllegalArgumentException("Malformed STL syntax near \"" + text(content, back, forward) + "\"", cause);
+		}
 	}
 	
 	
@@ -223,43 +597,50 @@ public class STLParser {
 	 * formatted
 	 */
 	public static List<Triangle> readBinary(byte[] allBytes) {
+		return readBinary(ByteBuffer.wrap(allBytes));
+	}
+	
+	/**
+	 * Parses binary STL file content provided as a buffer, e.g. a mapped file.
+	 * The triangles are read in place at their fixed offsets, the buffer's position isn't changed.
+	 * @param allBytes binary STL
+	 * @return A list of triangles representing all of the triangles in the STL 
+	 * file.
+	 * @throws IllegalArgumentException Thrown if the STL is not properly 
+	 * formatted
+	 */
+	public static List<Triangle> readBinary(ByteBuffer allBytes) {
+		return new ArrayList<>(readBinaryMesh(allBytes).asList());
+	}
+	
+	/**
+	 * Parses binary STL file content provided as a buffer, e.g. a mapped file, into a Mesh.
+	 * The triangles are read in place at their fixed offsets, the buffer's position isn't changed.
+	 * @param allBytes binary STL
+	 * @return A mesh of all of the triangles in the STL file.
+	 * @throws IllegalArgumentException Thrown if the STL is not properly 
+	 * formatted
+	 */
+	public static Mesh readBinaryMesh(ByteBuffer allBytes) {
 		System.out.println("Parsing binary STL format");
-		DataInputStream in = new DataInputStream(new ByteArrayInputStream(allBytes));
-		ArrayList<Triangle> triangles = new ArrayList<>();
-		try{
-			// skip the header
-			byte[] header = new byte[80];
-			in.read(header);
-			// get number triangles (not really needed)
-			// WARNING: STL FILES ARE SMALL-ENDIAN
-			int numberTriangles = Integer.reverseBytes(in.readInt());
-			triangles.ensureCapacity(numberTriangles);
-			// read triangles
-			try{
-				while(in.available() > 0 ){
-					float[] nvec = new float[3];
-					for(int i = 0; i < nvec.length; i++){
-						nvec[i] = Float.intBitsToFloat(Integer.reverseBytes(in.readInt()));
-					}
-					Vector3D normal = new Vector3D(nvec[0],nvec[1],nvec[2]); // not used (yet)
-					Vector3D[] vertices = new Vector3D[3];
-					for (int v = 0; v < vertices.length; v++) {
-						float[] vals = new float[3];
-						for (int d = 0; d < vals.length; d++) {
-							vals[d] = Float.intBitsToFloat(Integer.reverseBytes(in.readInt()));
-						}
-						vertices[v] = new Vector3D(vals[0], vals[1], vals[2]);
-					}
-					short attribute = Short.reverseBytes(in.readShort()); // not used (yet)
-					triangles.add(new Triangle(vertices[0], vertices[1], vertices[2]));
-				}
-			}catch(Exception ex){
+		// WARNING: STL FILES ARE SMALL-ENDIAN
+		ByteBuffer in = allBytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if(in.limit() < BINARY_DATA_OFFSET) throw new IllegalArgumentException("Malformed STL binary, length<84");
+		// the header says how many triangles follow, trailing bytes are ignored
+		long numberTriangles = in.getInt(BINARY_HEADER_SIZE) & 0xffffffffL;
+		long available = (in.limit() - BINARY_DATA_OFFSET) / BINARY_TRIANGLE_SIZE;
+		if(numberTriangles > available) throw new IllegalArgumentException(
+				"Malformed STL binary at triangle number " + (available+1));
+		Mesh triangles = new Mesh((int) numberTriangles);
+		for(int offset = BINARY_DATA_OFFSET; triangles.size() < numberTriangles; offset += BINARY_TRIANGLE_SIZE) {
+			// the normal at offset is recalculated by Mesh, the attribute at offset+48 isn't used (yet)
+			try {
+				triangles.add(in.getFloat(offset + 12), in.getFloat(offset + 16), in.getFloat(offset + 20),
+						in.getFloat(offset + 24), in.getFloat(offset + 28), in.getFloat(offset + 32),
+						in.getFloat(offset + 36), in.getFloat(offset + 40), in.getFloat(offset + 44));
+			} catch (IllegalArgumentException ex) {
 				throw new IllegalArgumentException("Malformed STL binary at triangle number " + (triangles.size()+1), ex);
 			}
-		}catch(IOException ex){
-			// IO exceptions are impossible with byte array input streams, 
-			// but still need to be caught
-			System.err.println("HOLY SHIT! A ByteArrayInputStream threw an exception!");
 		}
 		return triangles;
 	}
@@ -0,0 +1,412 @@
+package robprakt.cutting;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * STLReader reads the triangles of an ASCII or binary STL file while the file is being read, instead of
+ * parsing the whole file first like STLParser.parseSTLMesh does. Only a buffer and the triangles of one
+ * block are kept in memory, so statistics, bounds or validation can run over files larger than the heap
+ * and start as soon as the first bytes have arrived.
+ *
+ * The triangles are delivered in the order of the file, either block by block to a BlockVisitor or one
+ * by one by a Spliterator or Stream. The format is detected like STLParser does it, the normals given in
+ * the file are recalculated by Mesh, so triangles without area are reported as malformed.
+ * The reader is meant to be used by one thread and has to be closed.
+ */
+public class STLReader implements Closeable {
+
+	/**
+	 * default number of triangles per block
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+	/**
+	 * size of the buffer in bytes, which is also the maximal length of a token in ASCII files
+	 */
+	private static final int BUFFER_SIZE = 64 << 10;
+
+	/**
+	 * number of bytes the format is detected from
+	 */
+	private static final int HEAD_SIZE = 512;
+
+	/**
+	 * Gets the triangles of a file block by block.
+	 */
+	public interface BlockVisitor {
+
+		/**
+		 * Is called for every block of triangles in the order of the file.
+		 * @param block the triangles of the block, the mesh is reused for the next block and must not be kept
+		 * @param first index of the first triangle of the block in the file
+		 */
+		void visit(Mesh block, long first);
+	}
+
+	/**
+	 * channel the file is read from
+	 */
+	private final ReadableByteChannel channel;
+
+	/**
+	 * bytes read but not parsed yet are between position and limit
+	 */
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * true if the channel has no more bytes
+	 */
+	private boolean endOfInput;
+
+	/**
+	 * true for an ASCII file
+	 */
+	private final boolean ascii;
+
+	/**
+	 * number of triangles given in the header of a binary file, -1 for ASCII files
+	 */
+	private final long declaredCount;
+
+	/**
+	 * number of triangles read so far
+	 */
+	private long count;
+
+	/**
+	 * coordinates of the vertices of the triangle read last
+	 */
+	private final float[] vertices = new float[9];
+
+	/**
+	 * the token of an ASCII file read last is between these positions of the buffer
+	 */
+	private int tokenStart, tokenEnd;
+
+	/**
+	 * Constructor of the reader, which reads the start of the file to detect the format.
+	 * @param channel blocking channel the file is read from, closed with the reader
+	 * @throws IOException if the file can't be read
+	 * @throws IllegalArgumentException if a binary file is shorter than its header
+	 */
+	public STLReader(ReadableByteChannel channel) throws IOException {
+		this.channel = channel;
+		buffer.limit(0);
+		fill(HEAD_SIZE);
+		ascii = STLParser.isASCII(buffer);
+		if(ascii) {
+			declaredCount = -1;
+		} else {
+			if(buffer.remaining() < STLParser.BINARY_DATA_OFFSET) throw new IllegalArgumentException("invalid binary file, length<84");
+			declaredCount = buffer.getInt(STLParser.BINARY_HEADER_SIZE) & 0xffffffffL;
+			buffer.position(STLParser.BINARY_DATA_OFFSET);
+		}
+	}
+
+	/**
+	 * Opens a file for reading.
+	 * @param filepath the file
+	 * @return the reader
+	 * @throws IOException if the file can't be opened or read
+	 * @throws IllegalArgumentException if a binary file is shorter than its header
+	 */
+	public static STLReader open(Path filepath) throws IOException {
+		FileChannel channel = FileChannel.open(filepath, StandardOpenOption.READ);
+		try {
+			return new STLReader(channel);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks the format of the file
+	 * @return true for an ASCII file, false for a binary file
+	 */
+	public boolean isASCII() {
+		return ascii;
+	}
+
+	/**
+	 * Getter for the number of triangles given in the header of a binary file
+	 * @return the number of triangles, -1 for ASCII files which have no header
+	 */
+	public long getDeclaredCount() {
+		return declaredCount;
+	}
+
+	/**
+	 * Getter for the number of triangles read so far
+	 * @return the number of triangles
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Reads the next triangles into a mesh.
+	 * @param block the mesh the triangles are added to
+	 * @param max maximal number of triangles to read
+	 * @return number of triangles read, 0 at the end of the file
+	 * @throws IOException if the file can't be read
+	 * @throws IllegalArgumentException if the file is not properly formatted
+	 */
+	public int read(Mesh block, int max) throws IOException {
+		int read = 0;
+		while(read < max && (ascii ? readASCIIFacet() : readBinaryFacet())) {
+			try {
+				block.add(vertices[0], vertices[1], vertices[2], vertices[3], vertices[4], vertices[5],
+						vertices[6], vertices[7], vertices[8]);
+			} catch (IllegalArgumentException e) {
+				throw ascii ? malformed(e) : new IllegalArgumentException("Malformed STL binary at triangle number " + (count + 1), e);
+			}
+			count++;
+			read++;
+		}
+		return read;
+	}
+
+	/**
+	 * Reads the rest of the file block by block.
+	 * @param blockSize maximal number of triangles per block
+	 * @param visitor gets the blocks
+	 * @return number of triangles of the file
+	 * @throws IOException if the file can't be read
+	 * @throws IllegalArgumentException if the file is not properly formatted
+	 */
+	public long accept(int blockSize, BlockVisitor visitor) throws IOException {
+		if(blockSize < 1) throw new IllegalArgumentException("[STLReader] Block size has to be at least 1.");
+		Mesh block = new Mesh(blockSize);
+		while(true) {
+			long first = count;
+			block.clear();
+			if(read(block, blockSize) == 0) return count;
+			visitor.visit(block, first);
+		}
+	}
+
+	/**
+	 * Returns a spliterator over the rest of the file, which reads a block whenever the previous one is used up.
+	 * Splitting hands the next block to another spliterator, so parallel streams read ahead.
+	 * Errors are thrown as UncheckedIOException or IllegalArgumentException.
+	 * @param blockSize number of triangles per block
+	 * @return the spliterator
+	 */
+	public Spliterator<Triangle> spliterator(int blockSize) {
+		if(blockSize < 1) throw new IllegalArgumentException("[STLReader] Block size has to be at least 1.");
+		return new TriangleSpliterator(blockSize);
+	}
+
+	/**
+	 * Returns a sequential stream over the rest of the file, closing the stream closes the reader.
+	 * @return the stream
+	 */
+	public Stream<Triangle> stream() {
+		return StreamSupport.stream(spliterator(DEFAULT_BLOCK_SIZE), false).onClose(() -> {
+			try {
+				close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Reads the next triangle of a binary file.
+	 * @return false if all triangles of the header have been read, bytes after them are ignored
+	 */
+	private boolean readBinaryFacet() throws IOException {
+		if(count == declaredCount) return false;
+		if(!fill(STLParser.BINARY_TRIANGLE_SIZE)) throw new IllegalArgumentException("Malformed STL binary at triangle number " + (count + 1));
+		// the normal at offset is recalculated by Mesh, the attribute at offset+48 isn't used (yet)
+		int offset = buffer.position();
+		for(int i = 0; i < vertices.length; i++) {
+			vertices[i] = buffer.getFloat(offset + 12 + 4 * i);
+		}
+		buffer.position(offset + STLParser.BINARY_TRIANGLE_SIZE);
+		return true;
+	}
+
+	/**
+	 * Reads the next triangle of an ASCII file, like STLParser.readASCIIMesh does.
+	 * @return false at the end of the file
+	 */
+	private boolean readASCIIFacet() throws IOException {
+		int vertex = -1; // -1 outside of a facet
+		while(nextToken()) {
+			if(isToken(STLParser.FACET)) {
+				if(vertex >= 0) throw malformed(null);
+				vertex = 0;
+			} else if(isToken(STLParser.VERTEX)) {
+				if(vertex < 0 || vertex == 3) throw malformed(null);
+				for(int d = 0; d < 3; d++) {
+					if(!nextToken()) throw malformed(null);
+					try {
+						vertices[3 * vertex + d] = STLParser.parseFloat(buffer, tokenStart, tokenEnd);
+					} catch (NumberFormatException e) {
+						throw malformed(e);
+					}
+				}
+				vertex++;
+			} else if(isToken(STLParser.ENDFACET)) {
+				if(vertex != 3) throw malformed(null);
+				return true;
+			}
+		}
+		if(vertex >= 0) throw malformed(null);
+		return false;
+	}
+
+	/**
+	 * Moves to the next token of an ASCII file, reading more of the file if the token might continue.
+	 * @return false at the end of the file
+	 */
+	private boolean nextToken() throws IOException {
+		while(true) {
+			int p = buffer.position(), limit = buffer.limit();
+			while(p < limit && STLParser.isWhitespace(buffer.get(p))) p++;
+			int q = p;
+			while(q < limit && !STLParser.isWhitespace(buffer.get(q))) q++;
+			buffer.position(p);
+			if(q < limit || (endOfInput && q > p)) {
+				tokenStart = p;
+				tokenEnd = q;
+				buffer.position(q);
+				return true;
+			}
+			if(endOfInput) return false;
+			if(p == 0 && limit == buffer.capacity()) {
+				tokenStart = 0;
+				throw malformed(null);
+			}
+			fill(limit - p + 1);
+		}
+	}
+
+	/**
+	 * Checks if the token read last is a keyword.
+	 * @param keyword the keyword in lower case
+	 * @return true if it is, ignoring case
+	 */
+	private boolean isToken(byte[] keyword) {
+		return tokenEnd - tokenStart == keyword.length && STLParser.startsWith(buffer, tokenStart, keyword);
+	}
+
+	/**
+	 * Reads from the channel until the buffer holds a number of bytes or the file ends.
+	 * @param minimum number of bytes, at most the size of the buffer
+	 * @return true if the buffer holds the bytes
+	 */
+	private boolean fill(int minimum) throws IOException {
+		if(buffer.remaining() >= minimum) return true;
+		buffer.compact();
+		while(buffer.position() < minimum && !endOfInput) {
+			if(channel.read(buffer) < 0) endOfInput = true;
+		}
+		buffer.flip();
+		return buffer.remaining() >= minimum;
+	}
+
+	/**
+	 * Creates the exception for a malformed ASCII file, showing the text around the token read last.
+	 * @param cause the cause, null if there is none
+	 * @return the exception
+	 */
+	private IllegalArgumentException malformed(Exception cause) {
+		int position = Math.min(tokenStart, buffer.limit());
+		int back = Math.max(0, position - 128);
+		int forward = Math.min(buffer.limit(), position + 128);
+		return new IllegalArgumentException("Malformed STL syntax near \"" + STLParser.text(buffer, back, forward) + "\"", cause);
+	}
+
+	/**
+	 * Spliterator reading the file block by block.
+	 */
+	private final class TriangleSpliterator implements Spliterator<Triangle> {
+
+		/**
+		 * number of triangles per block
+		 */
+		private final int blockSize;
+
+		/**
+		 * the current block, reused for the next one
+		 */
+		private final Mesh block;
+
+		/**
+		 * index of the next triangle of the current block
+		 */
+		private int next;
+
+		/**
+		 * Constructor of the spliterator
+		 * @param blockSize number of triangles per block
+		 */
+		TriangleSpliterator(int blockSize) {
+			this.blockSize = blockSize;
+			this.block = new Mesh(blockSize);
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Triangle> action) {
+			if(next == block.size()) {
+				block.clear();
+				next = 0;
+				if(readBlock(block) == 0) return false;
+			}
+			action.accept(block.getTriangle(next++));
+			return true;
+		}
+
+		@Override
+		public Spliterator<Triangle> trySplit() {
+			// the triangles left in the current block come first, so only a used up block can be split off
+			if(next < block.size()) return null;
+			Mesh prefix = new Mesh(blockSize);
+			if(readBlock(prefix) == 0) return null;
+			return prefix.asList().spliterator();
+		}
+
+		@Override
+		public long estimateSize() {
+			return ascii ? Long.MAX_VALUE : declaredCount - count + block.size() - next;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | NONNULL;
+		}
+
+		/**
+		 * Reads a block.
+		 * @param mesh the empty mesh for the block
+		 * @return number of triangles read
+		 */
+		private int readBlock(Mesh mesh) {
+			try {
+				return read(mesh, blockSize);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
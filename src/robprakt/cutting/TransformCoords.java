@@ -1,6 +1,10 @@
 package robprakt.cutting;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.ArrayRealVector;
@@ -9,7 +13,10 @@ import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 
 import robCalibration.QR24;
+import robprakt.Constants;
 import robprakt.graphics.Controller;
+import robprakt.network.HealthMonitor;
+import robprakt.network.PoseParser;
 import robprakt.network.TCPClient;
 
 /**
@@ -143,6 +150,21 @@ public class TransformCoords {
 	 */
 	private TCPClient clientR2;
 	
+	/**
+	 * Measures the pose of the cutter-robot's end-effector, merging queries made at about the same time.
+	 */
+	private final PoseQuery cutterPoseQuery;
+	
+	/**
+	 * Measures the pose of the holder-robot's end-effector, merging queries made at about the same time.
+	 */
+	private final PoseQuery holderPoseQuery;
+	
+	/**
+	 * Watches the connections to the robots, motion commands wait while a robot is unresponsive. Null if not watched.
+	 */
+	private volatile HealthMonitor healthMonitor;
+	
 
 	//===========================
 	//==========METHODS==========
@@ -164,6 +186,8 @@ public class TransformCoords {
 				"[TransformCoords] Workspace position is not defined.");
 		this.clientR1 = clientR1;
 		this.clientR2 = clientR2;
+		this.cutterPoseQuery = new PoseQuery(clientR1);
+		this.holderPoseQuery = new PoseQuery(clientR2);
 		calcCutterRobotToHolderRobot();
 		calcDefaultPoseHoldersEndeffector();
 		calcDefaultPoseWorkspace();
@@ -335,58 +359,148 @@ public class TransformCoords {
 		return client.receiveData();
 	}
 	
+	/**
+	 * send command to server and wait for its response
+	 * no other thread can take the response in between
+	 * @param command to send to server
+	 * @param client TCPClient for sending command to a specific server
+	 * @return server response message
+	 * @throws IllegalStateException if the server didn't answer in time or the connection has been closed
+	 */
+	protected String request(String command, TCPClient client) {
+		try {
+			return client.request(command).get(Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("[TransformCoords] Interrupted while waiting for \"" + command + "\".", e);
+		} catch (ExecutionException | TimeoutException | CancellationException e) {
+			throw new IllegalStateException("[TransformCoords] No response of robot to \"" + command + "\".", e);
+		}
+	}
+	
+	/**
+	 * send an encoded command to server and wait for its response
+	 * no other thread can take the response in between
+	 * If the connection is lost meanwhile and the client reconnects, the command is sent once more,
+	 * which is safe since pose commands move to an absolute pose.
+	 * If a health monitor is set, the command waits while the robot is unresponsive or disconnected.
+	 * @param command encoded command to send to server, e.g. of a PoseCommandEncoder
+	 * @param client TCPClient for sending command to a specific server
+	 * @return server response message
+	 * @throws IllegalStateException if the server didn't answer in time or the connection has been closed
+	 */
+	protected String request(ByteBuffer command, TCPClient client) {
+		//the measured poses are outdated once the robot moves
+		invalidatePose(client);
+		ByteBuffer retry = command.duplicate();
+		try {
+			HealthMonitor monitor = this.healthMonitor;
+			if(monitor != null && !monitor.awaitUsable(client, Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				throw new IllegalStateException("[TransformCoords] Connection to robot " + client.getName() + " is not healthy: "
+						+ monitor.getHealth(client));
+			}
+			try {
+				return client.request(command).get(Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			} catch (ExecutionException e) {
+				if(!client.awaitRecovery(e.getCause(), Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) throw e;
+				System.out.println("[TransformCoords] Sending pose command again after reconnecting.");
+				return client.request(retry).get(Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("[TransformCoords] Interrupted while waiting for the robot's response.", e);
+		} catch (ExecutionException | TimeoutException | CancellationException e) {
+			throw new IllegalStateException("[TransformCoords] No response of robot to pose command.", e);
+		}
+	}
+	
 	/**
 	 * Measures the current pose data of the cutter-robot's end-effector.
+	 * A measurement which has been requested within the time to live of the pose query is reused.
 	 * @return 	currentCutterRobotEndeffectorPose RealMatrix containing homogeneous pose data of the cutter-robot's end-effector.
 	 * 			relative to cutter-robot's coordinate-system
 	 */
 	protected RealMatrix measureCutterRobotPose() {
-		send("GetPositionHomRowWise", this.clientR1);
-		return getHomRealMatrix(response(this.clientR1));
+		return getHomRealMatrix(cutterPoseQuery.query(new double[PoseParser.POSE_VALUES]));
+	}
+	
+	/**
+	 * Measures the current pose data of the cutter-robot's end-effector without creating a matrix.
+	 * @param	pose array for the 12 row-wise values of the 3x4 pose matrix
+	 * @param	fresh true if the pose has to be measured after this call, false if a measurement within the time to live will do
+	 * @return 	the given array containing the pose of the cutter-robot's end-effector relative to cutter-robot's coordinate-system
+	 * @throws	IllegalArgumentException if the robot's response isn't a valid pose
+	 */
+	protected double[] measureCutterRobotPose(double[] pose, boolean fresh) {
+		return fresh ? cutterPoseQuery.queryFresh(pose) : cutterPoseQuery.query(pose);
 	}
 	
 	/**
 	 * Measures the current pose data of the holder-robot's end-effector.
+	 * A measurement which has been requested within the time to live of the pose query is reused.
 	 * @return 	currentHolderRobotEndeffectorPose RealMatrix containing homogeneous pose data of the holder-robot's end-effector.
 	 * 			relative to holder-robot's coordinate-system
 	 */
 	protected RealMatrix measureHolderRobotPose() {
-		send("GetPositionHomRowWise", this.clientR2);
-		return getHomRealMatrix(response(this.clientR2));
+		return getHomRealMatrix(holderPoseQuery.query(new double[PoseParser.POSE_VALUES]));
+	}
+	
+	/**
+	 * Measures the current pose data of the holder-robot's end-effector without creating a matrix.
+	 * @param	pose array for the 12 row-wise values of the 3x4 pose matrix
+	 * @param	fresh true if the pose has to be measured after this call, false if a measurement within the time to live will do
+	 * @return 	the given array containing the pose of the holder-robot's end-effector relative to holder-robot's coordinate-system
+	 * @throws	IllegalArgumentException if the robot's response isn't a valid pose
+	 */
+	protected double[] measureHolderRobotPose(double[] pose, boolean fresh) {
+		return fresh ? holderPoseQuery.queryFresh(pose) : holderPoseQuery.query(pose);
+	}
+	
+	/**
+	 * Discards the measured poses of a robot, has to be called when the robot is commanded to move.
+	 * @param client client of the robot
+	 */
+	protected void invalidatePose(TCPClient client) {
+		if(client == this.clientR1) cutterPoseQuery.invalidate();
+		if(client == this.clientR2) holderPoseQuery.invalidate();
+	}
+	
+	/**
+	 * Setter for the health monitor, pose commands wait while the robot is unresponsive or disconnected
+	 * @param healthMonitor monitor watching the clients of the robots, null to send pose commands right away
+	 */
+	public void setHealthMonitor(HealthMonitor healthMonitor) {
+		this.healthMonitor = healthMonitor;
+	}
+	
+	/**
+	 * Getter for the pose query of the cutter-robot, e.g. for setting the time to live
+	 * @return the pose query of the cutter-robot
+	 */
+	public PoseQuery getCutterPoseQuery() {
+		return this.cutterPoseQuery;
+	}
+	
+	/**
+	 * Getter for the pose query of the holder-robot, e.g. for setting the time to live
+	 * @return the pose query of the holder-robot
+	 */
+	public PoseQuery getHolderPoseQuery() {
+		return this.holderPoseQuery;
 	}
 	
 	/**
 	 * Returns RealMatrix containing pose data of the robot's end-effector
-	 * @param positionHomRowWise String contains pose data of the robot's end-effector
+	 * @param pose row-wise values of the 3x4 pose of the robot's end-effector
 	 * @return RealMatrix containing pose data of the robot's end-effector
 	 */
-	private static RealMatrix getHomRealMatrix(String positionHomRowWise) {
-		String[] splitStringHomMatrix = positionHomRowWise.split("\s");
-		double[] row1 = new double[4];
-		double[] row2 = new double[4];
-		double[] row3 = new double[4];
-		ArrayList<double[]> rows = new ArrayList<double[]>();
-		rows.add(row1);
-		rows.add(row2);
-		rows.add(row3);
-		
-		try
-	    {
-			for(int row = 0; row < 3; row++) {
-				double[] currentRow = rows.get(row);
-				//TODO: @Micha --> Werden die Werte beim Setzen in currentRow auch in die eizelnen rows gesetzt?
-				//TODO: Eigentlich drfte ja currentRow die Objekte von row1,2 & 3 erhalten, sodass das klappen drfte.
-				for(int col = 0; col < 4; col++) {
-					currentRow[col] = Double.parseDouble(splitStringHomMatrix[row*4 + col]);
-				}
-			}
-	    }
-	    catch (NumberFormatException nfe)
-	    {
-	      System.out.println("[TransformCoords] An error occured while converting an string array (pose data) to double array.");
-	    }
-		double[][] matrix2dDoubleArray = new double[][] {rows.get(0),rows.get(1),rows.get(2),{0,0,0,1}};
-		return new Array2DRowRealMatrix(matrix2dDoubleArray);
+	private static RealMatrix getHomRealMatrix(double[] pose) {
+		double[][] matrix2dDoubleArray = new double[4][4];
+		for(int row = 0; row < 3; row++) {
+			System.arraycopy(pose, row*4, matrix2dDoubleArray[row], 0, 4);
+		}
+		matrix2dDoubleArray[3][3] = 1;
+		return new Array2DRowRealMatrix(matrix2dDoubleArray, false);
 	}
 	
 	
@@ -21,6 +21,16 @@ public class Triangle {
 		this.normal = Vector3D.crossProduct(edge1, edge2).normalize();
 	}
 	
+	/**
+	 * Constructor of a triangle whose normal is known already, e.g. of a Mesh
+	 * @param vertices the three vertices
+	 * @param normal the unit normal
+	 */
+	Triangle(Vector3D[] vertices, Vector3D normal) {
+		this.vertices = vertices;
+		this.normal = normal;
+	}
+	
 	public Vector3D[] getVertices() {
 		return this.vertices;
 	}
@@ -12,8 +12,13 @@ import java.awt.event.ActionListener;
 import java.text.NumberFormat;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFormattedTextField;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
 import javax.swing.text.NumberFormatter;
 
 import org.apache.commons.math3.linear.ArrayRealVector;
@@ -61,6 +66,16 @@ public class CalibrationMenu extends JPanel{
 	 */
 	private JButton btnCalR1,btnCalR2;
 	
+	/**
+	 * Switch for measuring while the robot is still moving [QR24]
+	 */
+	private JCheckBox sampleWhileMovingBox;
+	
+	/**
+	 * Choices of the markers mounted on the robots, filled with the markers listed by the tracking-system
+	 */
+	private JComboBox<String> markerBoxR1,markerBoxR2;
+	
 
 	public CalibrationMenu(Controller c,MainFrame m, QR24 cal) {
 		this.controller = c;
@@ -105,6 +120,12 @@ public class CalibrationMenu extends JPanel{
 		midPointBtnGBS.gridx = 0;
 		midPointBtnGBS.gridy = 0;
 		
+		//switch for measuring while the robot is still moving
+		GridBagConstraints sampleWhileMovingGBS = new GridBagConstraints();
+		sampleWhileMovingGBS.gridx = 1;
+		sampleWhileMovingGBS.gridy = 0;
+		sampleWhileMovingGBS.insets = insets;
+		
 		
 		//buttons for calibration START
 		//cutter-robot
@@ -118,6 +139,13 @@ public class CalibrationMenu extends JPanel{
 		btnCalGBS2.gridx = 1;
 		btnCalGBS2.gridy = 0;
 		btnCalGBS2.insets = insets;
+		//markers of the robots below their buttons
+		GridBagConstraints markerGBS1 = new GridBagConstraints();
+		markerGBS1.gridx = 0;
+		markerGBS1.gridy = 1;
+		GridBagConstraints markerGBS2 = new GridBagConstraints();
+		markerGBS2.gridx = 1;
+		markerGBS2.gridy = 1;
 		
 		
 		//format for integer text fields
@@ -141,6 +169,10 @@ public class CalibrationMenu extends JPanel{
 		midpointBtn.setPreferredSize(midpointBtnDim);
 		midpointBtn.setFont(new Font("Arial", Font.PLAIN, 15));
 		
+		//creating switch for measuring while the robot is still moving
+		sampleWhileMovingBox = new JCheckBox("<html>Measure while the robot<br>is still <b>moving</b></html>");
+		sampleWhileMovingBox.setFont(new Font("Arial", Font.PLAIN, 15));
+		
 		//creating buttons for starting calibration of robots
 		btnCalR1 = new JButton("<html><center><b>START CALIBRATION</b><br><i>CUTTER-ROBOT</i></center></html>");
 		btnCalR2 = new JButton("<html><center><b>START CALIBRATION</b><br><i>HOLDER-ROBOT</i></center></html>");
@@ -149,12 +181,19 @@ public class CalibrationMenu extends JPanel{
 		btnCalR1.setFont(new Font("Arial", Font.PLAIN, 15));
 		btnCalR2.setFont(new Font("Arial", Font.PLAIN, 15));
 		
+		//creating choices of the markers mounted on the robots
+		markerBoxR1 = createMarkerBox(controller.getClientR1());
+		markerBoxR2 = createMarkerBox(controller.getClientR2());
+		
 		//adding components calibrationMenu
 		row1.add(txtNumMsr,txtGBS);
 		row1.add(numBtn,numBtnGBS);
 		row2.add(midpointBtn,midPointBtnGBS);
+		row2.add(sampleWhileMovingBox,sampleWhileMovingGBS);
 		row3.add(btnCalR1,btnCalGBS1);
 		row3.add(btnCalR2,btnCalGBS2);
+		row3.add(markerBoxR1,markerGBS1);
+		row3.add(markerBoxR2,markerGBS2);
 		
 		//#########################
 		//########LISTENERS########
@@ -186,21 +225,38 @@ public class CalibrationMenu extends JPanel{
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				//send pose request to cutter-robot
+				//send pose request to cutter-robot, the button is updated when the robot answered
 				TCPClient client = controller.getClientR1();
-				if(!controller.send("GetPositionHomRowWise", client)) {
-					midpointBtn.setText("<html><center><b>SENDING TO ROBOT FAILED</b><br>Setting current CUTTER-ROBOT<br>pose to <b>midpoint</b>.</center></html>");
-					midpointBtn.setBackground(Color.RED);
-					return;
-				};
-				//if send was successful -> save homogeneous matrix in localWorkspaceMidpoint of QR24 calibration object
-				String response = controller.response(client);
+				controller.request("GetPositionHomRowWise", client, Constants.RESPONSE_TIMEOUT_MS)
+						.whenComplete((response, error) -> SwingUtilities.invokeLater(() -> {
+							if(error == null) {
+								setMidpoint(response);
+							} else {
+								midpointBtn.setText("<html><center><b>SENDING TO ROBOT FAILED</b><br>Setting current CUTTER-ROBOT<br>pose to <b>midpoint</b>.</center></html>");
+								midpointBtn.setBackground(Color.RED);
+							}
+						}));
+			}
+			
+			/**
+			 * Saves the pose of the cutter-robot as midpoint of the workspace.
+			 * @param response response of the cutter-robot to GetPositionHomRowWise
+			 */
+			private void setMidpoint(String response) {
+				//if request was successful -> save homogeneous matrix in localWorkspaceMidpoint of QR24 calibration object
 				if(response==null) {
 					System.out.println("[CalibrationMenu] Error, check connection to cutting Robot!");
 					midpointBtn.setBackground(Color.RED);
 					return;
 				}
-				double[] doubleArray = Constants.convertPoseDataToDoubleArray(response, 0);
+				double[] doubleArray;
+				try {
+					doubleArray = Constants.convertPoseDataToDoubleArray(response, 0);
+				} catch (IllegalArgumentException e1) {
+					System.out.println("[CalibrationMenu] " + e1.getMessage());
+					midpointBtn.setBackground(Color.RED);
+					return;
+				}
 				calibration.setLocalWorkspaceMidpoint(doubleArray);
 				calibration.setInitialMarkerPose(doubleArray);
 				TransformCoords.initialWorkspacePositionRelCutterRobot = new ArrayRealVector(new double[] {doubleArray[3],doubleArray[3+4],doubleArray[3+4+4]});
@@ -209,12 +265,23 @@ public class CalibrationMenu extends JPanel{
 				//TODO: nicht nochmal durchgefhrt werden kann.
 			}
 		};
+		//switching between measuring while moving and waiting for the robot to stop
+		ActionListener actionListenerSampleWhileMoving = new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				calibration.setSampleWhileMoving(sampleWhileMovingBox.isSelected(), QR24.DEFAULT_SAMPLING_SPEED, QR24.DEFAULT_SAMPLING_DISTANCE);
+			}
+		};
 		//starting calibration process for cutter-robot
 		ActionListener actionListenerbtnCalR1 = new ActionListener() {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
 				TCPClient client = controller.getClientR1();
+				//the marker has to be polled in the background for measuring while the robot moves
+				boolean sampleWhileMoving = sampleWhileMovingBox.isSelected();
+				if(sampleWhileMoving) controller.startTracking(client);
 				try {
 					if(calibration.measuring(client)) {
 						btnCalR1.setBackground(Color.GREEN);
@@ -232,6 +299,8 @@ public class CalibrationMenu extends JPanel{
 				} catch (Exception e1) {
 					System.out.println("During calibration something went wrong. Please visit: [QR24 --> calibrate] ");
 					e1.printStackTrace();
+				} finally {
+					if(sampleWhileMoving) controller.stopTracking();
 				}
 			}
 		};
@@ -241,6 +310,9 @@ public class CalibrationMenu extends JPanel{
 			@Override
 			public void actionPerformed(ActionEvent e) {
 				TCPClient client = controller.getClientR2();
+				//the marker has to be polled in the background for measuring while the robot moves
+				boolean sampleWhileMoving = sampleWhileMovingBox.isSelected();
+				if(sampleWhileMoving) controller.startTracking(client);
 				try {
 					if(calibration.measuring(client)) {
 						btnCalR2.setBackground(Color.GREEN);
@@ -258,6 +330,8 @@ public class CalibrationMenu extends JPanel{
 				} catch (Exception e1) {
 					System.out.println("During calibration something went wrong. Please visit: [QR24 --> calibrate] ");
 					e1.printStackTrace();
+				} finally {
+					if(sampleWhileMoving) controller.stopTracking();
 				}
 			}
 		};
@@ -265,7 +339,47 @@ public class CalibrationMenu extends JPanel{
 		//adding actionListeners to buttons
 		numBtn.addActionListener(actionListenerNumMeasure);
 		midpointBtn.addActionListener(actionListeneMidpointBtn);
+		sampleWhileMovingBox.addActionListener(actionListenerSampleWhileMoving);
 		btnCalR1.addActionListener(actionListenerbtnCalR1);
 		btnCalR2.addActionListener(actionListenerbtnCalR2);
 	}
+	
+	/**
+	 * Creates the choice of the marker mounted on a robot.
+	 * The choice is filled with the markers listed by the tracking-system when it is opened,
+	 * until then the marker selected by the handshake is assigned to the robot.
+	 * @param robot client of the robot
+	 * @return the choice
+	 */
+	private JComboBox<String> createMarkerBox(TCPClient robot) {
+		JComboBox<String> box = new JComboBox<String>();
+		box.setFont(new Font("Arial", Font.PLAIN, 15));
+		box.setToolTipText("marker mounted on the robot");
+		box.addPopupMenuListener(new PopupMenuListener() {
+
+			@Override
+			public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+				//refilling fires selections, so the current marker is restored afterwards
+				String marker = controller.getMarker(robot);
+				box.removeAllItems();
+				for(String tracker : controller.getTrackers()) {
+					box.addItem(tracker);
+				}
+				if(marker != null) box.setSelectedItem(marker);
+			}
+
+			@Override
+			public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
+			}
+
+			@Override
+			public void popupMenuCanceled(PopupMenuEvent e) {
+			}
+		});
+		box.addActionListener(e -> {
+			String marker = (String) box.getSelectedItem();
+			if(marker != null) controller.setMarker(robot, marker);
+		});
+		return box;
+	}
 }
@@ -1,7 +1,28 @@
 package robprakt.graphics;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import robprakt.network.HealthMonitor;
 import robprakt.network.TCPClient;
+import robprakt.network.TimedResponse;
+import robprakt.network.TrafficRecorder;
+import robprakt.tracking.MarkerStream;
+import robprakt.tracking.TrackingDemultiplexer;
+import robprakt.tracking.TrackingStream;
 
+/**
+ * The Controller holds the clients for the cutter-robot, the holder-robot and the tracking-system.
+ * All three clients are serviced by the I/O thread of the default SelectorLoop, so sending
+ * never blocks the calling thread and traffic to all servers can be in flight at the same time.
+ */
 public class Controller {
 	
 	private MainFrame frame;
@@ -21,8 +42,45 @@ public class Controller {
 	 */
 	private TCPClient clientTS = new TCPClient();
 	
+	/**
+	 * records the traffic of all clients, null if not recording
+	 */
+	private TrafficRecorder recorder;
+	
+	/**
+	 * polls the tracking-system in the background, null if not started
+	 */
+	private TrackingStream trackingStream;
+	
+	/**
+	 * names of the markers listed by the tracking-system
+	 */
+	private String[] trackers = new String[0];
+	
+	/**
+	 * the marker mounted on each robot
+	 */
+	private final Map<TCPClient, String> markers = new HashMap<TCPClient, String>();
+	
+	/**
+	 * polls the markers of both robots in the background, null if not started
+	 */
+	private TrackingDemultiplexer markerTracking;
+	
+	/**
+	 * watches the connections of the robots and the tracking-system, null if not started
+	 */
+	private HealthMonitor healthMonitor;
+	
+	/**
+	 * Constructor of the Controller
+	 * @param frame the window of the GUI, null when running headless
+	 */
 	public Controller(MainFrame frame) {
 		this.frame = frame;	
+		clientR1.setName("R1");
+		clientR2.setName("R2");
+		clientTS.setName("TS");
 	}
 	
 	/**
@@ -55,12 +113,27 @@ public class Controller {
 	 * @param port the port on which the server is running
 	 * @param client TCPClient that is initially null. 3 different clients for each server
 	 */
-	protected boolean connect(String ip, int port, TCPClient client) {
+	public boolean connect(String ip, int port, TCPClient client) {
 		client.setIP(ip);
 		client.setPort(port);
 		return client.connect();
 	}
 
+	/**
+	 * reconnect the client automatically when the connection is lost,
+	 * replaying the given handshake after reconnecting
+	 * @param client TCPClient that is needed for Server
+	 * @param handshake commands sent after reconnecting, e.g. "Hello Robot"
+	 */
+	public void enableReconnect(TCPClient client, String... handshake) {
+		List<String> commands = new ArrayList<String>(handshake.length);
+		for(String command : handshake) {
+			commands.add(client == clientTS ? command + "\n" : command); //necessary for tracking system server communication
+		}
+		client.setHandshake(commands);
+		client.setReconnectEnabled(true);
+	}
+	
 	/**
 	 * send command to server suitable to TCPClient by TCPClient
 	 * @param command to send to server
@@ -75,6 +148,283 @@ public class Controller {
 		return false;
 	}
 	
+	/**
+	 * send command to server and get the response as future
+	 * commands of one client are answered in the order they have been requested,
+	 * no other caller can take the response in between
+	 * @param command to send to server
+	 * @param client TCPClient that is needed for Server
+	 * @return future completed with the response of the server
+	 */
+	public CompletableFuture<String> request(String command, TCPClient client) {
+		if(client!=null) {
+			if(client == clientTS) command = command + "\n"; //necessary for tracking system server communication
+			return client.request(command);
+		}
+		return CompletableFuture.failedFuture(new IllegalStateException("ERROR, not connected!"));
+	}
+	
+	/**
+	 * send an encoded command, e.g. of a PoseCommandEncoder, to server and get the response as future
+	 * the command has to be terminated already
+	 * @param command encoded command to send to server
+	 * @param client TCPClient that is needed for Server
+	 * @return future completed with the response of the server
+	 */
+	public CompletableFuture<String> request(ByteBuffer command, TCPClient client) {
+		if(client!=null) {
+			return client.request(command);
+		}
+		return CompletableFuture.failedFuture(new IllegalStateException("ERROR, not connected!"));
+	}
+	
+	/**
+	 * send command to server and get the response as future together with the times
+	 * the command has been sent and the response has been received
+	 * @param command to send to server
+	 * @param client TCPClient that is needed for Server
+	 * @return future completed with the timed response of the server
+	 */
+	public CompletableFuture<TimedResponse> requestTimed(String command, TCPClient client) {
+		if(client!=null) {
+			if(client == clientTS) command = command + "\n"; //necessary for tracking system server communication
+			return client.requestTimed(command);
+		}
+		return CompletableFuture.failedFuture(new IllegalStateException("ERROR, not connected!"));
+	}
+	
+	/**
+	 * send command to server and get the response as future, which fails with a
+	 * TimeoutException if the server doesn't answer in time
+	 * @param command to send to server
+	 * @param client TCPClient that is needed for Server
+	 * @param timeoutMillis time to wait for the response in milliseconds
+	 * @return future completed with the response of the server
+	 */
+	public CompletableFuture<String> request(String command, TCPClient client, long timeoutMillis) {
+		return request(command, client).orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * send commands pipelined to the server and wait for all responses
+	 * at most the pipeline window of the client is outstanding at once
+	 * @param commands to send to server
+	 * @param client TCPClient that is needed for Server
+	 * @return responses in the order of the commands, or null if there is no client
+	 */
+	public List<String> sendPipelined(List<String> commands, TCPClient client) {
+		if(client!=null) {
+			if(client == clientTS) {
+				//necessary for tracking system server communication
+				List<String> terminated = new ArrayList<String>(commands.size());
+				for(String command : commands) terminated.add(command + "\n");
+				commands = terminated;
+			}
+			return client.sendPipelined(commands);
+		}
+		return null;
+	}
+	
+	/**
+	 * print the round-trip latencies of the robots and the tracking-system to the console periodically
+	 * @param periodMillis time between two reports in milliseconds
+	 */
+	public void startLatencyDump(long periodMillis) {
+		for(TCPClient client : new TCPClient[] {clientR1, clientR2, clientTS}) {
+			client.getLatencyStats().startDump(periodMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * stop printing the round-trip latencies
+	 */
+	public void stopLatencyDump() {
+		for(TCPClient client : new TCPClient[] {clientR1, clientR2, clientTS}) {
+			client.getLatencyStats().stopDump();
+		}
+	}
+	
+	/**
+	 * record all commands and responses of the robots and the tracking-system into a log file,
+	 * which can be replayed with a TrafficReplayer
+	 * @param log the log file, overwritten if it exists
+	 * @throws IOException if the log file couldn't be created
+	 */
+	public synchronized void startRecording(Path log) throws IOException {
+		stopRecording();
+		recorder = new TrafficRecorder(log);
+		for(TCPClient client : new TCPClient[] {clientR1, clientR2, clientTS}) {
+			client.setRecorder(recorder);
+		}
+	}
+	
+	/**
+	 * stop recording and close the log file
+	 */
+	public synchronized void stopRecording() {
+		if(recorder == null) return;
+		for(TCPClient client : new TCPClient[] {clientR1, clientR2, clientTS}) {
+			client.setRecorder(null);
+		}
+		try {
+			recorder.close();
+		} catch (IOException e) {
+			System.err.println("[Controller] Couldn't close traffic log: " + e.getMessage());
+		}
+		recorder = null;
+	}
+	
+	/**
+	 * start watching the connections of both robots and the tracking-system,
+	 * idle connections are probed with IsAdept and CM_GETSYSTEM
+	 * @return the monitor, the same one if it has been started already
+	 */
+	public synchronized HealthMonitor startHealthMonitor() {
+		if(healthMonitor == null) {
+			healthMonitor = new HealthMonitor();
+			healthMonitor.watch(clientR1, "IsAdept");
+			healthMonitor.watch(clientR2, "IsAdept");
+			healthMonitor.watch(clientTS, "CM_GETSYSTEM\n"); //necessary for tracking system server communication
+		}
+		healthMonitor.start();
+		return healthMonitor;
+	}
+	
+	/**
+	 * stop watching the connections
+	 */
+	public synchronized void stopHealthMonitor() {
+		if(healthMonitor != null) healthMonitor.stop();
+	}
+	
+	/**
+	 * Getter for the monitor watching the connections
+	 * @return the monitor or null if it has never been started
+	 */
+	public synchronized HealthMonitor getHealthMonitor() {
+		return healthMonitor;
+	}
+	
+	/**
+	 * start polling the tracking-system in the background, the marker has to be selected already
+	 * @return the stream holding the latest samples
+	 */
+	public synchronized TrackingStream startTrackingStream() {
+		stopMarkerTracking();
+		if(trackingStream == null) trackingStream = new TrackingStream(clientTS);
+		trackingStream.start();
+		return trackingStream;
+	}
+	
+	/**
+	 * stop polling the tracking-system
+	 */
+	public synchronized void stopTrackingStream() {
+		if(trackingStream != null) trackingStream.stop();
+	}
+	
+	/**
+	 * Getter for the stream polling the tracking-system
+	 * @return the stream or null if it has never been started
+	 */
+	public synchronized TrackingStream getTrackingStream() {
+		return trackingStream;
+	}
+	
+	/**
+	 * Setter for the markers listed by the tracking-system
+	 * the first one, which the handshake selects, is assigned to both robots like the calibration
+	 * without background polling measures it, unless another marker has been assigned with setMarker
+	 * @param trackers names of the markers as listed by CM_GETTRACKERS
+	 */
+	public synchronized void setTrackers(String[] trackers) {
+		this.trackers = trackers.clone();
+		if(trackers.length > 0) {
+			markers.putIfAbsent(clientR1, trackers[0]);
+			markers.putIfAbsent(clientR2, trackers[0]);
+		}
+	}
+	
+	/**
+	 * Getter for the markers listed by the tracking-system
+	 * @return names of the markers, empty if not connected yet
+	 */
+	public synchronized String[] getTrackers() {
+		return trackers.clone();
+	}
+	
+	/**
+	 * assign the marker mounted on a robot
+	 * @param robot client of the robot
+	 * @param marker name of the marker
+	 */
+	public synchronized void setMarker(TCPClient robot, String marker) {
+		markers.put(robot, marker);
+	}
+	
+	/**
+	 * Getter for the marker mounted on a robot
+	 * @param robot client of the robot
+	 * @return name of the marker or null if none has been assigned
+	 */
+	public synchronized String getMarker(TCPClient robot) {
+		return markers.get(robot);
+	}
+	
+	/**
+	 * start polling the markers of both robots in the background on the connection to the tracking-system,
+	 * both markers are measured in the same cycle
+	 * no TrackingStream must run meanwhile, as the selected marker changes all the time
+	 * unless it is running already, the markers currently assigned to the robots are polled
+	 * @return the demultiplexer holding the samples of each marker
+	 */
+	public synchronized TrackingDemultiplexer startMarkerTracking() {
+		stopTrackingStream();
+		if(markerTracking == null || !markerTracking.isRunning()) markerTracking = new TrackingDemultiplexer(clientTS);
+		for(String marker : markers.values()) {
+			markerTracking.subscribe(marker);
+		}
+		markerTracking.start();
+		return markerTracking;
+	}
+	
+	/**
+	 * stop polling the markers of the robots
+	 */
+	public synchronized void stopMarkerTracking() {
+		if(markerTracking != null) markerTracking.stop();
+	}
+	
+	/**
+	 * start polling the marker of a robot in the background, for measuring while the robot moves
+	 * the markers of the robots are tracked if a marker is assigned to the robot, otherwise the
+	 * selected marker is streamed
+	 * @param robot client of the robot
+	 */
+	public synchronized void startTracking(TCPClient robot) {
+		startMarkerTracking();
+		if(getMarkerStream(robot) == null) startTrackingStream();
+	}
+	
+	/**
+	 * stop polling the tracking-system, whichever way it is polled
+	 */
+	public synchronized void stopTracking() {
+		stopMarkerTracking();
+		stopTrackingStream();
+	}
+	
+	/**
+	 * Getter for the stream of the marker mounted on a robot
+	 * @param robot client of the robot
+	 * @return the stream or null if the markers aren't being tracked or no marker is assigned to the robot
+	 */
+	public synchronized MarkerStream getMarkerStream(TCPClient robot) {
+		String marker = markers.get(robot);
+		if(markerTracking == null || !markerTracking.isRunning() || marker == null) return null;
+		return markerTracking.getStream(marker);
+	}
+	
 	/**
 	 * receive message from server to TCPClient
 	 * @param client contains the client that communicates with the server
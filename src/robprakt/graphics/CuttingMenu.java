@@ -16,10 +16,10 @@ import java.awt.event.KeyListener;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.ArrayList;
 import java.util.Locale;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
@@ -28,8 +28,9 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 
 import robprakt.Constants;
 import robprakt.cutting.CuttingLogic;
+import robprakt.cutting.Mesh;
 import robprakt.cutting.STLParser;
-import robprakt.cutting.Triangle;
+import robprakt.network.HealthMonitor;
 import robprakt.network.TCPClient;
 
 /**
@@ -61,6 +62,11 @@ public class CuttingMenu extends JPanel{
 	 */
 	private JButton startCutting;
 	
+	/**
+	 * switch for streaming the points of a trajectory instead of confirming each one
+	 */
+	private JCheckBox pipelinedBox;
+	
 	/**
 	 * response text field of cutter-robot
 	 */
@@ -72,11 +78,11 @@ public class CuttingMenu extends JPanel{
 	private Controller controller;
 	
 	/**
-	 * List contains triangles from the STL file, that are describing the model.
+	 * Mesh contains triangles from the STL file, that are describing the model.
 	 * The number of triangles determines the number of cuts to completely cut the object.
+	 * Null if no model has been loaded.
 	 */
-	//TODO: Die Triangle mssen nach dem laden hier gespeichert werden.
-	private ArrayList<Triangle> triangles;
+	private Mesh mesh;
 	
 	/**
 	 * Create the frame.
@@ -129,6 +135,12 @@ public class CuttingMenu extends JPanel{
 		startCuttingGBS.anchor = GridBagConstraints.CENTER;
 		startCuttingGBS.insets = new Insets(10,10,10,10);
 		
+		// for pipelined switch
+		GridBagConstraints pipelinedGBS = new GridBagConstraints();
+		pipelinedGBS.gridx = 1;
+		pipelinedGBS.gridy = 0;
+		pipelinedGBS.insets = new Insets(10,10,10,10);
+		
 		
 		// creating text fields
 		// cutter-robot
@@ -156,6 +168,10 @@ public class CuttingMenu extends JPanel{
 		startCutting.setPreferredSize(startCuttingDim);
 		startCutting.setFont(new Font("Arial", Font.BOLD, 11));
 		
+		// creating pipelined switch, only for robot servers queuing the targets
+		pipelinedBox = new JCheckBox("<html>Stream trajectory points<br>(robot server queues targets)</html>");
+		pipelinedBox.setFont(new Font("Arial", Font.PLAIN, 11));
+		
 		//adding components to rows
 		//text fields for commands
 		row1.add(cmdTxtR1,cmdTxtGBS1);
@@ -166,6 +182,8 @@ public class CuttingMenu extends JPanel{
 		
 		//startCutting button
 		row2.add(startCutting,startCuttingGBS);
+		//pipelined switch
+		row2.add(pipelinedBox,pipelinedGBS);
 		
 		//#########################
 		//########LISTENERS########
@@ -187,14 +205,19 @@ public class CuttingMenu extends JPanel{
 				TCPClient clientR2 = controller.getClientR2();
 				if(clientR1 == null || clientR2 == null) throw new NullPointerException(
 						"[CuttingMenu] At least one TCP-Client is not initialized.");
-		//		if(!controller.send("IsAdept", clientR1) && !controller.send("IsAdept", clientR2)) throw new IllegalStateException(
-		//				"[CuttingMenu] At least one connection to a robot server is not healthy. Check IP-address and port of connection.");
+				HealthMonitor healthMonitor = controller.startHealthMonitor();
+				if(!healthMonitor.getHealth(clientR1).getStatus().isUsable() || !healthMonitor.getHealth(clientR2).getStatus().isUsable()) throw new IllegalStateException(
+						"[CuttingMenu] At least one connection to a robot server is not healthy. Check IP-address and port of connection.");
+				
+				if(mesh == null) throw new IllegalStateException("[CuttingMenu] No model loaded. Get the cutting triangles first.");
 				
 				// check if there is already a cutting process running, if so the START-CUTTING button is disabled
 				if(!CuttingLogic.isCuttingActive()) {
-					CuttingLogic cuttingLogic = new CuttingLogic(clientR1,clientR2,triangles);
+					CuttingLogic cuttingLogic = new CuttingLogic(clientR1,clientR2,mesh);
+					cuttingLogic.setHealthMonitor(healthMonitor);
+					cuttingLogic.setPipelined(pipelinedBox.isSelected());
 					try {
-						cuttingLogic.cut();
+						startCutting.setBackground(cuttingLogic.cut() ? Color.GREEN : Color.RED);
 					} catch (Exception e1) {
 						e1.printStackTrace();
 					}
@@ -212,7 +235,6 @@ public class CuttingMenu extends JPanel{
 	 * @param serverType defines which server to communicate with
 	 */
 	private void getTriangles() {
-		ArrayList<Triangle> triangles;
 		JFileChooser fileChooser = new JFileChooser(new File("."));
 		fileChooser.setLocale(Locale.GERMANY);
 		FileNameExtensionFilter filter = new FileNameExtensionFilter("STL 3D Object Files", "stl");
@@ -220,10 +242,8 @@ public class CuttingMenu extends JPanel{
 		int choice = fileChooser.showOpenDialog(null);
 		if(choice == JFileChooser.APPROVE_OPTION) {
 			try {
-				triangles = (ArrayList<Triangle>) STLParser.parseSTLFile(fileChooser.getSelectedFile().toPath());
-				for(Triangle t: triangles) {
-					System.out.println(t);
-				}
+				mesh = STLParser.parseSTLMesh(fileChooser.getSelectedFile().toPath());
+				System.out.println("[CuttingMenu] Loaded " + mesh.size() + " triangles.");
 				
 			} catch (IOException e) {
 				System.err.println("Error on reading STL File");
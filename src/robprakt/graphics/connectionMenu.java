@@ -15,12 +15,16 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 
 import robprakt.Constants;
+import robprakt.network.ConnectionListener;
 import robprakt.network.TCPClient;
 
 import java.awt.Color;
 import java.awt.Dimension;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -265,11 +269,19 @@ public class connectionMenu extends JPanel {
 				String ip = ipFieldR1.getText();
 				int port = 5005;
 				if(controller.connect(ip,port, controller.getClientR1())) {
-					// initial robot setup
-					controller.send("Hello Robot", controller.getClientR1());
-					System.out.println(controller.response(controller.getClientR1()));
-					connectR1.setText("<html><center>connect to<br>CUTTER-ROBOT<br><b>STATUS:<br>CONNECTED</b></center></html>");
-					connectR1.setBackground(Color.GREEN);
+					// initial robot setup, the button is updated when the robot answered
+					controller.request("Hello Robot", controller.getClientR1(), Constants.RESPONSE_TIMEOUT_MS)
+						.whenComplete((response, error) -> SwingUtilities.invokeLater(() -> {
+							if(error == null) {
+								System.out.println(response);
+								controller.enableReconnect(controller.getClientR1(), "Hello Robot");
+								connectR1.setText("<html><center>connect to<br>CUTTER-ROBOT<br><b>STATUS:<br>CONNECTED</b></center></html>");
+								connectR1.setBackground(Color.GREEN);
+							} else {
+								connectR1.setText("<html><center>connect to<br>CUTTER-ROBOT<br><b>STATUS:<br>FAILED</b></center></html>");
+								connectR1.setBackground(Color.ORANGE);
+							}
+						}));
 				}else {
 					connectR1.setText("<html><center>connect to<br>CUTTER-ROBOT<br><b>STATUS:<br>FAILED</b></center></html>");
 					connectR1.setBackground(Color.ORANGE);
@@ -284,11 +296,19 @@ public class connectionMenu extends JPanel {
 				String ip = ipFieldR2.getText();
 				int port = 5005;
 				if(controller.connect(ip, port, controller.getClientR2())) {
-					// initial robot setup
-					controller.send("Hello Robot", controller.getClientR2());
-					System.out.println(controller.response(controller.getClientR2()));
-					connectR2.setText("<html><center>connect to<br>HOLDER-ROBOT<br><b>STATUS:<br>CONNECTED</b></center></html>");
-					connectR2.setBackground(Color.GREEN);
+					// initial robot setup, the button is updated when the robot answered
+					controller.request("Hello Robot", controller.getClientR2(), Constants.RESPONSE_TIMEOUT_MS)
+						.whenComplete((response, error) -> SwingUtilities.invokeLater(() -> {
+							if(error == null) {
+								System.out.println(response);
+								controller.enableReconnect(controller.getClientR2(), "Hello Robot");
+								connectR2.setText("<html><center>connect to<br>HOLDER-ROBOT<br><b>STATUS:<br>CONNECTED</b></center></html>");
+								connectR2.setBackground(Color.GREEN);
+							} else {
+								connectR2.setText("<html><center>connect to<br>HOLDER-ROBOT<br><b>STATUS:<br>FAILED</b></center></html>");
+								connectR2.setBackground(Color.ORANGE);
+							}
+						}));
 				}else {
 					connectR2.setText("<html><center>connect to<br>HOLDER-ROBOT<br><b>STATUS:<br>FAILED</b></center></html>");
 					connectR2.setBackground(Color.ORANGE);
@@ -304,18 +324,28 @@ public class connectionMenu extends JPanel {
 				TCPClient c = controller.getClientTS();
 				int port = 5000;
 				if(controller.connect(ip, port, c)) {
-					// do initial setup for Tracking System
-					controller.send("CM_GETSYSTEM", c);
-					controller.response(c);
-					controller.send("CM_GETTRACKERS", c);
-					String[] trackers = controller.response(c).split(";");
-					System.out.println("first Tracker: "+trackers[0]);
-					controller.send(trackers[0], c);
-					controller.response(c);
-					controller.send("FORMAT_MATRIXROWWISE", c);
-					controller.response(c);
-					connectTS.setText("<html><center>connect to<br>TRACKING-SYSTEM<br><b>STATUS:<br>CONNECTED</b></center></html>");
-					connectTS.setBackground(Color.GREEN);
+					// do initial setup for Tracking System, each step starts when the previous one has been answered
+					controller.request("CM_GETSYSTEM", c)
+						.thenCompose(system -> controller.request("CM_GETTRACKERS", c))
+						.thenCompose(trackerList -> {
+							String[] trackers = trackerList.split(";");
+							controller.setTrackers(trackers);
+							System.out.println("first Tracker: "+trackers[0]);
+							return controller.request(trackers[0], c);
+						})
+						.thenCompose(selected -> controller.request("FORMAT_MATRIXROWWISE", c))
+						.orTimeout(Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+						.whenComplete((response, error) -> SwingUtilities.invokeLater(() -> {
+							if(error == null) {
+								// the selected marker and the format are restored after reconnecting
+								controller.enableReconnect(c, controller.getTrackers()[0], "FORMAT_MATRIXROWWISE");
+								connectTS.setText("<html><center>connect to<br>TRACKING-SYSTEM<br><b>STATUS:<br>CONNECTED</b></center></html>");
+								connectTS.setBackground(Color.GREEN);
+							} else {
+								connectTS.setText("<html><center>connect to<br>TRACKING-SYSTEM<br><b>STATUS:<br>FAILED</b></center></html>");
+								connectTS.setBackground(Color.ORANGE);
+							}
+						}));
 				}else {
 					connectTS.setText("<html><center>connect to<br>TRACKING-SYSTEM<br><b>STATUS:<br>FAILED</b></center></html>");
 					connectTS.setBackground(Color.ORANGE);
@@ -327,6 +357,59 @@ public class connectionMenu extends JPanel {
 		connectR1.addActionListener(actionListenerbtnR1);
 		connectR2.addActionListener(actionListenerbtnR2);
 		connectTS.addActionListener(actionListenerbtnTS);
+		
+		//showing lost connections and reconnects on the buttons
+		controller.getClientR1().addConnectionListener(new StatusListener(connectR1, "CUTTER-ROBOT"));
+		controller.getClientR2().addConnectionListener(new StatusListener(connectR2, "HOLDER-ROBOT"));
+		controller.getClientTS().addConnectionListener(new StatusListener(connectTS, "TRACKING-SYSTEM"));
+	}
+	
+	/**
+	 * Shows the state of a connection which has been lost on its button.
+	 */
+	private static class StatusListener implements ConnectionListener {
+		
+		/**
+		 * the button of the connection
+		 */
+		private final JButton button;
+		
+		/**
+		 * name of the server shown on the button
+		 */
+		private final String server;
+		
+		StatusListener(JButton button, String server) {
+			this.button = button;
+			this.server = server;
+		}
+		
+		/**
+		 * Sets the status shown on the button.
+		 * @param status the status
+		 * @param color background of the button
+		 */
+		private void show(String status, Color color) {
+			SwingUtilities.invokeLater(() -> {
+				button.setText("<html><center>connect to<br>" + server + "<br><b>STATUS:<br>" + status + "</b></center></html>");
+				button.setBackground(color);
+			});
+		}
+		
+		@Override
+		public void connectionLost(TCPClient client, IOException cause) {
+			show(client.isReconnectEnabled() ? "RECONNECTING" : "DISCONNECTED", client.isReconnectEnabled() ? Color.ORANGE : Color.RED);
+		}
+		
+		@Override
+		public void reconnected(TCPClient client, int attempts) {
+			show("CONNECTED", Color.GREEN);
+		}
+		
+		@Override
+		public void reconnectAbandoned(TCPClient client, int attempts) {
+			show("DISCONNECTED", Color.RED);
+		}
 	}
 	
 	protected JButton getConnectionButton(String serverType) {
@@ -0,0 +1,19 @@
+package robprakt.network;
+
+import java.io.IOException;
+
+/**
+ * A ConnectionHandler serves a single client of a TCPServer.
+ * Every accepted connection is handled on its own thread, so handle may block
+ * while waiting for the next message of its client.
+ */
+public interface ConnectionHandler {
+
+	/**
+	 * Serves a client until the connection ends. The connection is closed by the server
+	 * when this method returns.
+	 * @param connection the connection to the client
+	 * @throws IOException if communicating with the client fails
+	 */
+	void handle(ServerConnection connection) throws IOException;
+}
@@ -0,0 +1,44 @@
+package robprakt.network;
+
+import java.io.IOException;
+
+/**
+ * ConnectionListener is notified when the connection of a TCPClient is lost and when it has
+ * been reconnected. connectionLost is called on the thread receiving the messages of the client,
+ * the other methods on the thread reconnecting the client, so none of them must block.
+ */
+public interface ConnectionListener {
+
+	/**
+	 * Called when the connection has been lost without the client closing it.
+	 * @param client the client
+	 * @param cause the error breaking the connection, null if the server closed it
+	 */
+	default void connectionLost(TCPClient client, IOException cause) {
+	}
+
+	/**
+	 * Called when an attempt to reconnect failed and another one follows.
+	 * @param client the client
+	 * @param attempt number of the failed attempt, counting from 1
+	 * @param delayMillis time until the next attempt
+	 */
+	default void reconnectFailed(TCPClient client, int attempt, long delayMillis) {
+	}
+
+	/**
+	 * Called when the client has been reconnected and the handshake has been replayed.
+	 * @param client the client
+	 * @param attempts number of attempts it took
+	 */
+	default void reconnected(TCPClient client, int attempts) {
+	}
+
+	/**
+	 * Called when the client gave up reconnecting.
+	 * @param client the client
+	 * @param attempts number of attempts made
+	 */
+	default void reconnectAbandoned(TCPClient client, int attempts) {
+	}
+}
@@ -0,0 +1,201 @@
+package robprakt.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the byte stream of a connection into single server messages.
+ * A message ends with the delimiter (a line feed by default), a carriage return in front of
+ * the delimiter and NUL padding are dropped.
+ * The byte buffer, the char buffer and the charset decoder are kept for the whole connection,
+ * so the only allocation per message is the resulting String.
+ * One decoder belongs to exactly one connection and is not thread-safe.
+ */
+class FrameDecoder {
+
+	/**
+	 * delimiter terminating a message
+	 */
+	static final byte DEFAULT_DELIMITER = '\n';
+
+	/**
+	 * initial size of the receive buffer, grows if a single message doesn't fit
+	 */
+	private static final int INITIAL_CAPACITY = 512;
+
+	/**
+	 * the delimiter of this decoder
+	 */
+	private final byte delimiter;
+
+	/**
+	 * cached decoder for converting the bytes of a message to chars
+	 */
+	private final CharsetDecoder charsetDecoder;
+
+	/**
+	 * receive buffer, bytes between start and position haven't been delivered yet
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * reusable target for decoding a single message
+	 */
+	private CharBuffer chars;
+
+	/**
+	 * index of the first byte of the next message
+	 */
+	private int start;
+
+	/**
+	 * index up to which the buffer has already been searched for the delimiter
+	 */
+	private int scanned;
+
+	/**
+	 * creates a decoder for messages terminated by a line feed
+	 */
+	FrameDecoder() {
+		this(DEFAULT_DELIMITER);
+	}
+
+	/**
+	 * creates a decoder for messages terminated by the given delimiter
+	 * @param delimiter the byte terminating a message
+	 */
+	FrameDecoder(byte delimiter) {
+		this.delimiter = delimiter;
+		this.charsetDecoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+		this.chars = CharBuffer.allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Blocks until a complete message has been read from the stream.
+	 * @param in the stream of the connection
+	 * @return the next message without delimiter, or null if the stream ended and no bytes are left
+	 * @throws IOException if reading from the stream fails
+	 */
+	String read(InputStream in) throws IOException {
+		String frame;
+		while((frame = nextFrame()) == null) {
+			if(fill(in) < 0) {
+				return remainder();
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * Returns the next complete message that is already buffered.
+	 * @return the next message without delimiter, or null if there is no complete message yet
+	 */
+	String nextFrame() {
+		byte[] array = buffer.array();
+		int end = buffer.position();
+		for(int i = scanned; i < end; i++) {
+			if(array[i] == delimiter) {
+				String frame = decode(start, i);
+				start = i + 1;
+				scanned = start;
+				if(start == end) {
+					// everything has been delivered, start from the beginning again
+					buffer.clear();
+					start = 0;
+					scanned = 0;
+				}
+				return frame;
+			}
+		}
+		scanned = end;
+		return null;
+	}
+
+	/**
+	 * Reads the next chunk of bytes from the stream into the buffer.
+	 * @param in the stream of the connection
+	 * @return number of bytes read or -1 if the stream ended
+	 * @throws IOException if reading from the stream fails
+	 */
+	int fill(InputStream in) throws IOException {
+		makeRoom();
+		int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+		if(read > 0) buffer.position(buffer.position() + read);
+		return read;
+	}
+
+	/**
+	 * Returns the buffer to write received bytes into, after making room for at least one byte.
+	 * Bytes have to be written at the current position of the buffer.
+	 * @return the receive buffer in write mode
+	 */
+	ByteBuffer writableBuffer() {
+		makeRoom();
+		return buffer;
+	}
+
+	/**
+	 * Returns the bytes which are left after the stream ended as last message.
+	 * @return the left bytes as message or null if there are none
+	 */
+	String remainder() {
+		if(start == buffer.position()) return null;
+		String frame = decode(start, buffer.position());
+		buffer.clear();
+		start = 0;
+		scanned = 0;
+		return frame;
+	}
+
+	/**
+	 * Moves undelivered bytes to the front of the buffer or grows it, if it is full.
+	 */
+	private void makeRoom() {
+		if(buffer.hasRemaining()) return;
+		if(start > 0) {
+			buffer.flip();
+			buffer.position(start);
+			buffer.compact();
+			scanned -= start;
+			start = 0;
+		} else {
+			// a single message is larger than the buffer
+			ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+	}
+
+	/**
+	 * Decodes the bytes between from and to, without carriage return and NUL padding.
+	 * @param from index of the first byte
+	 * @param to index after the last byte
+	 * @return the decoded message
+	 */
+	private String decode(int from, int to) {
+		byte[] array = buffer.array();
+		while(from < to && array[from] == 0) from++;
+		while(to > from && (array[to - 1] == '\r' || array[to - 1] == 0)) to--;
+		if(chars.capacity() < to - from) {
+			chars = CharBuffer.allocate(to - from);
+		}
+		int position = buffer.position();
+		buffer.limit(to).position(from);
+		chars.clear();
+		charsetDecoder.reset();
+		charsetDecoder.decode(buffer, chars, true);
+		charsetDecoder.flush(chars);
+		buffer.limit(buffer.capacity()).position(position);
+		chars.flip();
+		return chars.toString();
+	}
+}
@@ -0,0 +1,487 @@
+package robprakt.network;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HealthMonitor watches the connections of several clients, e.g. the robots and the
+ * tracking-system, while jobs are using them.
+ *
+ * A client which has been idle for a while is sent a lightweight probe like IsAdept. Probes are
+ * only sent while no command of the client is waiting for its response, so they never queue up
+ * behind or in front of a job's commands. Probes aren't recorded by a TrafficRecorder, so a
+ * recorded session replays the same with or without a monitor. A busy client doesn't need probes,
+ * its commands show if the server is alive: once the oldest outstanding command waits longer than
+ * the stall time, the client is unresponsive, well before the command itself times out.
+ *
+ * The round trips of the probes are smoothed and compared to a slowly adapting baseline, a
+ * client whose latency drifts far above its baseline is degraded. Listeners are notified on the
+ * thread of the monitor whenever the status of a client changes, so jobs can pause meanwhile.
+ */
+public class HealthMonitor {
+
+	/**
+	 * the status of a connection
+	 */
+	public enum Status {
+		/**
+		 * nothing is known yet
+		 */
+		UNKNOWN,
+		/**
+		 * the server answers in its usual time
+		 */
+		HEALTHY,
+		/**
+		 * the server answers, but much slower than usual
+		 */
+		DEGRADED,
+		/**
+		 * a command or probe has been waiting longer than the stall time
+		 */
+		UNRESPONSIVE,
+		/**
+		 * the connection is closed or being reconnected
+		 */
+		DISCONNECTED;
+
+		/**
+		 * Checks if commands can be sent
+		 * @return true unless the server is unresponsive or disconnected
+		 */
+		public boolean isUsable() {
+			return this != UNRESPONSIVE && this != DISCONNECTED;
+		}
+	}
+
+	/**
+	 * Listener notified when the status of a connection changes.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on the thread of the monitor when the status of a connection changed.
+		 * @param client the client
+		 * @param previous the status before
+		 * @param health the current health of the connection
+		 */
+		void statusChanged(TCPClient client, Status previous, Health health);
+	}
+
+	/**
+	 * Snapshot of the health of a connection.
+	 */
+	public static final class Health {
+
+		/**
+		 * the status
+		 */
+		private final Status status;
+
+		/**
+		 * smoothed round trip of the probes in nanoseconds, 0 if none has been answered
+		 */
+		private final long latencyNanos;
+
+		/**
+		 * usual round trip of the probes in nanoseconds, 0 if none has been answered
+		 */
+		private final long baselineNanos;
+
+		/**
+		 * time the oldest outstanding command has been waiting in nanoseconds
+		 */
+		private final long pendingAgeNanos;
+
+		Health(Status status, long latencyNanos, long baselineNanos, long pendingAgeNanos) {
+			this.status = status;
+			this.latencyNanos = latencyNanos;
+			this.baselineNanos = baselineNanos;
+			this.pendingAgeNanos = pendingAgeNanos;
+		}
+
+		/**
+		 * Getter for the status
+		 * @return the status of the connection
+		 */
+		public Status getStatus() {
+			return status;
+		}
+
+		/**
+		 * Getter for the latency
+		 * @return smoothed round trip of the probes in nanoseconds, 0 if none has been answered
+		 */
+		public long getLatencyNanos() {
+			return latencyNanos;
+		}
+
+		/**
+		 * Getter for the baseline
+		 * @return usual round trip of the probes in nanoseconds, 0 if none has been answered
+		 */
+		public long getBaselineNanos() {
+			return baselineNanos;
+		}
+
+		/**
+		 * Getter for the drift of the latency
+		 * @return latency divided by the baseline, 1 if there is no baseline yet
+		 */
+		public double getDrift() {
+			return baselineNanos == 0 ? 1 : (double) latencyNanos / baselineNanos;
+		}
+
+		/**
+		 * Getter for the time the oldest outstanding command has been waiting
+		 * @return nanoseconds, 0 if no command is outstanding
+		 */
+		public long getPendingAgeNanos() {
+			return pendingAgeNanos;
+		}
+
+		@Override
+		public String toString() {
+			return status + " (latency " + latencyNanos / 1000 + "us, baseline " + baselineNanos / 1000
+					+ "us, oldest command " + pendingAgeNanos / 1000000 + "ms)";
+		}
+	}
+
+	/**
+	 * default time between two checks in milliseconds
+	 */
+	public static final long DEFAULT_PERIOD_MS = 250;
+
+	/**
+	 * default time a client has to be idle before it is probed in milliseconds
+	 */
+	public static final long DEFAULT_IDLE_MS = 1000;
+
+	/**
+	 * default time a command or probe may wait for its response before the client is unresponsive in milliseconds
+	 */
+	public static final long DEFAULT_STALL_MS = 2000;
+
+	/**
+	 * default factor of the baseline above which the latency is degraded
+	 */
+	public static final double DEFAULT_DRIFT_FACTOR = 3;
+
+	/**
+	 * minimum difference between latency and baseline for being degraded in nanoseconds,
+	 * so the jitter of sub-millisecond round trips doesn't count as drift
+	 */
+	private static final long MIN_DRIFT_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+	/**
+	 * weight of a new probe in the smoothed latency
+	 */
+	private static final double LATENCY_WEIGHT = 0.25;
+
+	/**
+	 * weight of a slower probe in the baseline, faster probes replace the baseline right away
+	 */
+	private static final double BASELINE_WEIGHT = 0.02;
+
+	/**
+	 * A watched client and what is known about it, guarded by the monitor.
+	 */
+	private static final class Target {
+
+		/**
+		 * the client
+		 */
+		final TCPClient client;
+
+		/**
+		 * the probe command
+		 */
+		final String probe;
+
+		/**
+		 * the current status
+		 */
+		Status status = Status.UNKNOWN;
+
+		/**
+		 * smoothed round trip of the probes in nanoseconds, 0 if none has been answered
+		 */
+		long latencyNanos;
+
+		/**
+		 * usual round trip of the probes in nanoseconds, 0 if none has been answered
+		 */
+		long baselineNanos;
+
+		/**
+		 * the probe waiting for its response, null if none
+		 */
+		CompletableFuture<TimedResponse> probing;
+
+		/**
+		 * time the outstanding probe has been sent
+		 */
+		long probeSentNanos;
+
+		/**
+		 * time the last probe has been sent
+		 */
+		long lastProbeNanos;
+
+		Target(TCPClient client, String probe) {
+			this.client = client;
+			this.probe = probe;
+		}
+
+		Health health(long pendingAgeNanos) {
+			return new Health(status, latencyNanos, baselineNanos, pendingAgeNanos);
+		}
+	}
+
+	/**
+	 * the watched clients, guarded by this
+	 */
+	private final Map<TCPClient, Target> targets = new LinkedHashMap<TCPClient, Target>();
+
+	/**
+	 * listeners notified about changes of the status
+	 */
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/**
+	 * runs the checks, null if not started, guarded by this
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * time a client has to be idle before it is probed in nanoseconds
+	 */
+	private volatile long idleNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_MS);
+
+	/**
+	 * time a command or probe may wait before the client is unresponsive in nanoseconds
+	 */
+	private volatile long stallNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_STALL_MS);
+
+	/**
+	 * factor of the baseline above which the latency is degraded
+	 */
+	private volatile double driftFactor = DEFAULT_DRIFT_FACTOR;
+
+	/**
+	 * Adds a client to watch.
+	 * @param client the client
+	 * @param probe lightweight command answered right away by the server, e.g. IsAdept for a robot
+	 */
+	public synchronized void watch(TCPClient client, String probe) {
+		targets.putIfAbsent(client, new Target(client, probe));
+	}
+
+	/**
+	 * Adds a listener notified when the status of a client changes.
+	 * @param listener the listener
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener.
+	 * @param listener the listener
+	 */
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Setter for the thresholds
+	 * @param idle time a client has to be idle before it is probed
+	 * @param stall time a command or probe may wait for its response before the client is unresponsive
+	 * @param unit unit of the times
+	 * @param driftFactor factor of the baseline above which the latency is degraded
+	 */
+	public void setThresholds(long idle, long stall, TimeUnit unit, double driftFactor) {
+		if(driftFactor <= 1) throw new IllegalArgumentException("[HealthMonitor] The drift factor has to be greater than 1.");
+		this.idleNanos = unit.toNanos(idle);
+		this.stallNanos = unit.toNanos(stall);
+		this.driftFactor = driftFactor;
+	}
+
+	/**
+	 * Starts checking every DEFAULT_PERIOD_MS, does nothing if started already.
+	 * The clients are checked once right away, so their status is known when this method returns.
+	 */
+	public synchronized void start() {
+		if(scheduler != null) return;
+		check();
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "robprakt-health");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(this::check, DEFAULT_PERIOD_MS, DEFAULT_PERIOD_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops checking. The last known status stays readable.
+	 */
+	public synchronized void stop() {
+		if(scheduler == null) return;
+		scheduler.shutdownNow();
+		scheduler = null;
+	}
+
+	/**
+	 * Checks if the monitor is running
+	 * @return true if the clients are checked periodically
+	 */
+	public synchronized boolean isRunning() {
+		return scheduler != null;
+	}
+
+	/**
+	 * Returns the health of a client.
+	 * @param client the client
+	 * @return the health as of the last check, null if the client isn't watched
+	 */
+	public synchronized Health getHealth(TCPClient client) {
+		Target target = targets.get(client);
+		return target == null ? null : target.health(client.getPendingAgeNanos());
+	}
+
+	/**
+	 * Waits until a client is usable, e.g. before sending a motion command.
+	 * Clients which aren't watched are always usable.
+	 * @param client the client
+	 * @param timeout the maximum time to wait
+	 * @param unit unit of the timeout
+	 * @return true if the client is usable, false if it is still unresponsive or disconnected
+	 * @throws InterruptedException if the waiting thread has been interrupted
+	 */
+	public synchronized boolean awaitUsable(TCPClient client, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		Target target = targets.get(client);
+		if(target == null) return true;
+		while(!target.status.isUsable()) {
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0) return false;
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Checks all clients, sends the due probes and notifies the listeners about changes.
+	 */
+	private void check() {
+		List<Object[]> changes = new ArrayList<Object[]>();
+		synchronized(this) {
+			long now = System.nanoTime();
+			for(Target target : targets.values()) {
+				TCPClient client = target.client;
+				long pendingAge = client.getPendingAgeNanos();
+				Status status;
+				if(client.isClosed() || client.isReconnecting()) {
+					status = Status.DISCONNECTED;
+					target.probing = null;
+				} else if(pendingAge > stallNanos) {
+					status = Status.UNRESPONSIVE;
+				} else {
+					if(target.probing == null && client.getIdleNanos() >= idleNanos && now - target.lastProbeNanos >= idleNanos) {
+						probe(target, now);
+					}
+					status = latencyStatus(target);
+				}
+				if(status != target.status) {
+					Status previous = target.status;
+					target.status = status;
+					changes.add(new Object[] {client, previous, target.health(pendingAge)});
+				}
+			}
+			if(!changes.isEmpty()) notifyAll();
+		}
+		for(Object[] change : changes) {
+			TCPClient client = (TCPClient) change[0];
+			Status previous = (Status) change[1];
+			Health health = (Health) change[2];
+			System.out.println("[HealthMonitor] " + name(client) + ": " + previous + " -> " + health);
+			for(Listener listener : listeners) {
+				listener.statusChanged(client, previous, health);
+			}
+		}
+	}
+
+	/**
+	 * Sends a probe to an idle client, must be called while holding the monitor.
+	 * @param target the client
+	 * @param now System.nanoTime
+	 */
+	private void probe(Target target, long now) {
+		CompletableFuture<TimedResponse> probing = target.client.probe(target.probe);
+		target.probing = probing;
+		target.probeSentNanos = now;
+		target.lastProbeNanos = now;
+		probing.whenComplete((response, error) -> {
+			synchronized(HealthMonitor.this) {
+				if(target.probing != probing) return;
+				target.probing = null;
+				if(error == null) record(target, response.getRoundTripNanos());
+			}
+		});
+	}
+
+	/**
+	 * Adds the round trip of a probe to the latency and the baseline, must be called while holding the monitor.
+	 * @param target the client
+	 * @param roundTrip round trip of the probe in nanoseconds
+	 */
+	private static void record(Target target, long roundTrip) {
+		if(target.baselineNanos == 0) {
+			target.latencyNanos = roundTrip;
+			target.baselineNanos = roundTrip;
+			return;
+		}
+		target.latencyNanos += (long) (LATENCY_WEIGHT * (roundTrip - target.latencyNanos));
+		if(roundTrip < target.baselineNanos) {
+			target.baselineNanos = roundTrip;
+		} else {
+			target.baselineNanos += (long) (BASELINE_WEIGHT * (roundTrip - target.baselineNanos));
+		}
+	}
+
+	/**
+	 * Rates the latency of a client which answers, must be called while holding the monitor.
+	 * @param target the client
+	 * @return HEALTHY or DEGRADED, UNKNOWN if no probe has been answered yet
+	 */
+	private Status latencyStatus(Target target) {
+		if(target.baselineNanos == 0) {
+			// a client answering its commands is alive, even if it has never been idle for a probe
+			return target.status == Status.UNKNOWN ? Status.UNKNOWN : Status.HEALTHY;
+		}
+		long latency = target.latencyNanos;
+		if(target.probing != null) {
+			// an outstanding probe which is already slow counts, so drift shows before it is answered
+			latency = Math.max(latency, System.nanoTime() - target.probeSentNanos);
+		}
+		long baseline = target.baselineNanos;
+		if(latency > baseline * driftFactor && latency - baseline > MIN_DRIFT_NANOS) return Status.DEGRADED;
+		return Status.HEALTHY;
+	}
+
+	/**
+	 * Returns the name of a client for messages.
+	 * @param client the client
+	 * @return the name or the address
+	 */
+	private static String name(TCPClient client) {
+		return client.getName() != null ? client.getName() : client.getIP() + ":" + client.getPort();
+	}
+}
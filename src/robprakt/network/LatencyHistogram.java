@@ -0,0 +1,185 @@
+package robprakt.network;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts latencies in nanoseconds in logarithmic buckets which are split
+ * linearly into 64 sub-buckets, like an HdrHistogram with two significant digits.
+ * Every recorded value is reported with a relative error below 1.6%, from 1ns up to
+ * Long.MAX_VALUE, with a fixed memory footprint of a few thousand counters.
+ * Recording only increments atomic counters, so any number of threads may record
+ * and read at the same time without locks.
+ */
+public final class LatencyHistogram {
+
+	/**
+	 * number of bits of the sub-bucket index
+	 */
+	private static final int SUB_BUCKET_BITS = 7;
+
+	/**
+	 * values below this are counted exactly
+	 */
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * number of sub-buckets of every further bucket
+	 */
+	private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+	/**
+	 * number of counters for values up to Long.MAX_VALUE
+	 */
+	private static final int COUNTS_LENGTH = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT;
+
+	/**
+	 * number of values per counter
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(COUNTS_LENGTH);
+
+	/**
+	 * number of recorded values
+	 */
+	private final AtomicLong totalCount = new AtomicLong();
+
+	/**
+	 * sum of all recorded values
+	 */
+	private final AtomicLong totalNanos = new AtomicLong();
+
+	/**
+	 * smallest recorded value
+	 */
+	private final AtomicLong minNanos = new AtomicLong(Long.MAX_VALUE);
+
+	/**
+	 * largest recorded value
+	 */
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * Records a latency.
+	 * @param nanos the latency in nanoseconds, negative values are counted as 0
+	 */
+	public void record(long nanos) {
+		if(nanos < 0) nanos = 0;
+		counts.incrementAndGet(indexOf(nanos));
+		totalCount.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		minNanos.accumulateAndGet(nanos, Math::min);
+		maxNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * Getter for the number of recorded values
+	 * @return number of recorded values
+	 */
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	/**
+	 * Getter for the smallest recorded value
+	 * @return smallest latency in nanoseconds or 0 if nothing has been recorded
+	 */
+	public long getMinNanos() {
+		long min = minNanos.get();
+		return min == Long.MAX_VALUE ? 0 : min;
+	}
+
+	/**
+	 * Getter for the largest recorded value
+	 * @return largest latency in nanoseconds
+	 */
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * Getter for the mean of the recorded values
+	 * @return mean latency in nanoseconds or 0 if nothing has been recorded
+	 */
+	public double getMeanNanos() {
+		long count = totalCount.get();
+		return count == 0 ? 0 : (double) totalNanos.get() / count;
+	}
+
+	/**
+	 * Returns the latency which percentile percent of the recorded values don't exceed.
+	 * The result is the upper end of the bucket containing the percentile, but never larger
+	 * than the largest recorded value.
+	 * @param percentile between 0 and 100
+	 * @return the latency in nanoseconds or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if(percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("[LatencyHistogram] Percentile has to be between 0 and 100.");
+		}
+		long count = 0;
+		for(int i = 0; i < COUNTS_LENGTH; i++) {
+			count += counts.get(i);
+		}
+		if(count == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for(int i = 0; i < COUNTS_LENGTH; i++) {
+			seen += counts.get(i);
+			if(seen >= rank) {
+				return Math.min(highestEquivalentValue(i), getMaxNanos());
+			}
+		}
+		return getMaxNanos();
+	}
+
+	/**
+	 * Returns the latency at a percentile in milliseconds.
+	 * @param percentile between 0 and 100
+	 * @return the latency in milliseconds
+	 */
+	public double getMillisAtPercentile(double percentile) {
+		return getValueAtPercentile(percentile) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * Clears all recorded values. Values recorded at the same time may be lost.
+	 */
+	public void reset() {
+		for(int i = 0; i < COUNTS_LENGTH; i++) {
+			counts.set(i, 0);
+		}
+		totalCount.set(0);
+		totalNanos.set(0);
+		minNanos.set(Long.MAX_VALUE);
+		maxNanos.set(0);
+	}
+
+	/**
+	 * Returns the index of the counter for a value.
+	 * @param value value that is not negative
+	 * @return index of the counter
+	 */
+	private static int indexOf(long value) {
+		if(value < SUB_BUCKET_COUNT) return (int) value;
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - (SUB_BUCKET_BITS - 1);
+		int subBucket = (int) (value >>> shift);
+		return SUB_BUCKET_COUNT + (magnitude - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT + (subBucket - SUB_BUCKET_HALF_COUNT);
+	}
+
+	/**
+	 * Returns the largest value which is counted by a counter.
+	 * @param index index of the counter
+	 * @return largest value of the counter
+	 */
+	private static long highestEquivalentValue(int index) {
+		if(index < SUB_BUCKET_COUNT) return index;
+		int offset = index - SUB_BUCKET_COUNT;
+		int magnitude = offset / SUB_BUCKET_HALF_COUNT + SUB_BUCKET_BITS;
+		long subBucket = offset % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+		int shift = magnitude - (SUB_BUCKET_BITS - 1);
+		long lowest = subBucket << shift;
+		return lowest + ((1L << shift) - 1);
+	}
+}
@@ -0,0 +1,314 @@
+package robprakt.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LatencyStats holds the round-trip latency histograms of one connection, one per command verb,
+ * e.g. MoveMinChangeRowWiseStatus, GetPositionHomRowWise or CM_NEXTVALUE.
+ * The verb is the first token of a command. Looking up the histogram of a known verb
+ * compares the command in place, so recording doesn't create any objects.
+ * Since commands may be free text, e.g. typed into the command menu, at most MAX_VERBS verbs
+ * get their own histogram, the commands of all further verbs share the histogram OTHER.
+ * The histograms can be read at any time or dumped to the console periodically.
+ */
+public final class LatencyStats {
+
+	/**
+	 * maximum number of verbs with their own histogram
+	 */
+	public static final int MAX_VERBS = 32;
+
+	/**
+	 * verb of the histogram shared by the verbs beyond MAX_VERBS
+	 */
+	public static final String OTHER = "(other)";
+
+	/**
+	 * percentiles shown by report
+	 */
+	private static final double[] REPORTED_PERCENTILES = {50, 90, 99, 99.9};
+
+	/**
+	 * thread printing the reports of all connections
+	 */
+	private static ScheduledExecutorService dumpExecutor;
+
+	/**
+	 * name of the connection shown in reports
+	 */
+	private volatile String name;
+
+	/**
+	 * known verbs, only replaced as a whole so it can be read without locking
+	 */
+	private volatile String[] verbs = new String[0];
+
+	/**
+	 * histograms belonging to the verbs of the same index
+	 */
+	private volatile LatencyHistogram[] histograms = new LatencyHistogram[0];
+
+	/**
+	 * the histogram of OTHER, null until MAX_VERBS verbs are known
+	 */
+	private volatile LatencyHistogram other;
+
+	/**
+	 * the periodic dump, null if not dumping
+	 */
+	private ScheduledFuture<?> dump;
+
+	/**
+	 * Constructor of the statistics
+	 * @param name name of the connection shown in reports
+	 */
+	LatencyStats(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Setter for the name of the connection
+	 * @param name name of the connection shown in reports
+	 */
+	void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns the histogram of the verb of a command and creates it if needed.
+	 * @param command the command
+	 * @return the histogram
+	 */
+	LatencyHistogram histogramFor(CharSequence command) {
+		String[] verbs = this.verbs;
+		LatencyHistogram[] histograms = this.histograms;
+		int end = verbEnd(command);
+		for(int i = 0; i < verbs.length; i++) {
+			if(matches(verbs[i], command, end)) return histograms[i];
+		}
+		LatencyHistogram other = this.other;
+		if(other != null) return other;
+		return getOrCreate(command.subSequence(0, end).toString());
+	}
+
+	/**
+	 * Returns the histogram of the verb of an encoded command and creates it if needed.
+	 * The position of the buffer isn't changed.
+	 * @param command the encoded command, read between position and limit
+	 * @return the histogram
+	 */
+	LatencyHistogram histogramFor(ByteBuffer command) {
+		String[] verbs = this.verbs;
+		LatencyHistogram[] histograms = this.histograms;
+		int position = command.position();
+		int end = verbEnd(command, position, command.limit());
+		for(int i = 0; i < verbs.length; i++) {
+			if(matches(verbs[i], command, position, end)) return histograms[i];
+		}
+		LatencyHistogram other = this.other;
+		if(other != null) return other;
+		byte[] bytes = new byte[end - position];
+		for(int i = 0; i < bytes.length; i++) {
+			bytes[i] = command.get(position + i);
+		}
+		return getOrCreate(new String(bytes, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Getter for the histogram of a verb
+	 * @param verb the verb, e.g. GetPositionHomRowWise
+	 * @return the histogram or null if no command with this verb has been sent yet
+	 */
+	public LatencyHistogram getHistogram(String verb) {
+		String[] verbs = this.verbs;
+		for(int i = 0; i < verbs.length; i++) {
+			if(verbs[i].equals(verb)) return histograms[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the histograms of all verbs.
+	 * @return histograms sorted by verb
+	 */
+	public Map<String, LatencyHistogram> getHistograms() {
+		String[] verbs = this.verbs;
+		LatencyHistogram[] histograms = this.histograms;
+		Map<String, LatencyHistogram> result = new TreeMap<String, LatencyHistogram>();
+		for(int i = 0; i < Math.min(verbs.length, histograms.length); i++) {
+			result.put(verbs[i], histograms[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the latency of a verb at a percentile.
+	 * @param verb the verb, e.g. GetPositionHomRowWise
+	 * @param percentile between 0 and 100
+	 * @return the latency in milliseconds or 0 if no command with this verb has been sent yet
+	 */
+	public double getMillisAtPercentile(String verb, double percentile) {
+		LatencyHistogram histogram = getHistogram(verb);
+		return histogram == null ? 0 : histogram.getMillisAtPercentile(percentile);
+	}
+
+	/**
+	 * Clears the histograms of all verbs.
+	 */
+	public void reset() {
+		for(LatencyHistogram histogram : histograms) {
+			histogram.reset();
+		}
+	}
+
+	/**
+	 * Creates a table of count, mean, percentiles and maximum in milliseconds for every verb.
+	 * @return the report
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("[LatencyStats] ").append(name).append('\n');
+		sb.append(String.format("%-28s %8s %9s", "command", "count", "mean"));
+		for(double percentile : REPORTED_PERCENTILES) {
+			sb.append(String.format(" %9s", "p" + (percentile == (long) percentile ? Long.toString((long) percentile) : Double.toString(percentile))));
+		}
+		sb.append(String.format(" %9s%n", "max"));
+		for(Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			sb.append(String.format("%-28s %8d %9.3f", entry.getKey(), histogram.getCount(), histogram.getMeanNanos() / 1e6));
+			for(double percentile : REPORTED_PERCENTILES) {
+				sb.append(String.format(" %9.3f", histogram.getMillisAtPercentile(percentile)));
+			}
+			sb.append(String.format(" %9.3f%n", histogram.getMaxNanos() / 1e6));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Prints the report to the console periodically until stopDump is called.
+	 * @param period time between two reports
+	 * @param unit unit of the period
+	 */
+	public synchronized void startDump(long period, TimeUnit unit) {
+		stopDump();
+		dump = dumpExecutor().scheduleAtFixedRate(() -> System.out.print(report()), period, period, unit);
+	}
+
+	/**
+	 * Stops printing the report periodically.
+	 */
+	public synchronized void stopDump() {
+		if(dump != null) {
+			dump.cancel(false);
+			dump = null;
+		}
+	}
+
+	/**
+	 * Returns the histogram of a verb and creates it if needed.
+	 * Once MAX_VERBS verbs are known, further verbs get the histogram of OTHER.
+	 * @param verb the verb
+	 * @return the histogram
+	 */
+	private synchronized LatencyHistogram getOrCreate(String verb) {
+		LatencyHistogram histogram = getHistogram(verb);
+		if(histogram != null) return histogram;
+		if(other != null) return other;
+		histogram = new LatencyHistogram();
+		boolean full = verbs.length == MAX_VERBS;
+		if(full) verb = OTHER;
+		int length = verbs.length;
+		LatencyHistogram[] histograms = Arrays.copyOf(this.histograms, length + 1);
+		histograms[length] = histogram;
+		String[] verbs = Arrays.copyOf(this.verbs, length + 1);
+		verbs[length] = verb;
+		// histograms first, readers read verbs first and so never see a verb without histogram
+		this.histograms = histograms;
+		this.verbs = verbs;
+		if(full) other = histogram;
+		return histogram;
+	}
+
+	/**
+	 * Returns the index after the verb of a command.
+	 * @param command the command
+	 * @return index of the first whitespace or the length of the command
+	 */
+	private static int verbEnd(CharSequence command) {
+		int length = command.length();
+		for(int i = 0; i < length; i++) {
+			char c = command.charAt(i);
+			if(c == ' ' || c == '\t' || c == '\r' || c == '\n') return i;
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the index after the verb of an encoded command.
+	 * @param command the encoded command
+	 * @param position index of the first byte
+	 * @param limit index after the last byte
+	 * @return index of the first whitespace or limit
+	 */
+	private static int verbEnd(ByteBuffer command, int position, int limit) {
+		for(int i = position; i < limit; i++) {
+			byte b = command.get(i);
+			if(b == ' ' || b == '\t' || b == '\r' || b == '\n') return i;
+		}
+		return limit;
+	}
+
+	/**
+	 * Compares a verb with the beginning of a command.
+	 * @param verb the verb
+	 * @param command the command
+	 * @param end index after the verb of the command
+	 * @return true if the command starts with the verb
+	 */
+	private static boolean matches(String verb, CharSequence command, int end) {
+		if(verb.length() != end) return false;
+		for(int i = 0; i < end; i++) {
+			if(verb.charAt(i) != command.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compares a verb with the bytes of an encoded command.
+	 * @param verb the verb
+	 * @param command the encoded command
+	 * @param from index of the first byte of the verb
+	 * @param to index after the last byte of the verb
+	 * @return true if the bytes are the verb
+	 */
+	private static boolean matches(String verb, ByteBuffer command, int from, int to) {
+		if(verb.length() != to - from) return false;
+		for(int i = 0; i < verb.length(); i++) {
+			if(verb.charAt(i) != command.get(from + i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the thread printing the reports and starts it on first use.
+	 * @return the executor
+	 */
+	private static synchronized ScheduledExecutorService dumpExecutor() {
+		if(dumpExecutor == null) {
+			dumpExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "robprakt-latency-dump");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return dumpExecutor;
+	}
+}
@@ -0,0 +1,57 @@
+package robprakt.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Link is the transport of a TCPClient: either a socket serviced by a SelectorLoop (NioLink)
+ * or a connection to a handler in the same process (LoopbackLink).
+ * Writing never blocks, received messages are handed to a sink.
+ */
+interface Link {
+
+	/**
+	 * Receives the messages and the end of a link. Called on the thread servicing the link,
+	 * so implementations must not block.
+	 */
+	interface Sink {
+
+		/**
+		 * called for every complete message
+		 * @param frame the message without delimiter
+		 */
+		void frameReceived(String frame);
+
+		/**
+		 * called once when the connection has ended
+		 * @param cause the exception which ended the connection, null if it has been closed regularly
+		 */
+		void connectionClosed(IOException cause);
+	}
+
+	/**
+	 * Sends a message, terminated with the delimiter if it doesn't end with one already.
+	 * @param message the message to send
+	 * @throws IOException if the link has been closed
+	 */
+	void write(String message) throws IOException;
+
+	/**
+	 * Sends an already encoded message, terminated with the delimiter if it doesn't end with one already.
+	 * The remaining bytes of the message are copied, so the caller may reuse the buffer as soon as this method returns.
+	 * @param message the encoded message, its position is moved to its limit
+	 * @throws IOException if the link has been closed
+	 */
+	void write(ByteBuffer message) throws IOException;
+
+	/**
+	 * Closes the link, the sink is informed unless that has been done already.
+	 */
+	void close();
+
+	/**
+	 * Checks if the link is still open
+	 * @return true if the link is open
+	 */
+	boolean isOpen();
+}
@@ -0,0 +1,87 @@
+package robprakt.network;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * LoopbackConnection is the server side of a LoopbackLink, so a ConnectionHandler serves
+ * clients of a LoopbackServer exactly like clients of a TCPServer.
+ */
+final class LoopbackConnection extends ServerConnection {
+
+	/**
+	 * the link to the client
+	 */
+	private final LoopbackLink link;
+
+	/**
+	 * stands in for the address of the client
+	 */
+	private final SocketAddress remoteAddress;
+
+	/**
+	 * Constructor of the connection
+	 * @param link the link to the client
+	 * @param id number of the connection, used as port of the remote address
+	 */
+	LoopbackConnection(LoopbackLink link, int id) {
+		this.link = link;
+		this.remoteAddress = InetSocketAddress.createUnresolved(LoopbackServer.HOST, id);
+	}
+
+	/**
+	 * Getter for the address of the client
+	 * @return "loopback" and the number of the connection
+	 */
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * this method hands a response to the client
+	 * @param data the response, a trailing line feed is removed
+	 */
+	@Override
+	public void sendData(String data) {
+		TrafficRecorder recorder = this.recorder;
+		if(recorder != null) recorder.recordCommand(name, data);
+		int length = data.length();
+		if(length > 0 && data.charAt(length - 1) == FrameDecoder.DEFAULT_DELIMITER) data = data.substring(0, length - 1);
+		link.deliver(data);
+	}
+
+	/**
+	 * this method blocks until the next command of the client has been received
+	 * @return the command without line feed, null if the connection has been closed
+	 */
+	@Override
+	public String receiveData() {
+		try {
+			String message = link.take();
+			TrafficRecorder recorder = this.recorder;
+			if(recorder != null && message != null) recorder.recordResponse(name, message);
+			return message;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * this method closes the connection to the client
+	 */
+	@Override
+	public void closeConnection() {
+		link.close();
+	}
+
+	/**
+	 * this method checks if the connection has been closed
+	 * @return true if the connection has been closed
+	 */
+	@Override
+	public boolean isClosed() {
+		return !link.isOpen();
+	}
+}
@@ -0,0 +1,139 @@
+package robprakt.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * LoopbackLink connects a TCPClient to a handler of a LoopbackServer in the same process, without a socket.
+ * Commands of the client are put into a bounded queue, which the handler takes them from.
+ * Responses of the handler are handed to the sink of the client right away on the handler's
+ * thread, which thereby takes the part of the I/O thread.
+ * Like a NioLink, writing never blocks: if the handler falls behind by a full queue,
+ * writing fails instead.
+ */
+final class LoopbackLink implements Link {
+
+	/**
+	 * marks the end of the commands when the link has been closed
+	 */
+	private static final String CLOSED = new String("closed");
+
+	/**
+	 * commands which haven't been taken by the handler yet
+	 */
+	private final ArrayBlockingQueue<String> commands;
+
+	/**
+	 * receives the responses
+	 */
+	private final Sink sink;
+
+	/**
+	 * true after the link has been closed
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Constructor of the link
+	 * @param capacity maximum number of commands waiting for the handler
+	 * @param sink receives the responses
+	 */
+	LoopbackLink(int capacity, Sink sink) {
+		this.commands = new ArrayBlockingQueue<String>(capacity);
+		this.sink = sink;
+	}
+
+	/**
+	 * Queues a message for the handler. A message containing delimiters is split into several
+	 * messages, like the handler would receive it through a socket.
+	 * @param message the message to send
+	 * @throws IOException if the link has been closed or the queue is full
+	 */
+	@Override
+	public void write(String message) throws IOException {
+		if(closed) throw new IOException("[LoopbackLink] Connection has been closed.");
+		int from = 0;
+		int length = message.length();
+		while(from < length) {
+			int to = message.indexOf(FrameDecoder.DEFAULT_DELIMITER, from);
+			int next = to < 0 ? length : to + 1;
+			if(to < 0) to = length;
+			while(to > from && message.charAt(to - 1) == '\r') to--;
+			offer(from == 0 && to == length ? message : message.substring(from, to));
+			from = next;
+		}
+		if(length == 0) offer(message);
+	}
+
+	/**
+	 * Queues an encoded message for the handler.
+	 * @param message the encoded message, its position is moved to its limit
+	 * @throws IOException if the link has been closed or the queue is full
+	 */
+	@Override
+	public void write(ByteBuffer message) throws IOException {
+		byte[] bytes = new byte[message.remaining()];
+		message.get(bytes);
+		write(new String(bytes, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Puts a single message into the queue.
+	 * @param message the message without delimiter
+	 * @throws IOException if the queue is full
+	 */
+	private void offer(String message) throws IOException {
+		if(!commands.offer(message)) {
+			throw new IOException("[LoopbackLink] The handler doesn't keep up, " + commands.size() + " commands are waiting.");
+		}
+	}
+
+	/**
+	 * Takes the next command, blocks until there is one. Called by the handler.
+	 * @return the command or null if the link has been closed
+	 * @throws InterruptedException if the handler's thread has been interrupted
+	 */
+	String take() throws InterruptedException {
+		String command = commands.take();
+		if(command == CLOSED) {
+			// keep the marker, so following calls don't block either
+			commands.offer(CLOSED);
+			return null;
+		}
+		return command;
+	}
+
+	/**
+	 * Hands a response to the client. Called by the handler.
+	 * @param response the response without delimiter
+	 */
+	void deliver(String response) {
+		if(!closed) sink.frameReceived(response);
+	}
+
+	/**
+	 * Closes the link from either end and informs the client, if that hasn't been done already.
+	 */
+	@Override
+	public void close() {
+		synchronized(this) {
+			if(closed) return;
+			closed = true;
+		}
+		// commands which haven't been taken yet are lost, like unread bytes of a closed socket
+		commands.clear();
+		commands.offer(CLOSED);
+		sink.connectionClosed(null);
+	}
+
+	/**
+	 * Checks if the link is still open
+	 * @return true if the link is open
+	 */
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+}
@@ -0,0 +1,167 @@
+package robprakt.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LoopbackServer serves clients in the same process without sockets, e.g. for benchmarking
+ * against simulated robots without the noise of the kernel's network stack.
+ * A TCPClient connects to it like to any other server, using the host "loopback" and the
+ * port the server has been bound to, so no calling code has to change.
+ * Every connection is handled on its own thread by the same ConnectionHandlers a TCPServer uses.
+ *
+ * Usage:
+ * <pre>
+ * LoopbackServer server = LoopbackServer.bind(5005, new RobotSimulator());
+ * TCPClient client = new TCPClient(LoopbackServer.HOST, 5005);
+ * client.connect();
+ * </pre>
+ */
+public final class LoopbackServer implements Closeable {
+
+	/**
+	 * host name selecting a loopback server instead of a socket
+	 */
+	public static final String HOST = "loopback";
+
+	/**
+	 * maximum number of commands of a connection waiting for its handler
+	 */
+	public static final int QUEUE_CAPACITY = 4096;
+
+	/**
+	 * the bound servers by port
+	 */
+	private static final ConcurrentHashMap<Integer, LoopbackServer> SERVERS = new ConcurrentHashMap<Integer, LoopbackServer>();
+
+	/**
+	 * number of the next connection
+	 */
+	private static final AtomicInteger CONNECTION_IDS = new AtomicInteger();
+
+	/**
+	 * the port this server is bound to
+	 */
+	private final int port;
+
+	/**
+	 * serves each client
+	 */
+	private final ConnectionHandler handler;
+
+	/**
+	 * executes the handlers of the connections
+	 */
+	private final ExecutorService handlerExecutor = TCPServer.newHandlerExecutor();
+
+	/**
+	 * connections which are currently handled
+	 */
+	private final Set<LoopbackConnection> connections = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Constructor of the server, use bind
+	 * @param port the port
+	 * @param handler serves each client
+	 */
+	private LoopbackServer(int port, ConnectionHandler handler) {
+		this.port = port;
+		this.handler = handler;
+	}
+
+	/**
+	 * Binds a handler to a port, clients connecting to "loopback" and this port are served by it.
+	 * @param port the port
+	 * @param handler serves each client
+	 * @return the server, close it to unbind the port
+	 * @throws IllegalStateException if another loopback server is bound to the port
+	 */
+	public static LoopbackServer bind(int port, ConnectionHandler handler) {
+		LoopbackServer server = new LoopbackServer(port, handler);
+		if(SERVERS.putIfAbsent(port, server) != null) {
+			server.handlerExecutor.shutdown();
+			throw new IllegalStateException("[LoopbackServer] Port " + port + " is already bound.");
+		}
+		return server;
+	}
+
+	/**
+	 * Connects a client to the server bound to a port.
+	 * @param port the port
+	 * @param sink receives the responses of the handler
+	 * @return the link to the handler
+	 * @throws IOException if no server is bound to the port
+	 */
+	static Link connect(int port, Link.Sink sink) throws IOException {
+		LoopbackServer server = SERVERS.get(port);
+		if(server == null) throw new IOException("[LoopbackServer] No server is bound to port " + port + ".");
+		return server.accept(sink);
+	}
+
+	/**
+	 * Creates a connection and starts its handler.
+	 * @param sink receives the responses of the handler
+	 * @return the link to the handler
+	 * @throws IOException if the server has been closed
+	 */
+	private Link accept(Link.Sink sink) throws IOException {
+		LoopbackLink link = new LoopbackLink(QUEUE_CAPACITY, sink);
+		LoopbackConnection connection = new LoopbackConnection(link, CONNECTION_IDS.incrementAndGet() & 0xFFFF);
+		connections.add(connection);
+		try {
+			handlerExecutor.execute(() -> handle(connection));
+		} catch (RejectedExecutionException e) {
+			connections.remove(connection);
+			throw new IOException("[LoopbackServer] Server on port " + port + " has been closed.", e);
+		}
+		return link;
+	}
+
+	/**
+	 * Runs the handler for a single connection and closes the connection afterwards.
+	 * @param connection the connection to the client
+	 */
+	private void handle(LoopbackConnection connection) {
+		try {
+			handler.handle(connection);
+		} catch (IOException e) {
+			System.err.println("[LoopbackServer] Connection to " + connection.getRemoteAddress() + " failed: " + e.getMessage());
+		} finally {
+			connection.closeConnection();
+			connections.remove(connection);
+		}
+	}
+
+	/**
+	 * Getter for the port
+	 * @return the port this server is bound to
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Getter for the number of clients currently being served
+	 * @return number of open connections
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * Unbinds the port and closes all connections.
+	 */
+	@Override
+	public void close() {
+		SERVERS.remove(port, this);
+		handlerExecutor.shutdown();
+		for(LoopbackConnection connection : connections) {
+			connection.closeConnection();
+		}
+	}
+}
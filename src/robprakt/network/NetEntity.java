@@ -26,6 +26,21 @@ abstract class NetEntity {
 	 * the output writer
 	 */
 	protected PrintWriter out;
+	
+	/**
+	 * splits the received bytes into single messages
+	 */
+	protected FrameDecoder decoder;
+	
+	/**
+	 * name of the entity in recordings, e.g. R1, R2 or TS
+	 */
+	protected String name;
+	
+	/**
+	 * records sent and received messages, null if not recording
+	 */
+	protected volatile TrafficRecorder recorder;
 		
 	/**
 	 * the constructor of the network entity
@@ -43,11 +58,37 @@ abstract class NetEntity {
 		try {
 			out = new PrintWriter(socket.getOutputStream(), true);
 			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			decoder = new FrameDecoder();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Setter for the name of the entity
+	 * @param name name used in recordings, e.g. R1, R2 or TS
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Getter for the name of the entity
+	 * @return name used in recordings or null
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Starts or stops recording the sent and received messages of this entity.
+	 * Sent messages are recorded as commands and received messages as responses.
+	 * @param recorder the recorder or null to stop recording
+	 */
+	public void setRecorder(TrafficRecorder recorder) {
+		this.recorder = recorder;
+	}
+	
 	/**
 	 * this method closes the connection
 	 * @throws IOException the exception when something goes wrong closing the connection
@@ -56,29 +97,34 @@ abstract class NetEntity {
 	
 	/**
 	 * this method is for sending data through the network
+	 * every message is terminated by a line feed, if the data doesn't end with one already
 	 * 
 	 * @param data the data to send
 	 */
 	public void sendData(String data) {
 		if(out!=null) {
-			// Man koennte auch  data+"\n" schreiben, wird aber momentan woanders abgefangen
+			TrafficRecorder recorder = this.recorder;
+			if(recorder != null) recorder.recordCommand(name, data);
 			out.write(data);
+			if(!data.endsWith("\n")) out.write(FrameDecoder.DEFAULT_DELIMITER);
 			out.flush();
 		}
 	}
 	
 	/**
 	 * the method is for receiving data through the network
-	 * @return the data which has been received
+	 * blocks until exactly one complete message has been received,
+	 * no matter how the message has been split up or merged by TCP
+	 * @return the message which has been received without the line feed,
+	 * 			null if the connection has been closed by the other side
 	 */
 	public String receiveData() {
-		byte[] buffer = new byte[500];    //If you handle larger data use a bigger buffer size
-		int read;
 		try {
 			if(in!=null) {
-				while((read = in.read(buffer)) != -1) {
-					return new String(buffer);
-				}
+				String message = decoder.read(in);
+				TrafficRecorder recorder = this.recorder;
+				if(recorder != null && message != null) recorder.recordResponse(name, message);
+				return message;
 			}
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -0,0 +1,254 @@
+package robprakt.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * NioLink is a single non-blocking socket serviced by a SelectorLoop.
+ * Commands are appended to an outbound buffer by any thread and written by the I/O thread,
+ * received bytes are split into messages on the I/O thread and handed to a sink.
+ */
+final class NioLink implements Link {
+
+	/**
+	 * initial size of the outbound buffer, grows if needed
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * the loop servicing this link
+	 */
+	private final SelectorLoop loop;
+
+	/**
+	 * the non-blocking channel
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * receives messages
+	 */
+	private final Sink sink;
+
+	/**
+	 * splits received bytes into messages, only used on the I/O thread
+	 */
+	private final FrameDecoder decoder = new FrameDecoder();
+
+	/**
+	 * cached encoder for commands containing non-ASCII characters
+	 */
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	/**
+	 * bytes not written yet (write mode), guarded by itself
+	 */
+	private ByteBuffer outbound = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+	/**
+	 * the key of the channel, set by the I/O thread during registration
+	 */
+	private volatile SelectionKey key;
+
+	/**
+	 * true after the link has been closed
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * true once closing has been requested, the link is closed on the I/O thread afterwards
+	 */
+	private volatile boolean closing;
+
+	/**
+	 * Constructor of the link, use SelectorLoop.register
+	 * @param loop the loop servicing this link
+	 * @param channel the connected non-blocking channel
+	 * @param sink receives the messages
+	 */
+	NioLink(SelectorLoop loop, SocketChannel channel, Sink sink) {
+		this.loop = loop;
+		this.channel = channel;
+		this.sink = sink;
+	}
+
+	/**
+	 * Setter for the selection key
+	 * @param key key of the channel
+	 */
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Appends a message to the outbound buffer and terminates it with the delimiter,
+	 * if it doesn't end with one already. The message is written by the I/O thread.
+	 * @param message the message to send
+	 * @throws IOException if the link has been closed
+	 */
+	@Override
+	public void write(String message) throws IOException {
+		if(closed || closing) throw new IOException("[NioLink] Connection has been closed.");
+		synchronized(this) {
+			int length = message.length();
+			ensureCapacity(length + 1);
+			boolean ascii = true;
+			for(int i = 0; i < length && ascii; i++) {
+				ascii = message.charAt(i) < 0x80;
+			}
+			if(ascii) {
+				for(int i = 0; i < length; i++) {
+					outbound.put((byte) message.charAt(i));
+				}
+			} else {
+				ensureCapacity((int) (length * encoder.maxBytesPerChar()) + 1);
+				encoder.reset();
+				encoder.encode(CharBuffer.wrap(message), outbound, true);
+				encoder.flush(outbound);
+			}
+			if(length == 0 || message.charAt(length - 1) != FrameDecoder.DEFAULT_DELIMITER) {
+				outbound.put(FrameDecoder.DEFAULT_DELIMITER);
+			}
+			requestWrite();
+		}
+	}
+
+	/**
+	 * Appends an already encoded message to the outbound buffer and terminates it with the delimiter,
+	 * if it doesn't end with one already. The remaining bytes of the message are copied,
+	 * so the caller may reuse the buffer as soon as this method returns.
+	 * @param message the encoded message, its position is moved to its limit
+	 * @throws IOException if the link has been closed
+	 */
+	@Override
+	public void write(ByteBuffer message) throws IOException {
+		if(closed || closing) throw new IOException("[NioLink] Connection has been closed.");
+		synchronized(this) {
+			int length = message.remaining();
+			ensureCapacity(length + 1);
+			boolean terminated = length > 0 && message.get(message.limit() - 1) == FrameDecoder.DEFAULT_DELIMITER;
+			outbound.put(message);
+			if(!terminated) {
+				outbound.put(FrameDecoder.DEFAULT_DELIMITER);
+			}
+			requestWrite();
+		}
+	}
+
+	/**
+	 * Makes sure the outbound buffer has room for the given number of bytes.
+	 * Must be called while holding the lock of this link.
+	 * @param bytes number of bytes to append
+	 */
+	private void ensureCapacity(int bytes) {
+		if(outbound.remaining() >= bytes) return;
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(outbound.capacity() * 2, outbound.position() + bytes));
+		outbound.flip();
+		larger.put(outbound);
+		outbound = larger;
+	}
+
+	/**
+	 * Tells the I/O thread that there are bytes to write.
+	 * Must be called while holding the lock of this link.
+	 * @throws IOException if the key has been cancelled because the link has been closed meanwhile
+	 */
+	private void requestWrite() throws IOException {
+		SelectionKey key = this.key;
+		if(key == null) return;
+		try {
+			// the I/O thread may cancel the key at any time, so it is not checked before
+			key.interestOpsOr(SelectionKey.OP_WRITE);
+		} catch (CancelledKeyException e) {
+			throw new IOException("[NioLink] Connection has been closed.", e);
+		}
+		if(!loop.inLoop()) loop.wakeup();
+	}
+
+	/**
+	 * Writes as many outbound bytes as the socket accepts. Called on the I/O thread.
+	 * @throws IOException if writing fails
+	 */
+	synchronized void write() throws IOException {
+		outbound.flip();
+		channel.write(outbound);
+		outbound.compact();
+		if(outbound.position() == 0) {
+			key.interestOpsAnd(~SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Reads the available bytes and hands complete messages to the sink. Called on the I/O thread.
+	 * @throws IOException if reading fails
+	 */
+	void read() throws IOException {
+		int read;
+		while((read = channel.read(decoder.writableBuffer())) > 0) {
+			String frame;
+			while((frame = decoder.nextFrame()) != null) {
+				sink.frameReceived(frame);
+			}
+		}
+		if(read < 0) {
+			String rest = decoder.remainder();
+			if(rest != null) sink.frameReceived(rest);
+			closed(null);
+		}
+	}
+
+	/**
+	 * Closes the channel and informs the sink, if that hasn't been done already.
+	 * @param cause the exception which ended the connection or null
+	 */
+	void closed(IOException cause) {
+		synchronized(this) {
+			if(closed) return;
+			closed = true;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.err.println("[NioLink] wasn't able to close channel");
+		}
+		sink.connectionClosed(cause);
+	}
+
+	/**
+	 * Closes the link from any thread.
+	 * No message is written after this method returns. The channel is closed and the sink is
+	 * informed on the I/O thread, so no message of this link reaches the sink after connectionClosed.
+	 */
+	@Override
+	public void close() {
+		closing = true;
+		if(loop.inLoop()) {
+			closed(null);
+			return;
+		}
+		try {
+			loop.execute(() -> closed(null));
+		} catch (IllegalStateException e) {
+			// the loop has been closed, nothing is delivered anymore
+			closed(null);
+		}
+	}
+
+	/**
+	 * Checks if the link is still open
+	 * @return true if the link is open
+	 */
+	@Override
+	public boolean isOpen() {
+		return !closed && !closing && channel.isOpen();
+	}
+}
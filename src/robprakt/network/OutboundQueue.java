@@ -0,0 +1,243 @@
+package robprakt.network;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * OutboundQueue bounds the number of commands of a TCPClient which have been queued for sending
+ * but not answered yet. The commands are written in order by the thread servicing the link;
+ * once the server falls behind by the high-water mark, further commands are either blocked
+ * until it catches up or rejected, depending on the policy.
+ *
+ * A thread which is delivering responses, like the I/O thread running the callbacks of futures,
+ * is never blocked, as that would keep the server's responses from being received.
+ * Its commands may exceed the high-water mark by up to the high-water mark once more,
+ * further ones are rejected whatever the policy is.
+ */
+public final class OutboundQueue {
+
+	/**
+	 * what happens to a command when the queue is at the high-water mark
+	 */
+	public enum Policy {
+		/**
+		 * the sending thread waits until the queue is below the high-water mark
+		 */
+		BLOCK,
+		/**
+		 * the command fails with a RejectedExecutionException
+		 */
+		REJECT
+	}
+
+	/**
+	 * default high-water mark
+	 */
+	public static final int DEFAULT_HIGH_WATER_MARK = 1024;
+
+	/**
+	 * true on threads which are delivering responses and therefore must not block
+	 */
+	private static final ThreadLocal<Boolean> DELIVERING = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+	/**
+	 * maximum number of commands waiting for their response, guarded by this
+	 */
+	private int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+
+	/**
+	 * what happens to a command at the high-water mark, guarded by this
+	 */
+	private Policy policy = Policy.BLOCK;
+
+	/**
+	 * number of commands waiting for their response, guarded by this
+	 */
+	private int depth;
+
+	/**
+	 * greatest depth since the last reset, guarded by this
+	 */
+	private int maxDepth;
+
+	/**
+	 * number of threads waiting for room, guarded by this
+	 */
+	private int waiting;
+
+	/**
+	 * number of commands which had to wait, guarded by this
+	 */
+	private long blockedCount;
+
+	/**
+	 * total time commands have waited in nanoseconds, guarded by this
+	 */
+	private long blockedNanos;
+
+	/**
+	 * number of rejected commands, guarded by this
+	 */
+	private long rejectedCount;
+
+	/**
+	 * Constructor of the queue, use TCPClient.getOutboundQueue
+	 */
+	OutboundQueue() {
+	}
+
+	/**
+	 * Setter for the high-water mark and the policy
+	 * @param highWaterMark maximum number of commands waiting for their response, at least 1
+	 * @param policy what happens to a command when the queue is at the high-water mark
+	 */
+	public synchronized void setHighWaterMark(int highWaterMark, Policy policy) {
+		if(highWaterMark < 1) throw new IllegalArgumentException("[OutboundQueue] High-water mark has to be at least 1.");
+		this.highWaterMark = highWaterMark;
+		this.policy = policy;
+		notifyAll();
+	}
+
+	/**
+	 * Getter for the high-water mark
+	 * @return maximum number of commands waiting for their response
+	 */
+	public synchronized int getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * Getter for the policy
+	 * @return what happens to a command when the queue is at the high-water mark
+	 */
+	public synchronized Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Getter for the depth
+	 * @return number of commands which have been queued but not answered yet
+	 */
+	public synchronized int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Getter for the greatest depth since the last reset
+	 * @return greatest number of commands waiting for their response at once
+	 */
+	public synchronized int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Getter for the number of blocked commands
+	 * @return number of commands which had to wait for room
+	 */
+	public synchronized long getBlockedCount() {
+		return blockedCount;
+	}
+
+	/**
+	 * Getter for the time commands have been blocked
+	 * @return total time commands have waited for room in nanoseconds
+	 */
+	public synchronized long getBlockedNanos() {
+		return blockedNanos;
+	}
+
+	/**
+	 * Getter for the number of rejected commands
+	 * @return number of commands rejected at the high-water mark
+	 */
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * Resets the greatest depth and the counters.
+	 */
+	public synchronized void resetMetrics() {
+		maxDepth = depth;
+		blockedCount = 0;
+		blockedNanos = 0;
+		rejectedCount = 0;
+	}
+
+	/**
+	 * Makes room for a command, blocking or rejecting it at the high-water mark.
+	 * @throws InterruptedIOException if the thread has been interrupted while waiting
+	 * @throws RejectedExecutionException if the queue is at the high-water mark and the policy is REJECT,
+	 * 			or the thread is delivering responses and the queue is at twice the high-water mark
+	 */
+	synchronized void acquire() throws InterruptedIOException {
+		if(DELIVERING.get()) {
+			// can't wait, so the overdraft of delivering threads is bounded instead
+			if(depth - highWaterMark >= highWaterMark) {
+				rejectedCount++;
+				throw new RejectedExecutionException("[OutboundQueue] " + depth + " commands are waiting for their response, "
+						+ "a thread delivering responses can't wait for room.");
+			}
+		} else if(depth >= highWaterMark) {
+			if(policy == Policy.REJECT) {
+				rejectedCount++;
+				throw new RejectedExecutionException("[OutboundQueue] " + depth + " commands are waiting for their response.");
+			}
+			long start = System.nanoTime();
+			blockedCount++;
+			waiting++;
+			try {
+				while(depth >= highWaterMark && policy == Policy.BLOCK) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("[OutboundQueue] Interrupted while waiting for room.");
+			} finally {
+				waiting--;
+				blockedNanos += System.nanoTime() - start;
+			}
+			if(depth >= highWaterMark) {
+				// the policy has been changed to REJECT meanwhile
+				rejectedCount++;
+				throw new RejectedExecutionException("[OutboundQueue] " + depth + " commands are waiting for their response.");
+			}
+		}
+		depth++;
+		if(depth > maxDepth) maxDepth = depth;
+	}
+
+	/**
+	 * Frees the room of a command which has been answered, failed or couldn't be sent.
+	 */
+	synchronized void release() {
+		if(depth > 0) depth--;
+		if(waiting > 0) notifyAll();
+	}
+
+	/**
+	 * Checks if the current thread is delivering responses
+	 * @return true while the thread is delivering responses
+	 */
+	static boolean isDelivering() {
+		return DELIVERING.get();
+	}
+
+	/**
+	 * Marks the current thread as delivering responses or not.
+	 * @param delivering true while the thread is delivering responses
+	 */
+	static void setDelivering(boolean delivering) {
+		DELIVERING.set(delivering);
+	}
+
+	/**
+	 * Returns the metrics of the queue.
+	 * @return depth, high-water mark and counters
+	 */
+	@Override
+	public synchronized String toString() {
+		return "depth " + depth + "/" + highWaterMark + " (max " + maxDepth + "), " + policy
+				+ ", blocked " + blockedCount + " for " + blockedNanos / 1000000 + "ms, rejected " + rejectedCount;
+	}
+}
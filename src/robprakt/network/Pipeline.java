@@ -0,0 +1,181 @@
+package robprakt.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import robprakt.Constants;
+
+/**
+ * A Pipeline sends commands to a server without waiting for the response of the previous command.
+ * At most window commands are outstanding at once, if the window is full, sending blocks until
+ * the oldest response has been received. Servers answer in the order of the commands,
+ * so the i-th response belongs to the i-th command.
+ * A response is awaited at most Constants.RESPONSE_TIMEOUT_MS, if it doesn't arrive in time the
+ * pipeline fails: the outstanding commands get no response and no further command is sent.
+ * Every command is sent with TCPClient.request, so other callers using the same client
+ * at the same time can't take the responses of the pipeline.
+ *
+ * Usage:
+ * <pre>
+ * Pipeline pipeline = client.openPipeline();
+ * for(String command : commands) pipeline.send(command);
+ * List&lt;String&gt; responses = pipeline.drain();
+ * </pre>
+ */
+public class Pipeline {
+
+	/**
+	 * the client sending the commands
+	 */
+	private final TCPClient client;
+
+	/**
+	 * maximum number of outstanding commands
+	 */
+	private final int window;
+
+	/**
+	 * responses of the commands that have been sent but not answered yet, oldest first
+	 */
+	private final ArrayDeque<CompletableFuture<String>> outstanding = new ArrayDeque<CompletableFuture<String>>();
+
+	/**
+	 * received responses, index i belongs to the i-th command
+	 */
+	private final List<String> responses = new ArrayList<String>();
+
+	/**
+	 * true if a response hasn't been received in time
+	 */
+	private boolean failed;
+
+	/**
+	 * Constructor of the pipeline, use TCPClient.openPipeline
+	 * @param client the client sending the commands
+	 * @param window maximum number of outstanding commands
+	 */
+	Pipeline(TCPClient client, int window) {
+		if(window < 1) throw new IllegalArgumentException("[Pipeline] Window has to be at least 1.");
+		this.client = client;
+		this.window = window;
+	}
+
+	/**
+	 * Sends a command. Blocks only if the window is full.
+	 * @param command the command to send
+	 * @return false if the connection has been closed, the outbound queue of the client
+	 * 			rejected the command or the pipeline failed, so the command hasn't been sent
+	 */
+	public boolean send(String command) {
+		if(!makeRoom()) return false;
+		return add(client.request(command));
+	}
+
+	/**
+	 * Sends an already encoded command, like one of a PoseCommandEncoder. Blocks only if the window is full.
+	 * The bytes are copied before this method returns, so the buffer can be reused right away.
+	 * @param command the encoded command
+	 * @return false if the connection has been closed, the outbound queue of the client
+	 * 			rejected the command or the pipeline failed, so the command hasn't been sent
+	 */
+	public boolean send(ByteBuffer command) {
+		if(!makeRoom()) return false;
+		return add(client.request(command));
+	}
+	
+	/**
+	 * Receives the responses which have arrived already and waits for the oldest one if the window is full.
+	 * @return true if a command can be sent
+	 */
+	private boolean makeRoom() {
+		while(!failed && !outstanding.isEmpty() && outstanding.peek().isDone()) receiveOldest();
+		if(!failed && outstanding.size() == window) receiveOldest();
+		return !failed && !client.isClosed();
+	}
+	
+	/**
+	 * Adds the response of a command to the outstanding ones, unless the command hasn't been sent.
+	 * @param response future of the response
+	 * @return false if the command has been rejected by the outbound queue
+	 */
+	private boolean add(CompletableFuture<String> response) {
+		if(response.isCompletedExceptionally()) {
+			try {
+				response.getNow(null);
+			} catch (CompletionException e) {
+				if(e.getCause() instanceof RejectedExecutionException) return false;
+			}
+		}
+		outstanding.add(response);
+		return true;
+	}
+
+	/**
+	 * Blocks until all outstanding commands have been answered or the pipeline failed.
+	 * @return responses of all commands sent through this pipeline in the order of the commands,
+	 * 			an entry is null if the connection has been closed before it was answered
+	 * 			or the response didn't arrive in time
+	 */
+	public List<String> drain() {
+		while(!outstanding.isEmpty()) {
+			receiveOldest();
+		}
+		return responses;
+	}
+
+	/**
+	 * Returns the responses received so far, e.g. for stopping early if a command has been rejected.
+	 * @return responses in the order of the commands, the list grows while the pipeline is used
+	 */
+	public List<String> getResponses() {
+		return responses;
+	}
+
+	/**
+	 * Checks if a response hasn't been received in time
+	 * @return true if the pipeline failed and doesn't send commands anymore
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * Getter for the number of outstanding commands
+	 * @return number of commands that have been sent but not answered yet
+	 */
+	public int getOutstanding() {
+		return outstanding.size();
+	}
+
+	/**
+	 * Receives the response of the oldest outstanding command.
+	 * If it doesn't arrive in time, the pipeline fails and the other outstanding commands are cancelled,
+	 * their responses are dropped by the client when they arrive.
+	 */
+	private void receiveOldest() {
+		try {
+			responses.add(outstanding.poll().get(Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		} catch (ExecutionException | CancellationException e) {
+			responses.add(null);
+		} catch (InterruptedException | TimeoutException e) {
+			if(e instanceof InterruptedException) Thread.currentThread().interrupt();
+			System.err.println("[Pipeline] No response within " + Constants.RESPONSE_TIMEOUT_MS + " ms.");
+			responses.add(null);
+			failed = true;
+			CompletableFuture<String> response;
+			while((response = outstanding.poll()) != null) {
+				response.cancel(false);
+				responses.add(null);
+			}
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package robprakt.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * PoseCommandEncoder writes robot motion commands like
+ * "MoveMinChangeRowWiseStatus r11 r12 r13 x r21 r22 r23 y r31 r32 r33 z noflip lefty"
+ * directly into a reusable byte buffer, which can be sent with TCPClient.request(ByteBuffer).
+ * The 12 values of the 3x4 pose are written row-wise with a fixed number of decimal places,
+ * so no Strings are created while encoding.
+ * The buffer is overwritten by the next call of encode, so an encoder must only be used by one
+ * thread at a time and the command has to be sent before encoding the next one.
+ */
+public final class PoseCommandEncoder {
+
+	/**
+	 * command for moving a robot with minimal change of its joints
+	 */
+	public static final String MOVE_MIN_CHANGE = "MoveMinChangeRowWiseStatus";
+
+	/**
+	 * default configuration of the robot's arm appended to the pose
+	 */
+	public static final String DEFAULT_CONFIGURATION = "noflip lefty"; //TODO: ggf. sollte man die Parameter noflip lefty etc. noch sinniger bestimmen.
+
+	/**
+	 * default number of decimal places
+	 */
+	public static final int DEFAULT_PRECISION = 6;
+
+	/**
+	 * maximum number of decimal places
+	 */
+	public static final int MAX_PRECISION = 9;
+
+	/**
+	 * number of values of a row-wise 3x4 pose
+	 */
+	private static final int POSE_VALUES = 12;
+
+	/**
+	 * maximum number of bytes of a single value: sign, 19 digits of a long, decimal point
+	 */
+	private static final int MAX_VALUE_LENGTH = 21;
+
+	/**
+	 * command name followed by a space
+	 */
+	private final byte[] prefix;
+
+	/**
+	 * space, configuration and line feed
+	 */
+	private final byte[] suffix;
+
+	/**
+	 * number of decimal places
+	 */
+	private final int precision;
+
+	/**
+	 * 10^precision
+	 */
+	private final double scale;
+
+	/**
+	 * the reusable command buffer
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * scratch space for the digits of a single value, written back to front
+	 */
+	private final byte[] digits = new byte[MAX_VALUE_LENGTH];
+
+	/**
+	 * creates an encoder for MoveMinChangeRowWiseStatus with "noflip lefty" and the default precision
+	 */
+	public PoseCommandEncoder() {
+		this(DEFAULT_PRECISION);
+	}
+
+	/**
+	 * creates an encoder for MoveMinChangeRowWiseStatus with "noflip lefty"
+	 * @param precision number of decimal places, between 0 and MAX_PRECISION
+	 */
+	public PoseCommandEncoder(int precision) {
+		this(MOVE_MIN_CHANGE, DEFAULT_CONFIGURATION, precision);
+	}
+
+	/**
+	 * creates an encoder
+	 * @param command name of the command in front of the pose
+	 * @param configuration configuration of the robot's arm behind the pose
+	 * @param precision number of decimal places, between 0 and MAX_PRECISION
+	 */
+	public PoseCommandEncoder(String command, String configuration, int precision) {
+		if(precision < 0 || precision > MAX_PRECISION) {
+			throw new IllegalArgumentException("[PoseCommandEncoder] Precision has to be between 0 and " + MAX_PRECISION + ".");
+		}
+		this.prefix = (command + " ").getBytes(StandardCharsets.US_ASCII);
+		this.suffix = (" " + configuration + "\n").getBytes(StandardCharsets.US_ASCII);
+		this.precision = precision;
+		this.scale = Math.pow(10, precision);
+		this.buffer = ByteBuffer.allocate(prefix.length + POSE_VALUES * (MAX_VALUE_LENGTH + 1) + suffix.length);
+	}
+
+	/**
+	 * Getter for the number of decimal places
+	 * @return number of decimal places
+	 */
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * Encodes the command for the pose in the upper 3x4 part of a 3x4 or 4x4 homogeneous matrix.
+	 * @param pose 3x4 or 4x4 homogeneous pose matrix
+	 * @return the command terminated by a line feed, ready to be read, valid until the next call
+	 * @throws IllegalArgumentException if an entry is not finite or too large
+	 */
+	public ByteBuffer encode(RealMatrix pose) {
+		begin();
+		for(int row = 0; row < 3; row++) {
+			for(int col = 0; col < 4; col++) {
+				putValue(pose.getEntry(row, col));
+			}
+		}
+		return end();
+	}
+
+	/**
+	 * Encodes the command for a pose given as 12 row-wise values.
+	 * @param pose row-wise values of the 3x4 pose matrix
+	 * @return the command terminated by a line feed, ready to be read, valid until the next call
+	 * @throws IllegalArgumentException if there are less than 12 values or a value is not finite or too large
+	 */
+	public ByteBuffer encode(double[] pose) {
+		if(pose.length < POSE_VALUES) {
+			throw new IllegalArgumentException("[PoseCommandEncoder] A pose needs " + POSE_VALUES + " values.");
+		}
+		begin();
+		for(int i = 0; i < POSE_VALUES; i++) {
+			putValue(pose[i]);
+		}
+		return end();
+	}
+
+	/**
+	 * Clears the buffer and writes the command name.
+	 */
+	private void begin() {
+		buffer.clear();
+		buffer.put(prefix);
+	}
+
+	/**
+	 * Writes the configuration and prepares the buffer for reading.
+	 * @return the buffer
+	 */
+	private ByteBuffer end() {
+		// replaces the space behind the last value
+		buffer.position(buffer.position() - 1);
+		buffer.put(suffix);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Writes a value with the fixed number of decimal places followed by a space.
+	 * @param value the value to write
+	 */
+	private void putValue(double value) {
+		double scaled = Math.abs(value) * scale;
+		if(!(scaled < Long.MAX_VALUE)) {
+			throw new IllegalArgumentException("[PoseCommandEncoder] Can't encode value " + value + ".");
+		}
+		long fixed = Math.round(scaled);
+		if(fixed != 0 && value < 0) buffer.put((byte) '-');
+		int index = digits.length;
+		for(int i = 0; i < precision; i++) {
+			digits[--index] = (byte) ('0' + fixed % 10);
+			fixed /= 10;
+		}
+		if(precision > 0) digits[--index] = '.';
+		do {
+			digits[--index] = (byte) ('0' + fixed % 10);
+			fixed /= 10;
+		} while(fixed != 0);
+		buffer.put(digits, index, digits.length - index);
+		buffer.put((byte) ' ');
+	}
+}
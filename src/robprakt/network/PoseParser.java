@@ -0,0 +1,188 @@
+package robprakt.network;
+
+/**
+ * PoseParser reads the 12 row-wise values of a 3x4 pose from a server reply, like the reply of
+ * GetPositionHomRowWise of the robots or CM_NEXTVALUE of the tracking-system.
+ * The reply is scanned in place and the values are written into a caller-supplied array,
+ * so parsing doesn't create any objects. Numbers with up to 15 significant digits and a
+ * decimal exponent of at most 22 are converted exactly without Double.parseDouble,
+ * longer numbers fall back to it.
+ */
+public final class PoseParser {
+
+	/**
+	 * number of values of a row-wise 3x4 pose
+	 */
+	public static final int POSE_VALUES = 12;
+
+	/**
+	 * maximum number of significant digits which are converted without rounding error
+	 */
+	private static final int MAX_EXACT_DIGITS = 15;
+
+	/**
+	 * powers of ten which are exactly representable as double
+	 */
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+	private PoseParser() {
+	}
+
+	/**
+	 * Parses the 12 pose values of a reply. Values are separated by whitespace,
+	 * further tokens behind the pose are ignored.
+	 * @param reply the reply of the server
+	 * @param skip number of tokens in front of the pose which are skipped
+	 * @param pose array the values are written into, has to hold at least 12 values
+	 * @return the given array
+	 * @throws IllegalArgumentException if the reply doesn't contain 12 valid numbers after the skipped tokens
+	 */
+	public static double[] parse(CharSequence reply, int skip, double[] pose) {
+		if(pose.length < POSE_VALUES) {
+			throw new IllegalArgumentException("[PoseParser] The target array has to hold " + POSE_VALUES + " values.");
+		}
+		int length = reply.length();
+		int index = 0;
+		for(int token = 0; token < skip; token++) {
+			index = skipWhitespace(reply, index);
+			if(index == length) throw malformed(reply, "expected " + skip + " leading tokens");
+			while(index < length && !isWhitespace(reply.charAt(index))) index++;
+		}
+		for(int value = 0; value < POSE_VALUES; value++) {
+			index = skipWhitespace(reply, index);
+			if(index == length) throw malformed(reply, "expected " + POSE_VALUES + " values, found " + value);
+			int end = index;
+			while(end < length && !isWhitespace(reply.charAt(end))) end++;
+			pose[value] = parseNumber(reply, index, end);
+			index = end;
+		}
+		return pose;
+	}
+
+	/**
+	 * Parses a reply which starts with the 12 pose values.
+	 * @param reply the reply of the server
+	 * @param pose array the values are written into, has to hold at least 12 values
+	 * @return the given array
+	 * @throws IllegalArgumentException if the reply doesn't start with 12 valid numbers
+	 */
+	public static double[] parse(CharSequence reply, double[] pose) {
+		return parse(reply, 0, pose);
+	}
+
+	/**
+	 * Parses a single numeric token of a reply, e.g. the timestamp in front of the pose
+	 * in a CM_NEXTVALUE reply of the tracking-system.
+	 * @param reply the reply of the server
+	 * @param token number of the token, counting from 0
+	 * @return the value of the token
+	 * @throws IllegalArgumentException if the reply has fewer tokens or the token isn't a valid number
+	 */
+	public static double parseValue(CharSequence reply, int token) {
+		int length = reply.length();
+		int index = skipWhitespace(reply, 0);
+		for(int skipped = 0; skipped < token && index < length; skipped++) {
+			while(index < length && !isWhitespace(reply.charAt(index))) index++;
+			index = skipWhitespace(reply, index);
+		}
+		if(index == length) throw malformed(reply, "expected " + (token + 1) + " tokens");
+		int end = index;
+		while(end < length && !isWhitespace(reply.charAt(end))) end++;
+		return parseNumber(reply, index, end);
+	}
+
+	/**
+	 * Parses a decimal number like "-12.5", "3" or "1.5E-3".
+	 * @param reply the reply containing the number
+	 * @param from index of the first char of the number
+	 * @param to index after the last char of the number
+	 * @return the value of the number
+	 * @throws IllegalArgumentException if the chars aren't a valid number
+	 */
+	private static double parseNumber(CharSequence reply, int from, int to) {
+		int index = from;
+		boolean negative = false;
+		char c = reply.charAt(index);
+		if(c == '-' || c == '+') {
+			negative = c == '-';
+			index++;
+		}
+		long mantissa = 0;
+		int significantDigits = 0;
+		int exponent = 0;
+		int digits = 0;
+		boolean fraction = false;
+		for(; index < to; index++) {
+			c = reply.charAt(index);
+			if(c >= '0' && c <= '9') {
+				digits++;
+				if(mantissa != 0 || c != '0') significantDigits++;
+				if(significantDigits <= MAX_EXACT_DIGITS) {
+					mantissa = mantissa * 10 + (c - '0');
+					if(fraction) exponent--;
+				}
+			} else if(c == '.' && !fraction) {
+				fraction = true;
+			} else {
+				break;
+			}
+		}
+		if(digits == 0) throw malformed(reply, "invalid number \"" + reply.subSequence(from, to) + "\"");
+		if(index < to && (c == 'e' || c == 'E')) {
+			index++;
+			boolean negativeExponent = false;
+			if(index < to && (reply.charAt(index) == '-' || reply.charAt(index) == '+')) {
+				negativeExponent = reply.charAt(index) == '-';
+				index++;
+			}
+			if(index == to) throw malformed(reply, "invalid number \"" + reply.subSequence(from, to) + "\"");
+			int explicitExponent = 0;
+			for(; index < to; index++) {
+				c = reply.charAt(index);
+				if(c < '0' || c > '9') break;
+				if(explicitExponent < 10000) explicitExponent = explicitExponent * 10 + (c - '0');
+			}
+			exponent += negativeExponent ? -explicitExponent : explicitExponent;
+		}
+		if(index != to) throw malformed(reply, "invalid number \"" + reply.subSequence(from, to) + "\"");
+		if(significantDigits > MAX_EXACT_DIGITS || exponent < -22 || exponent > 22) {
+			// rare case, a correctly rounded result needs the full algorithm
+			return Double.parseDouble(reply.subSequence(from, to).toString());
+		}
+		double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Returns the index of the next char that isn't whitespace.
+	 * @param reply the reply
+	 * @param index index to start at
+	 * @return index of the next non-whitespace char or the length of the reply
+	 */
+	private static int skipWhitespace(CharSequence reply, int index) {
+		int length = reply.length();
+		while(index < length && isWhitespace(reply.charAt(index))) index++;
+		return index;
+	}
+
+	/**
+	 * Checks if a char separates tokens.
+	 * @param c the char
+	 * @return true for spaces, tabs, line breaks and NUL
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == 0;
+	}
+
+	/**
+	 * Creates the exception for a malformed reply.
+	 * @param reply the reply
+	 * @param reason what is wrong with the reply
+	 * @return the exception
+	 */
+	private static IllegalArgumentException malformed(CharSequence reply, String reason) {
+		return new IllegalArgumentException("[PoseParser] Malformed pose data, " + reason + ": \"" + reply + "\"");
+	}
+}
@@ -0,0 +1,186 @@
+package robprakt.network;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The SelectorLoop owns one I/O thread and one NIO selector, which service the non-blocking
+ * sockets of any number of clients. Reading, splitting the received bytes into messages and
+ * writing queued commands happens on this thread only, so the cutter-robot, holder-robot and
+ * tracking-system connections can have traffic in flight at the same time without
+ * one thread per connection.
+ */
+public final class SelectorLoop implements Runnable {
+
+	/**
+	 * loop shared by all clients which haven't been given a loop explicitly
+	 */
+	private static SelectorLoop defaultLoop;
+
+	/**
+	 * the selector watching all registered channels
+	 */
+	private final Selector selector;
+
+	/**
+	 * the I/O thread
+	 */
+	private final Thread thread;
+
+	/**
+	 * tasks which have to be executed on the I/O thread, like registering a channel
+	 */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * true after the loop has been closed
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Creates and starts a new loop.
+	 * @param name the name of the I/O thread
+	 * @throws IOException if the selector couldn't be opened
+	 */
+	public SelectorLoop(String name) throws IOException {
+		this.selector = Selector.open();
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Getter for the loop shared by all clients. It is started on first use.
+	 * @return the default loop
+	 */
+	public static synchronized SelectorLoop getDefault() {
+		if(defaultLoop == null || defaultLoop.closed) {
+			try {
+				defaultLoop = new SelectorLoop("robprakt-io");
+			} catch (IOException e) {
+				throw new IllegalStateException("[SelectorLoop] Couldn't open selector.", e);
+			}
+		}
+		return defaultLoop;
+	}
+
+	/**
+	 * Registers a connected channel with this loop. The channel is switched to non-blocking mode.
+	 * @param channel the connected channel
+	 * @param sink receives the messages of the channel on the I/O thread
+	 * @return the link used for writing to the channel
+	 * @throws IOException if the channel couldn't be registered
+	 */
+	NioLink register(SocketChannel channel, Link.Sink sink) throws IOException {
+		channel.configureBlocking(false);
+		NioLink link = new NioLink(this, channel, sink);
+		CompletableFuture<Void> registered = new CompletableFuture<Void>();
+		execute(() -> {
+			try {
+				link.setKey(channel.register(selector, SelectionKey.OP_READ, link));
+				registered.complete(null);
+			} catch (IOException e) {
+				registered.completeExceptionally(e);
+			}
+		});
+		try {
+			registered.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("[SelectorLoop] Interrupted while registering channel.", e);
+		} catch (ExecutionException e) {
+			throw new IOException("[SelectorLoop] Couldn't register channel.", e.getCause());
+		}
+		return link;
+	}
+
+	/**
+	 * Executes a task on the I/O thread.
+	 * @param task the task to execute
+	 */
+	void execute(Runnable task) {
+		if(closed) throw new IllegalStateException("[SelectorLoop] Loop has been closed.");
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Wakes up the I/O thread, so changed interest sets are taken into account.
+	 */
+	void wakeup() {
+		selector.wakeup();
+	}
+
+	/**
+	 * Checks if the calling thread is the I/O thread of this loop.
+	 * @return true if called on the I/O thread
+	 */
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * the I/O loop, don't call directly
+	 */
+	@Override
+	public void run() {
+		try {
+			while(!closed) {
+				selector.select();
+				Runnable task;
+				while((task = tasks.poll()) != null) {
+					task.run();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					NioLink link = (NioLink) key.attachment();
+					try {
+						if(key.isReadable()) link.read();
+						if(key.isValid() && key.isWritable()) link.write();
+					} catch (CancelledKeyException e) {
+						link.closed(null);
+					} catch (IOException e) {
+						link.closed(e);
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			if(!closed) {
+				System.err.println("[SelectorLoop] I/O thread stopped unexpectedly.");
+				e.printStackTrace();
+			}
+		} finally {
+			if(selector.isOpen()) {
+				for(SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+					((NioLink) key.attachment()).closed(null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes the loop and all channels registered with it.
+	 */
+	public void close() {
+		closed = true;
+		selector.wakeup();
+		try {
+			thread.join(1000);
+			selector.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			System.err.println("[SelectorLoop] wasn't able to close selector");
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package robprakt.network;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+/**
+ * ServerConnection is the server side of a connection accepted by a TCPServer.
+ * Messages are sent and received like with any other network entity.
+ */
+public class ServerConnection extends NetEntity {
+
+	/**
+	 * Constructor of the connection
+	 * @param socket the accepted socket
+	 */
+	ServerConnection(Socket socket) {
+		this.socket = socket;
+		initStreams(socket);
+	}
+
+	/**
+	 * Constructor for connections without a socket, which override sending and receiving
+	 */
+	ServerConnection() {
+	}
+
+	/**
+	 * Getter for the address of the client
+	 * @return the remote address of the connection
+	 */
+	public SocketAddress getRemoteAddress() {
+		return socket.getRemoteSocketAddress();
+	}
+
+	/**
+	 * this method closes the connection to the client
+	 */
+	@Override
+	public void closeConnection() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			System.err.println("wasn't able to close connection");
+		}
+	}
+
+	/**
+	 * this method checks if the connection has been closed
+	 * @return true if the connection has been closed
+	 */
+	@Override
+	public boolean isClosed() {
+		return socket.isClosed();
+	}
+}
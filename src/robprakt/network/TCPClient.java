@@ -1,15 +1,176 @@
 package robprakt.network;
 
 import java.io.IOException;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * 
  * @author Micha Halla
  * this class represents a TCP client
+ * the socket is non-blocking and serviced by the I/O thread of a SelectorLoop,
+ * connecting to the host "loopback" talks to a LoopbackServer in the same process instead
+ * 
+ * Servers answer every command with exactly one message in the order of the commands.
+ * The client remembers for every sent command who is waiting for its response:
+ * a future created by request(), or the inbox read by receiveData() for commands sent by sendData().
+ * Futures are completed on the I/O thread, so dependent actions which block have to use
+ * the *Async methods of CompletableFuture.
+ * 
+ * If reconnecting is enabled, a connection which is lost without the client closing it or sending
+ * a command ending the session is reopened in the background with exponential backoff, and the
+ * handshake of the session is replayed before other callers continue. Commands which were in flight
+ * when the connection broke fail, awaitRecovery tells if it is worth to send them again.
  */
 public class TCPClient extends NetEntity {
+	
+	/**
+	 * marks the end of the inbox when the server closed the connection
+	 */
+	private static final String CLOSED_BY_SERVER = new String("closed by server");
+	
+	/**
+	 * marks the end of the inbox when the connection broke down
+	 */
+	private static final String CONNECTION_LOST = new String("connection lost");
+	
+	/**
+	 * the loop servicing the socket of this client
+	 */
+	private final SelectorLoop loop;
+	
+	/**
+	 * the link to the server, null if not connected
+	 */
+	private volatile Link link;
+	
+	/**
+	 * received messages which haven't been fetched by receiveData yet
+	 */
+	private final LinkedBlockingQueue<String> inbox = new LinkedBlockingQueue<String>();
+	
+	/**
+	 * placeholder in pending for commands whose response goes to the inbox
+	 */
+	private static final CompletableFuture<String> TO_INBOX = new CompletableFuture<String>();
+	
+	/**
+	 * placeholder in pending for commands whose response is completed as TimedResponse
+	 */
+	private static final CompletableFuture<String> TIMED = new CompletableFuture<String>();
+	
+	/**
+	 * receivers of the responses of the sent commands in the order of the commands, guarded by itself
+	 */
+	private final ArrayDeque<PendingCommand> pending = new ArrayDeque<PendingCommand>();
+	
+	/**
+	 * System.nanoTime of the last command sent or response received
+	 */
+	private volatile long lastActivityNanos = System.nanoTime();
+	
+	/**
+	 * round-trip latencies of the commands, by verb
+	 */
+	private final LatencyStats latencyStats = new LatencyStats("not connected");
+	
+	/**
+	 * bounds the number of commands waiting for their response
+	 */
+	private final OutboundQueue outboundQueue = new OutboundQueue();
+	
+	/**
+	 * commands after which the server closes the connection on purpose
+	 */
+	private static final Set<String> CLOSING_COMMANDS = Set.of("Quit", "CM_QUITCONNECTION");
+	
+	/**
+	 * default delay before the first attempt to reconnect in milliseconds
+	 */
+	public static final long DEFAULT_RECONNECT_DELAY_MS = 100;
+	
+	/**
+	 * default maximum delay between two attempts to reconnect in milliseconds
+	 */
+	public static final long DEFAULT_MAX_RECONNECT_DELAY_MS = 5000;
+	
+	/**
+	 * default time the server has to answer each command of the handshake in milliseconds
+	 */
+	public static final long DEFAULT_HANDSHAKE_TIMEOUT_MS = 10000;
+	
+	/**
+	 * true if a lost connection is reopened automatically
+	 */
+	private volatile boolean reconnectEnabled;
+	
+	/**
+	 * delay before the first attempt to reconnect in milliseconds, doubled after every failed attempt
+	 */
+	private volatile long reconnectDelayMs = DEFAULT_RECONNECT_DELAY_MS;
+	
+	/**
+	 * maximum delay between two attempts to reconnect in milliseconds
+	 */
+	private volatile long maxReconnectDelayMs = DEFAULT_MAX_RECONNECT_DELAY_MS;
+	
+	/**
+	 * number of attempts before giving up, 0 to try until the client is closed or connected again
+	 */
+	private volatile int maxReconnectAttempts;
+	
+	/**
+	 * commands replayed in order after reconnecting, e.g. "Hello Robot"
+	 */
+	private volatile List<String> handshake = Collections.emptyList();
+	
+	/**
+	 * listeners notified about lost connections and reconnects
+	 */
+	private final List<ConnectionListener> listeners = new CopyOnWriteArrayList<ConnectionListener>();
+	
+	/**
+	 * the receiver of the current link, the end of other links doesn't count as loss of the connection
+	 */
+	private volatile ClientSink sink;
+	
+	/**
+	 * true once the client closed the connection or sent a command ending the session
+	 */
+	private volatile boolean closeExpected;
+	
+	/**
+	 * guards reconnector and is notified when reconnecting ends
+	 */
+	private final Object connectionLock = new Object();
+	
+	/**
+	 * the thread reconnecting the client, null if not reconnecting
+	 */
+	private Thread reconnector;
+	
+	/**
+	 * default for the number of outstanding commands when pipelining
+	 */
+	public static final int DEFAULT_PIPELINE_WINDOW = 16;
+	
+	/**
+	 * maximum number of commands which are outstanding at once when pipelining
+	 */
+	private int pipelineWindow = DEFAULT_PIPELINE_WINDOW;
 		
 	/**
 	 * the ip to connect to
@@ -26,11 +187,23 @@ public class TCPClient extends NetEntity {
 	 * @param ip the ip to connect to
 	 */
 	public TCPClient(String ip, int port) {
+		this(ip, port, SelectorLoop.getDefault());
+	}
+	
+	/**
+	 * the constructor of the client
+	 * @param ip the ip to connect to
+	 * @param port the port to connect to
+	 * @param loop the loop servicing the socket of this client
+	 */
+	public TCPClient(String ip, int port, SelectorLoop loop) {
 		this.ip = ip;
 		this.port = port;
+		this.loop = loop;
 	}
 	
 	public TCPClient() {
+		this(null, 0);
 	}
 
 	/**
@@ -58,39 +231,606 @@ public class TCPClient extends NetEntity {
 		this.port = port;
 	}
 	
+	/**
+	 * Setter for the pipeline window
+	 * @param window maximum number of outstanding commands, has to be at least 1
+	 */
+	public void setPipelineWindow(int window) {
+		if(window < 1) throw new IllegalArgumentException("[TCPClient] Pipeline window has to be at least 1.");
+		this.pipelineWindow = window;
+	}
+	
+	/**
+	 * Getter for the pipeline window
+	 * @return maximum number of outstanding commands when pipelining
+	 */
+	public int getPipelineWindow() {
+		return pipelineWindow;
+	}
+	
+	/**
+	 * Getter for the round-trip latencies of this client
+	 * the latency of a command is the time between queueing it for sending and receiving its response
+	 * @return latency histograms by command verb
+	 */
+	public LatencyStats getLatencyStats() {
+		return latencyStats;
+	}
+	
+	/**
+	 * Getter for the outbound queue, e.g. for setting the high-water mark or reading its metrics
+	 * @return the queue bounding the number of commands waiting for their response
+	 */
+	public OutboundQueue getOutboundQueue() {
+		return outboundQueue;
+	}
+	
+	/**
+	 * Enables or disables reconnecting a lost connection.
+	 * @param enabled true for reopening a lost connection in the background
+	 */
+	public void setReconnectEnabled(boolean enabled) {
+		this.reconnectEnabled = enabled;
+		if(!enabled) stopReconnecting();
+	}
+	
+	/**
+	 * Checks if reconnecting is enabled
+	 * @return true if a lost connection is reopened in the background
+	 */
+	public boolean isReconnectEnabled() {
+		return reconnectEnabled;
+	}
+	
+	/**
+	 * Setter for the backoff of reconnecting
+	 * @param delay delay before the first attempt, doubled after every failed attempt
+	 * @param maxDelay maximum delay between two attempts
+	 * @param maxAttempts number of attempts before giving up, 0 for no limit
+	 * @param unit unit of the delays
+	 */
+	public void setReconnectBackoff(long delay, long maxDelay, int maxAttempts, TimeUnit unit) {
+		if(delay < 1 || maxDelay < delay || maxAttempts < 0) throw new IllegalArgumentException("[TCPClient] Invalid backoff for reconnecting.");
+		this.reconnectDelayMs = Math.max(1, unit.toMillis(delay));
+		this.maxReconnectDelayMs = Math.max(reconnectDelayMs, unit.toMillis(maxDelay));
+		this.maxReconnectAttempts = maxAttempts;
+	}
+	
+	/**
+	 * Setter for the handshake replayed after reconnecting.
+	 * Each command has to be answered within DEFAULT_HANDSHAKE_TIMEOUT_MS, otherwise the attempt fails.
+	 * @param commands commands in the order they are sent, e.g. "Hello Robot" for a robot
+	 */
+	public void setHandshake(List<String> commands) {
+		this.handshake = List.copyOf(commands);
+	}
+	
+	/**
+	 * Getter for the handshake replayed after reconnecting
+	 * @return the commands in the order they are sent
+	 */
+	public List<String> getHandshake() {
+		return handshake;
+	}
+	
+	/**
+	 * Adds a listener notified about lost connections and reconnects.
+	 * @param listener the listener
+	 */
+	public void addConnectionListener(ConnectionListener listener) {
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Removes a listener.
+	 * @param listener the listener
+	 */
+	public void removeConnectionListener(ConnectionListener listener) {
+		listeners.remove(listener);
+	}
+	
 	/**
 	 *
 	 * this method connects the client to a server
+	 * the ip LoopbackServer.HOST connects to the LoopbackServer bound to the port, without a socket
 	 * @return true when connected, false on errors
 	 */
 	public boolean connect() {
+		stopReconnecting();
 		try {
-			socket = new Socket(ip, port);
-		} catch (UnknownHostException e) {
+			open();
+		} catch (UnresolvedAddressException e) {
 			System.err.println("Unknown Host");
 			return false;
-//			e.printStackTrace();
 		} catch (IOException e) {
 			System.err.println("Problems to connect, is the server started?");
 			return false;
 		}
-		initStreams(socket);
 		return true;
 	}
-
+	
 	/**
-	 * this method closes the connection to a server
+	 * Opens a new link to the server, closing the current one.
+	 * @throws IOException if the server can't be reached
+	 */
+	private void open() throws IOException {
+		link = openLink();
+	}
+	
+	/**
+	 * Opens a new link to the server and closes the current one, without publishing the new one,
+	 * so no command is written to it before the caller publishes it.
+	 * @return the new link
+	 * @throws IOException if the server can't be reached
+	 */
+	private Link openLink() throws IOException {
+		Link old = link;
+		// the end of the old link isn't a loss of the connection, its sink drops everything from now on
+		sink = null;
+		if(old != null) old.close();
+		// so the commands still waiting for the old link fail here
+		failPending(new IOException("[TCPClient] Connection has been closed."), null);
+		closeExpected = false;
+		ClientSink next = new ClientSink();
+		if(LoopbackServer.HOST.equals(ip)) {
+			inbox.clear();
+			latencyStats.setName((name != null ? name + " " : "") + ip + ":" + port);
+			sink = next;
+			return LoopbackServer.connect(port, next);
+		}
+		SocketChannel channel = null;
+		try {
+			channel = SocketChannel.open(new InetSocketAddress(ip, port));
+			channel.socket().setTcpNoDelay(true);
+			inbox.clear();
+			latencyStats.setName((name != null ? name + " " : "") + ip + ":" + port);
+			sink = next;
+			return loop.register(channel, next);
+		} catch (IOException e) {
+			if(channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e1) {
+					// nothing left to clean up
+				}
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Checks if the client is reconnecting
+	 * @return true while a lost connection is being reopened
+	 */
+	public boolean isReconnecting() {
+		synchronized(connectionLock) {
+			return reconnector != null;
+		}
+	}
+	
+	/**
+	 * Waits until the client isn't reconnecting anymore.
+	 * @param timeout the maximum time to wait
+	 * @param unit unit of the timeout
+	 * @return true if the client is connected, false if it is closed or still reconnecting
+	 * @throws InterruptedException if the waiting thread has been interrupted
+	 */
+	public boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized(connectionLock) {
+			while(reconnector != null) {
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) return false;
+				TimeUnit.NANOSECONDS.timedWait(connectionLock, remaining);
+			}
+		}
+		return !isClosed();
+	}
+	
+	/**
+	 * Waits for the client to recover from a failed request, so the command can be sent again.
+	 * Only commands which can safely be repeated, like moving to an absolute pose or
+	 * measuring a pose, should be sent again.
+	 * @param failure the exception of the failed request
+	 * @param timeout the maximum time to wait
+	 * @param unit unit of the timeout
+	 * @return true if the request failed because the connection has been lost and the client
+	 * 			has been reconnected within the timeout
+	 * @throws InterruptedException if the waiting thread has been interrupted
+	 */
+	public boolean awaitRecovery(Throwable failure, long timeout, TimeUnit unit) throws InterruptedException {
+		if(!reconnectEnabled) return false;
+		for(Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if(cause instanceof IOException) return awaitConnected(timeout, unit);
+		}
+		return false;
+	}
+	
+	/**
+	 * Starts reconnecting in the background, unless the client is reconnecting already.
+	 */
+	private void startReconnecting() {
+		synchronized(connectionLock) {
+			if(reconnector != null) return;
+			Thread t = new Thread(this::reconnect, "robprakt-reconnect-" + (name != null ? name : ip + ":" + port));
+			t.setDaemon(true);
+			reconnector = t;
+			t.start();
+		}
+	}
+	
+	/**
+	 * Stops reconnecting, the reconnecting thread ends at its next attempt.
+	 */
+	private void stopReconnecting() {
+		synchronized(connectionLock) {
+			if(reconnector == null) return;
+			reconnector.interrupt();
+			reconnector = null;
+			connectionLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Checks if a thread is still the one reconnecting the client.
+	 * @param thread the thread
+	 * @return true if it hasn't been stopped
+	 */
+	private boolean isReconnector(Thread thread) {
+		synchronized(connectionLock) {
+			return reconnector == thread;
+		}
+	}
+	
+	/**
+	 * Ends reconnecting and wakes up the threads waiting for it.
+	 * @param thread the thread which has been reconnecting
+	 */
+	private void endReconnecting(Thread thread) {
+		synchronized(connectionLock) {
+			if(reconnector != thread) return;
+			reconnector = null;
+			connectionLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Reopens the connection with exponential backoff, runs on the reconnecting thread.
+	 */
+	private void reconnect() {
+		Thread self = Thread.currentThread();
+		long delay = reconnectDelayMs;
+		int attempt = 0;
+		try {
+			while(isReconnector(self)) {
+				TimeUnit.MILLISECONDS.sleep(delay);
+				if(!isReconnector(self)) return;
+				attempt++;
+				if(reopen()) {
+					System.out.println("[TCPClient] Reconnected to " + ip + ":" + port + " after " + attempt + " attempt(s).");
+					endReconnecting(self);
+					for(ConnectionListener listener : listeners) listener.reconnected(this, attempt);
+					return;
+				}
+				int maxAttempts = maxReconnectAttempts;
+				if(maxAttempts > 0 && attempt >= maxAttempts) {
+					System.out.println("[TCPClient] Gave up reconnecting to " + ip + ":" + port + " after " + attempt + " attempt(s).");
+					endReconnecting(self);
+					for(ConnectionListener listener : listeners) listener.reconnectAbandoned(this, attempt);
+					return;
+				}
+				delay = Math.min(delay * 2, maxReconnectDelayMs);
+				for(ConnectionListener listener : listeners) listener.reconnectFailed(this, attempt, delay);
+			}
+		} catch (InterruptedException e) {
+			// stopped by connect, closeConnection or disabling reconnecting
+		} finally {
+			endReconnecting(self);
+		}
+	}
+	
+	/**
+	 * Opens a new link and replays the handshake.
+	 * The link is published after the handshake has been answered, meanwhile other callers
+	 * still write to the lost link and fail, so no command is sent ahead of the handshake.
+	 * @return true if the server answered all commands of the handshake
+	 * @throws InterruptedException if reconnecting has been stopped
+	 */
+	private boolean reopen() throws InterruptedException {
+		Link next;
+		try {
+			next = openLink();
+		} catch (IOException | UnresolvedAddressException e) {
+			return false;
+		}
+		try {
+			for(String command : handshake) {
+				CompletableFuture<String> response = new CompletableFuture<String>();
+				try {
+					write(next, command, null, response, null, true);
+					response.get(DEFAULT_HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+				} catch (IOException | RejectedExecutionException | ExecutionException | TimeoutException e) {
+					System.out.println("[TCPClient] Handshake with " + ip + ":" + port + " failed at \"" + command.trim() + "\".");
+					sink = null;
+					next.close();
+					return false;
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped by connect or closeConnection, the sink may belong to a new link already
+			next.close();
+			throw e;
+		}
+		synchronized(connectionLock) {
+			// connect or closeConnection stopped reconnecting meanwhile
+			if(reconnector != Thread.currentThread()) {
+				next.close();
+				return false;
+			}
+			link = next;
+		}
+		return true;
+	}
+	
+	/**
+	 * this method sends a command to the server
+	 * the command is queued and written by the I/O thread, so this method doesn't block
+	 * @param data the command to send
 	 */
 	@Override
-	public void closeConnection() {
-		if(socket!=null) {
+	public void sendData(String data) {
+		if(link != null) {
+			try {
+				write(link, data, null, TO_INBOX, null, true);
+			} catch (IOException e) {
+				System.err.println("[TCPClient] Couldn't send, connection has been closed.");
+			} catch (RejectedExecutionException e) {
+				System.err.println("[TCPClient] Couldn't send, " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Sends a command and returns the response as future.
+	 * The command is written in the order of the calls, so responses of a client are
+	 * completed in the same order as the commands. No other caller can take the response.
+	 * Cancelling the future or letting it time out doesn't stop the command,
+	 * its response will be dropped when it arrives.
+	 * If the outbound queue is at its high-water mark, this method blocks or the future fails
+	 * with a RejectedExecutionException, depending on the policy of the queue.
+	 * @param command the command to send
+	 * @return future completed with the response, or exceptionally if the connection is closed
+	 */
+	public CompletableFuture<String> request(String command) {
+		return request(command, null);
+	}
+	
+	/**
+	 * Sends an already encoded command, like one of a PoseCommandEncoder, and returns the response as future.
+	 * The bytes are copied before this method returns, so the buffer can be reused right away.
+	 * @param command the encoded command, its remaining bytes are sent
+	 * @return future completed with the response, or exceptionally if the connection is closed
+	 */
+	public CompletableFuture<String> request(ByteBuffer command) {
+		return request(null, command);
+	}
+	
+	/**
+	 * Sends a command and returns the response together with the times the command has been sent
+	 * and the response has been received, e.g. for pairing a pose with samples of another server.
+	 * @param command the command to send
+	 * @return future completed with the timed response, or exceptionally if the connection is closed
+	 */
+	public CompletableFuture<TimedResponse> requestTimed(String command) {
+		return requestTimed(command, null);
+	}
+	
+	/**
+	 * Sends an already encoded command and returns the response together with the times the
+	 * command has been sent and the response has been received.
+	 * @param command the encoded command, its remaining bytes are sent
+	 * @return future completed with the timed response, or exceptionally if the connection is closed
+	 */
+	public CompletableFuture<TimedResponse> requestTimed(ByteBuffer command) {
+		return requestTimed(null, command);
+	}
+	
+	/**
+	 * Sends a command given either as String or as encoded bytes.
+	 * @param command the command as String or null
+	 * @param encoded the encoded command, used if command is null
+	 * @return future completed with the response
+	 */
+	private CompletableFuture<String> request(String command, ByteBuffer encoded) {
+		CompletableFuture<String> response = new CompletableFuture<String>();
+		send(command, encoded, response, null, response, true);
+		return response;
+	}
+	
+	/**
+	 * Sends a command given either as String or as encoded bytes, the response is timed.
+	 * @param command the command as String or null
+	 * @param encoded the encoded command, used if command is null
+	 * @return future completed with the timed response
+	 */
+	private CompletableFuture<TimedResponse> requestTimed(String command, ByteBuffer encoded) {
+		CompletableFuture<TimedResponse> response = new CompletableFuture<TimedResponse>();
+		send(command, encoded, TIMED, response, response, true);
+		return response;
+	}
+	
+	/**
+	 * Sends a probe of a HealthMonitor and returns the timed response.
+	 * Neither the probe nor its response is recorded, so a recorded session replays the same
+	 * whether or not the connection has been watched meanwhile.
+	 * @param command the probe to send
+	 * @return future completed with the timed response, or exceptionally if the connection is closed
+	 */
+	CompletableFuture<TimedResponse> probe(String command) {
+		CompletableFuture<TimedResponse> response = new CompletableFuture<TimedResponse>();
+		send(command, null, TIMED, response, response, false);
+		return response;
+	}
+	
+	/**
+	 * Sends a command, failing the given future if it can't be sent.
+	 * @param command the command as String or null
+	 * @param encoded the encoded command, used if command is null
+	 * @param receiver future for the response or TIMED
+	 * @param timed future for the timed response or null
+	 * @param response the future returned to the caller
+	 * @param record false if neither the command nor its response is recorded
+	 */
+	private void send(String command, ByteBuffer encoded, CompletableFuture<String> receiver, CompletableFuture<TimedResponse> timed, CompletableFuture<?> response, boolean record) {
+		if(link == null) {
+			response.completeExceptionally(new IOException("[TCPClient] Not connected."));
+			return;
+		}
+		try {
+			write(link, command, encoded, receiver, timed, record);
+		} catch (IOException | RejectedExecutionException e) {
+			response.completeExceptionally(e);
+		}
+	}
+	
+	/**
+	 * Sends a command and returns the response as future, which fails with a TimeoutException
+	 * if the response isn't received in time.
+	 * @param command the command to send
+	 * @param timeout the time to wait for the response
+	 * @param unit unit of the timeout
+	 * @return future completed with the response
+	 */
+	public CompletableFuture<String> request(String command, long timeout, TimeUnit unit) {
+		return request(command).orTimeout(timeout, unit);
+	}
+	
+	/**
+	 * Writes a command and registers the receiver of its response in one step,
+	 * so the order of pending is the order of the commands.
+	 * @param link the link to write to
+	 * @param command the command to send or null
+	 * @param encoded the encoded command, sent if command is null
+	 * @param receiver future for the response, TO_INBOX or TIMED
+	 * @param timed future for the timed response if the receiver is TIMED, otherwise null
+	 * @param record false if neither the command nor its response is recorded
+	 * @throws IOException if the connection is closed or the thread has been interrupted while waiting for room
+	 * @throws RejectedExecutionException if the outbound queue rejected the command
+	 */
+	private void write(Link link, String command, ByteBuffer encoded, CompletableFuture<String> receiver, CompletableFuture<TimedResponse> timed, boolean record) throws IOException {
+		LatencyHistogram histogram = command != null ? latencyStats.histogramFor(command) : latencyStats.histogramFor(encoded);
+		// must not wait for room while holding pending, the responses making room need it
+		outboundQueue.acquire();
+		synchronized(pending) {
+			TrafficRecorder recorder = this.recorder;
+			if(recorder != null && record) {
+				if(command != null) {
+					recorder.recordCommand(name, command);
+				} else {
+					recorder.recordCommand(name, encoded);
+				}
+			}
+			if(command != null && CLOSING_COMMANDS.contains(command.trim())) closeExpected = true;
+			long sent = System.nanoTime();
+			lastActivityNanos = sent;
+			pending.add(new PendingCommand(receiver, timed, histogram, sent, record));
 			try {
-				socket.close();
+				if(command != null) {
+					link.write(command);
+				} else {
+					link.write(encoded);
+				}
 			} catch (IOException e) {
-				System.err.println("wasn't able to close connection");
-				e.printStackTrace();
+				pending.pollLast();
+				outboundQueue.release();
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * this method blocks until the next message of the server has been received
+	 * @return the message without line feed, null if the server closed the connection
+	 * 			or "You have been disconnected" if the connection broke down
+	 */
+	@Override
+	public String receiveData() {
+		if(link == null) return null;
+		try {
+			String message = inbox.take();
+			if(message == CLOSED_BY_SERVER || message == CONNECTION_LOST) {
+				// keep the marker, so following calls don't block either
+				inbox.add(message);
+				return message == CLOSED_BY_SERVER ? null : "You have been disconnected";
 			}
+			return message;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Opens a pipeline for sending commands without waiting for each response.
+	 * The window of the pipeline is the current pipeline window of this client.
+	 * @return the pipeline
+	 */
+	public Pipeline openPipeline() {
+		return new Pipeline(this, pipelineWindow);
+	}
+	
+	/**
+	 * Sends all commands pipelined and waits for all responses.
+	 * Only one round trip of latency is added for the whole list, as long as the
+	 * list isn't longer than the pipeline window.
+	 * @param commands the commands to send
+	 * @return responses in the order of the commands
+	 */
+	public List<String> sendPipelined(List<String> commands) {
+		Pipeline pipeline = openPipeline();
+		for(String command : commands) {
+			if(!pipeline.send(command)) break;
+		}
+		return pipeline.drain();
+	}
+
+	/**
+	 * this method closes the connection to a server
+	 */
+	@Override
+	public void closeConnection() {
+		closeExpected = true;
+		stopReconnecting();
+		if(link!=null) {
+			link.close();
+		}
+	}
+	
+	/**
+	 * Getter for the time the oldest outstanding command has been waiting for its response,
+	 * e.g. for noticing a server which stopped answering before the command times out
+	 * @return nanoseconds since the oldest outstanding command has been sent, 0 if there is none
+	 */
+	public long getPendingAgeNanos() {
+		long sent;
+		synchronized(pending) {
+			PendingCommand oldest = pending.peek();
+			if(oldest == null) return 0;
+			sent = oldest.sentNanos;
+		}
+		return Math.max(0, System.nanoTime() - sent);
+	}
+	
+	/**
+	 * Getter for the time the client has been idle
+	 * @return nanoseconds since the last command has been sent or response has been received,
+	 * 			0 while commands are waiting for their response
+	 */
+	public long getIdleNanos() {
+		synchronized(pending) {
+			if(!pending.isEmpty()) return 0;
 		}
+		return Math.max(0, System.nanoTime() - lastActivityNanos);
 	}
 	
 	/**
@@ -99,7 +839,131 @@ public class TCPClient extends NetEntity {
 	 */
 	@Override
 	public boolean isClosed() {
-		return socket==null || socket.isClosed();
+		return link==null || !link.isOpen();
+	}
+	
+	/**
+	 * Receives the messages of the current link on the I/O thread, or the handler's thread of a loopback link.
+	 */
+	private class ClientSink implements Link.Sink {
+		
+		@Override
+		public void frameReceived(String frame) {
+			long received = System.nanoTime();
+			PendingCommand command;
+			synchronized(pending) {
+				// a replaced link must not take the responses of the commands sent to the current one
+				if(sink != this) return;
+				command = pending.poll();
+			}
+			lastActivityNanos = received;
+			TrafficRecorder recorder = TCPClient.this.recorder;
+			if(recorder != null && (command == null || command.recorded)) recorder.recordResponse(name, frame);
+			if(command == null) {
+				inbox.add(frame);
+				return;
+			}
+			outboundQueue.release();
+			command.histogram.record(received - command.sentNanos);
+			if(command.receiver == TO_INBOX) {
+				inbox.add(frame);
+			} else {
+				// callbacks sending further commands must not block this thread
+				boolean delivering = OutboundQueue.isDelivering();
+				OutboundQueue.setDelivering(true);
+				try {
+					if(command.receiver == TIMED) {
+						command.timed.complete(new TimedResponse(frame, command.sentNanos, received));
+					} else {
+						command.receiver.complete(frame);
+					}
+				} finally {
+					OutboundQueue.setDelivering(delivering);
+				}
+			}
+		}
+		
+		@Override
+		public void connectionClosed(IOException cause) {
+			// the commands of a replaced link have been failed when it was replaced
+			if(sink != this) return;
+			boolean lost = !closeExpected;
+			// reconnecting starts before the pending commands fail, so their callers can wait for it
+			if(lost && reconnectEnabled) startReconnecting();
+			if(!failPending(new IOException("[TCPClient] Connection has been closed.", cause), this)) return;
+			inbox.add(cause == null ? CLOSED_BY_SERVER : CONNECTION_LOST);
+			if(lost) {
+				for(ConnectionListener listener : listeners) listener.connectionLost(TCPClient.this, cause);
+			}
+		}
+	}
+	
+	/**
+	 * Fails all commands waiting for their response.
+	 * @param closed the exception the futures of the commands fail with
+	 * @param owner the sink whose link has been closed, nothing fails if it has been replaced meanwhile,
+	 * 			null for failing the commands in any case
+	 * @return true if the commands have been failed
+	 */
+	private boolean failPending(IOException closed, ClientSink owner) {
+		PendingCommand command;
+		boolean delivering = OutboundQueue.isDelivering();
+		OutboundQueue.setDelivering(true);
+		try {
+			synchronized(pending) {
+				if(owner != null && sink != owner) return false;
+				while((command = pending.poll()) != null) {
+					outboundQueue.release();
+					if(command.receiver == TIMED) {
+						command.timed.completeExceptionally(closed);
+					} else if(command.receiver != TO_INBOX) {
+						command.receiver.completeExceptionally(closed);
+					}
+				}
+			}
+		} finally {
+			OutboundQueue.setDelivering(delivering);
+		}
+		return true;
+	}
+	
+	/**
+	 * A command waiting for its response.
+	 */
+	private static final class PendingCommand {
+		
+		/**
+		 * future for the response, TO_INBOX or TIMED
+		 */
+		final CompletableFuture<String> receiver;
+		
+		/**
+		 * future for the timed response if the receiver is TIMED, otherwise null
+		 */
+		final CompletableFuture<TimedResponse> timed;
+		
+		/**
+		 * histogram of the verb of the command
+		 */
+		final LatencyHistogram histogram;
+		
+		/**
+		 * time the command has been queued for sending
+		 */
+		final long sentNanos;
+		
+		/**
+		 * false if neither the command nor its response is recorded
+		 */
+		final boolean recorded;
+		
+		PendingCommand(CompletableFuture<String> receiver, CompletableFuture<TimedResponse> timed, LatencyHistogram histogram, long sentNanos, boolean recorded) {
+			this.receiver = receiver;
+			this.timed = timed;
+			this.histogram = histogram;
+			this.sentNanos = sentNanos;
+			this.recorded = recorded;
+		}
 	}
 	
 	/**
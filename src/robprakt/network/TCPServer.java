@@ -1,22 +1,64 @@
 package robprakt.network;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
+/**
+ * this class represents a TCP server
+ * it either talks to a single client (accept, sendData, receiveData) or serves any number of
+ * clients at once, each on its own thread with a ConnectionHandler (serve)
+ */
 public class TCPServer extends NetEntity {
 
+	/**
+	 * delay after the first failed accept in milliseconds
+	 */
+	private static final long MIN_ACCEPT_BACKOFF_MS = 10;
+
+	/**
+	 * maximal delay between failed accepts in milliseconds
+	 */
+	private static final long MAX_ACCEPT_BACKOFF_MS = 1000;
+
 	ServerSocket server;
-	
+
+	/**
+	 * executes the handlers of the accepted connections, null if not serving
+	 */
+	private ExecutorService handlerExecutor;
+
+	/**
+	 * connections which are currently handled
+	 */
+	private final Set<ServerConnection> connections = ConcurrentHashMap.newKeySet();
+
 	public TCPServer(int port) {
+		this(port, null);
+	}
+	
+	/**
+	 * creates a server listening on a single local address only, so several servers can
+	 * use the same port on one machine, e.g. 127.0.0.1 and 127.0.0.2
+	 * @param port the port to listen on
+	 * @param bindAddress the local address to listen on, null for all addresses
+	 */
+	public TCPServer(int port, InetAddress bindAddress) {
 		try {
-			server = new ServerSocket(port);
+			server = new ServerSocket(port, 50, bindAddress);
 			System.out.println("Server startet...");
 		} catch (IOException e) {
 			System.err.println("Could't init Server");
 			e.printStackTrace();
 		}
 	}
-	
+
 	public void accept() {
 		try {
 			socket = server.accept();
@@ -26,23 +68,150 @@ public class TCPServer extends NetEntity {
 			e.printStackTrace();
 		}
 	}
-	
-	
+
+	/**
+	 * Accepts clients until the server is closed. Every client is handled on its own thread,
+	 * which is virtual if the running JVM supports virtual threads.
+	 * Returns immediately, accepting runs on a separate thread.
+	 * @param handler serves each accepted client
+	 */
+	public void serve(ConnectionHandler handler) {
+		serve(handler, newHandlerExecutor());
+	}
+
+	/**
+	 * Accepts clients until the server is closed. Every client is handled by a task of the executor.
+	 * Returns immediately, accepting runs on a separate thread.
+	 * @param handler serves each accepted client
+	 * @param executor runs the handlers, is shut down when the server is closed
+	 */
+	public void serve(ConnectionHandler handler, ExecutorService executor) {
+		if(handlerExecutor != null) throw new IllegalStateException("[TCPServer] Server is already serving.");
+		handlerExecutor = executor;
+		Thread acceptor = new Thread(() -> acceptLoop(handler), "robprakt-accept-" + server.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Accepts clients and hands them to the handler executor.
+	 * If accepting fails while the server is open, e.g. because there are no file descriptors left,
+	 * the next attempt is delayed, doubling the delay up to MAX_ACCEPT_BACKOFF_MS.
+	 * @param handler serves each accepted client
+	 */
+	private void acceptLoop(ConnectionHandler handler) {
+		long backoff = MIN_ACCEPT_BACKOFF_MS;
+		while(!server.isClosed()) {
+			Socket client;
+			try {
+				client = server.accept();
+			} catch (IOException e) {
+				if(server.isClosed()) return;
+				System.err.println("[TCPServer] Error on accepting client: " + e.getMessage());
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException e1) {
+					return;
+				}
+				backoff = Math.min(2 * backoff, MAX_ACCEPT_BACKOFF_MS);
+				continue;
+			}
+			backoff = MIN_ACCEPT_BACKOFF_MS;
+			try {
+				client.setTcpNoDelay(true);
+			} catch (IOException e) {
+				System.err.println("[TCPServer] Error on configuring client: " + e.getMessage());
+				try {
+					client.close();
+				} catch (IOException e1) {
+					// the client is dropped anyway
+				}
+				continue;
+			}
+			ServerConnection connection = new ServerConnection(client);
+			connections.add(connection);
+			try {
+				handlerExecutor.execute(() -> handle(handler, connection));
+			} catch (RejectedExecutionException e) {
+				connection.closeConnection();
+				connections.remove(connection);
+			}
+		}
+	}
+
+	/**
+	 * Runs the handler for a single connection and closes the connection afterwards.
+	 * @param handler serves the client
+	 * @param connection the connection to the client
+	 */
+	private void handle(ConnectionHandler handler, ServerConnection connection) {
+		try {
+			handler.handle(connection);
+		} catch (IOException e) {
+			System.err.println("[TCPServer] Connection to " + connection.getRemoteAddress() + " failed: " + e.getMessage());
+		} finally {
+			connection.closeConnection();
+			connections.remove(connection);
+		}
+	}
+
+	/**
+	 * Getter for the number of clients currently being served
+	 * @return number of open connections
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * Getter for the port the server is listening on
+	 * @return the local port
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Creates an executor starting a virtual thread per connection. If the JVM doesn't support
+	 * virtual threads (before Java 21) a cached pool of daemon threads is used.
+	 * @return executor for connection handlers
+	 */
+	static ExecutorService newHandlerExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "robprakt-connection");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
 	@Override
 	public void closeConnection(){
 		if(socket!=null) {
 			try {
 				socket.close();
-				server.close();
 			} catch (IOException e) {
 				System.err.println("wasn't able to close connection");
 				e.printStackTrace();
 			}
 		}
+		try {
+			if(server!=null) server.close();
+		} catch (IOException e) {
+			System.err.println("wasn't able to close server");
+		}
+		for(ServerConnection connection : connections) {
+			connection.closeConnection();
+		}
+		if(handlerExecutor!=null) handlerExecutor.shutdown();
 	}
 
 	@Override
 	public boolean isClosed() {
+		if(handlerExecutor!=null) return server.isClosed();
 		return socket==null || socket.isClosed();
 	}
 
@@ -0,0 +1,83 @@
+package robprakt.network;
+
+/**
+ * TimedResponse is the response of a server together with the monotonic times its command has
+ * been sent and the response has been received, both taken with System.nanoTime.
+ * The server handled the command somewhere in between, so a pose in the response has been
+ * captured within that window, most likely close to its midpoint.
+ */
+public final class TimedResponse {
+
+	/**
+	 * the response without line feed
+	 */
+	private final String response;
+
+	/**
+	 * System.nanoTime when the command has been queued for sending
+	 */
+	private final long sentNanos;
+
+	/**
+	 * System.nanoTime when the response has been received
+	 */
+	private final long receivedNanos;
+
+	/**
+	 * Constructor of the response
+	 * @param response the response without line feed
+	 * @param sentNanos System.nanoTime when the command has been queued for sending
+	 * @param receivedNanos System.nanoTime when the response has been received
+	 */
+	public TimedResponse(String response, long sentNanos, long receivedNanos) {
+		this.response = response;
+		this.sentNanos = sentNanos;
+		this.receivedNanos = receivedNanos;
+	}
+
+	/**
+	 * Getter for the response
+	 * @return the response without line feed
+	 */
+	public String getResponse() {
+		return response;
+	}
+
+	/**
+	 * Getter for the time the command has been sent
+	 * @return System.nanoTime when the command has been queued for sending
+	 */
+	public long getSentNanos() {
+		return sentNanos;
+	}
+
+	/**
+	 * Getter for the time the response has been received
+	 * @return System.nanoTime when the response has been received
+	 */
+	public long getReceivedNanos() {
+		return receivedNanos;
+	}
+
+	/**
+	 * Getter for the round-trip time
+	 * @return time between sending the command and receiving the response in nanoseconds
+	 */
+	public long getRoundTripNanos() {
+		return receivedNanos - sentNanos;
+	}
+
+	/**
+	 * Getter for the midpoint of the round trip, the best guess of when the server handled the
+	 * command if it doesn't report a time of its own
+	 * @return System.nanoTime halfway between sending and receiving
+	 */
+	public long getMidpointNanos() {
+		return sentNanos + (receivedNanos - sentNanos) / 2;
+	}
+
+	@Override
+	public String toString() {
+		return response + " (" + getRoundTripNanos() / 1000 + "us)";
+	}
+}
@@ -0,0 +1,79 @@
+package robprakt.network;
+
+/**
+ * A TrafficRecord is a single message of a recorded session:
+ * a command sent by a client or a response received by it.
+ */
+public final class TrafficRecord {
+
+	/**
+	 * name of the client, e.g. R1, R2 or TS
+	 */
+	private final String client;
+
+	/**
+	 * true for commands sent by the client, false for received responses
+	 */
+	private final boolean command;
+
+	/**
+	 * time of the message in nanoseconds since the recording has been started
+	 */
+	private final long nanos;
+
+	/**
+	 * the message without delimiter
+	 */
+	private final String message;
+
+	/**
+	 * Constructor of the record
+	 * @param client name of the client
+	 * @param command true for commands sent by the client, false for received responses
+	 * @param nanos time of the message in nanoseconds since the recording has been started
+	 * @param message the message without delimiter
+	 */
+	public TrafficRecord(String client, boolean command, long nanos, String message) {
+		this.client = client;
+		this.command = command;
+		this.nanos = nanos;
+		this.message = message;
+	}
+
+	/**
+	 * Getter for the name of the client
+	 * @return name of the client, e.g. R1, R2 or TS
+	 */
+	public String getClient() {
+		return client;
+	}
+
+	/**
+	 * Checks if the message has been sent by the client
+	 * @return true for commands, false for responses
+	 */
+	public boolean isCommand() {
+		return command;
+	}
+
+	/**
+	 * Getter for the time of the message
+	 * @return nanoseconds since the recording has been started
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * Getter for the message
+	 * @return the message without delimiter
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%12.3fms %s %s %s", nanos / 1e6, client, command ? ">>" : "<<", message);
+	}
+}
@@ -0,0 +1,244 @@
+package robprakt.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TrafficRecorder writes every command and response of the network entities it has been set on
+ * into a compact binary log, which can be read again with read and replayed with a TrafficReplayer.
+ *
+ * Format (big endian):
+ * <pre>
+ * header: int magic "RPTR", short version, long start of the recording in epoch milliseconds
+ * record: byte direction (0 command, 1 response), UTF client name,
+ *         long nanoseconds since start, int length, length bytes UTF-8 message without delimiter
+ * </pre>
+ * Any number of entities may share one recorder, writing is synchronized.
+ */
+public final class TrafficRecorder implements Closeable {
+
+	/**
+	 * magic number at the beginning of a log, "RPTR"
+	 */
+	private static final int MAGIC = 0x52505452;
+
+	/**
+	 * version of the format
+	 */
+	private static final short VERSION = 1;
+
+	/**
+	 * direction byte of commands sent by a client
+	 */
+	private static final byte COMMAND = 0;
+
+	/**
+	 * direction byte of responses received by a client
+	 */
+	private static final byte RESPONSE = 1;
+
+	/**
+	 * the log
+	 */
+	private final DataOutputStream out;
+
+	/**
+	 * System.nanoTime at the start of the recording
+	 */
+	private final long startNanos;
+
+	/**
+	 * reusable buffer for the bytes of a message, guarded by the recorder
+	 */
+	private byte[] scratch = new byte[256];
+
+	/**
+	 * true after the recorder has been closed
+	 */
+	private boolean closed;
+
+	/**
+	 * Creates a new log, an existing file is overwritten.
+	 * @param file the log file
+	 * @throws IOException if the file couldn't be created
+	 */
+	public TrafficRecorder(Path file) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+		this.startNanos = System.nanoTime();
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeLong(System.currentTimeMillis());
+	}
+
+	/**
+	 * Records a command sent by a client.
+	 * @param client name of the client
+	 * @param command the command
+	 */
+	void recordCommand(String client, CharSequence command) {
+		record(COMMAND, client, command);
+	}
+
+	/**
+	 * Records an encoded command sent by a client. The position of the buffer isn't changed.
+	 * @param client name of the client
+	 * @param command the encoded command between position and limit
+	 */
+	void recordCommand(String client, ByteBuffer command) {
+		long nanos = System.nanoTime() - startNanos;
+		synchronized(this) {
+			int from = command.position();
+			int to = trimDelimiter(command, from, command.limit());
+			byte[] bytes = scratch(to - from);
+			for(int i = from; i < to; i++) {
+				bytes[i - from] = command.get(i);
+			}
+			write(COMMAND, client, nanos, bytes, to - from);
+		}
+	}
+
+	/**
+	 * Records a response received by a client.
+	 * @param client name of the client
+	 * @param response the response
+	 */
+	void recordResponse(String client, CharSequence response) {
+		record(RESPONSE, client, response);
+	}
+
+	/**
+	 * Records a message.
+	 * @param direction COMMAND or RESPONSE
+	 * @param client name of the client
+	 * @param message the message
+	 */
+	private void record(byte direction, String client, CharSequence message) {
+		long nanos = System.nanoTime() - startNanos;
+		int length = message.length();
+		while(length > 0 && (message.charAt(length - 1) == '\n' || message.charAt(length - 1) == '\r')) length--;
+		synchronized(this) {
+			byte[] bytes;
+			int count;
+			boolean ascii = true;
+			for(int i = 0; i < length && ascii; i++) {
+				ascii = message.charAt(i) < 0x80;
+			}
+			if(ascii) {
+				bytes = scratch(length);
+				for(int i = 0; i < length; i++) {
+					bytes[i] = (byte) message.charAt(i);
+				}
+				count = length;
+			} else {
+				bytes = message.subSequence(0, length).toString().getBytes(StandardCharsets.UTF_8);
+				count = bytes.length;
+			}
+			write(direction, client, nanos, bytes, count);
+		}
+	}
+
+	/**
+	 * Writes a record, must be called while holding the lock of the recorder.
+	 * @param direction COMMAND or RESPONSE
+	 * @param client name of the client
+	 * @param nanos time of the message since the start of the recording
+	 * @param bytes the encoded message
+	 * @param count number of bytes of the message
+	 */
+	private void write(byte direction, String client, long nanos, byte[] bytes, int count) {
+		if(closed) return;
+		try {
+			out.writeByte(direction);
+			out.writeUTF(client == null ? "" : client);
+			out.writeLong(nanos);
+			out.writeInt(count);
+			out.write(bytes, 0, count);
+		} catch (IOException e) {
+			System.err.println("[TrafficRecorder] Couldn't write record, recording stopped: " + e.getMessage());
+			closed = true;
+		}
+	}
+
+	/**
+	 * Returns the scratch buffer with at least the given size.
+	 * @param size number of bytes needed
+	 * @return the buffer
+	 */
+	private byte[] scratch(int size) {
+		if(scratch.length < size) scratch = new byte[Math.max(size, scratch.length * 2)];
+		return scratch;
+	}
+
+	/**
+	 * Returns the end of an encoded message without trailing line feed and carriage return.
+	 * @param message the encoded message
+	 * @param from index of the first byte
+	 * @param to index after the last byte
+	 * @return index after the last byte which isn't a delimiter
+	 */
+	private static int trimDelimiter(ByteBuffer message, int from, int to) {
+		while(to > from && (message.get(to - 1) == '\n' || message.get(to - 1) == '\r')) to--;
+		return to;
+	}
+
+	/**
+	 * Writes all buffered records to the file.
+	 * @throws IOException if writing fails
+	 */
+	public synchronized void flush() throws IOException {
+		if(!closed) out.flush();
+	}
+
+	/**
+	 * Stops the recording and closes the file.
+	 * @throws IOException if writing fails
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(closed) return;
+		closed = true;
+		out.close();
+	}
+
+	/**
+	 * Reads a log.
+	 * @param file the log file
+	 * @return all records in the order they have been recorded
+	 * @throws IOException if the file couldn't be read or isn't a traffic log
+	 */
+	public static List<TrafficRecord> read(Path file) throws IOException {
+		List<TrafficRecord> records = new ArrayList<TrafficRecord>();
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+			if(in.readInt() != MAGIC) throw new IOException("[TrafficRecorder] " + file + " is no traffic log.");
+			short version = in.readShort();
+			if(version != VERSION) throw new IOException("[TrafficRecorder] Unsupported log version " + version + ".");
+			in.readLong();
+			while(true) {
+				int direction = in.read();
+				if(direction < 0) break;
+				try {
+					String client = in.readUTF();
+					long nanos = in.readLong();
+					byte[] message = new byte[in.readInt()];
+					in.readFully(message);
+					records.add(new TrafficRecord(client, direction == COMMAND, nanos, new String(message, StandardCharsets.UTF_8)));
+				} catch (EOFException e) {
+					// the recording has been interrupted while writing the last record
+					break;
+				}
+			}
+		}
+		return records;
+	}
+}
@@ -0,0 +1,167 @@
+package robprakt.network;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TrafficReplayer stands in for the server of one client of a recorded session.
+ * Every command received from the client is answered with the responses that followed the
+ * corresponding command in the recording, either with the original response time of the
+ * server or as fast as possible. Each connection replays the session from the beginning.
+ *
+ * Usage, replaying the cutter-robot of a session on port 5005:
+ * <pre>
+ * TCPServer server = TrafficReplayer.load(log, "R1", Timing.ORIGINAL).start(5005);
+ * </pre>
+ */
+public class TrafficReplayer implements ConnectionHandler {
+
+	/**
+	 * how fast responses are sent
+	 */
+	public enum Timing {
+		/**
+		 * each response is delayed like the original server did
+		 */
+		ORIGINAL,
+		/**
+		 * responses are sent right away
+		 */
+		AS_FAST_AS_POSSIBLE
+	}
+
+	/**
+	 * the records of the replayed client
+	 */
+	private final List<TrafficRecord> records;
+
+	/**
+	 * name of the replayed client
+	 */
+	private final String client;
+
+	/**
+	 * how fast responses are sent
+	 */
+	private final Timing timing;
+
+	/**
+	 * number of received commands which differ from the recorded ones
+	 */
+	private final AtomicInteger mismatches = new AtomicInteger();
+
+	/**
+	 * Constructor of the replayer
+	 * @param records records of a session, records of other clients are ignored
+	 * @param client name of the replayed client, e.g. R1, R2 or TS
+	 * @param timing how fast responses are sent
+	 */
+	public TrafficReplayer(List<TrafficRecord> records, String client, Timing timing) {
+		this.records = new ArrayList<TrafficRecord>();
+		for(TrafficRecord record : records) {
+			if(record.getClient().equals(client)) this.records.add(record);
+		}
+		this.client = client;
+		this.timing = timing;
+	}
+
+	/**
+	 * Creates a replayer for a log written by a TrafficRecorder.
+	 * @param log the log file
+	 * @param client name of the replayed client, e.g. R1, R2 or TS
+	 * @param timing how fast responses are sent
+	 * @return the replayer
+	 * @throws IOException if the log couldn't be read
+	 */
+	public static TrafficReplayer load(Path log, String client, Timing timing) throws IOException {
+		return new TrafficReplayer(TrafficRecorder.read(log), client, timing);
+	}
+
+	/**
+	 * Starts a server replaying the session for every client connecting to it.
+	 * @param port the port of the server
+	 * @return the server, close it to stop replaying
+	 */
+	public TCPServer start(int port) {
+		TCPServer server = new TCPServer(port);
+		server.serve(this);
+		return server;
+	}
+
+	/**
+	 * Getter for the number of commands which differed from the recording
+	 * @return number of mismatches over all connections
+	 */
+	public int getMismatches() {
+		return mismatches.get();
+	}
+
+	/**
+	 * Getter for the number of recorded commands of the replayed client
+	 * @return number of commands
+	 */
+	public int getCommandCount() {
+		int count = 0;
+		for(TrafficRecord record : records) {
+			if(record.isCommand()) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Replays the session for one connection.
+	 * @param connection the connection to the client
+	 */
+	@Override
+	public void handle(ServerConnection connection) throws IOException {
+		int index = 0;
+		// messages the server sent before the first command
+		index = sendResponses(connection, index, System.nanoTime(), -1);
+		while(!connection.isClosed()) {
+			String command = connection.receiveData();
+			if(command == null || command.equals("You have been disconnected")) return;
+			long received = System.nanoTime();
+			if(index == records.size()) {
+				System.out.println("[TrafficReplayer] " + client + ": end of recording, no response to \"" + command + "\"");
+				continue;
+			}
+			TrafficRecord recorded = records.get(index++);
+			if(!recorded.getMessage().equals(command)) {
+				mismatches.incrementAndGet();
+				System.out.println("[TrafficReplayer] " + client + ": expected \"" + recorded.getMessage() + "\" but received \"" + command + "\"");
+			}
+			index = sendResponses(connection, index, received, recorded.getNanos());
+		}
+	}
+
+	/**
+	 * Sends the recorded responses up to the next command.
+	 * @param connection the connection to the client
+	 * @param index index of the first response
+	 * @param received time the command has been received
+	 * @param commandNanos recorded time of the command or -1 before the first command
+	 * @return index of the next command
+	 */
+	private int sendResponses(ServerConnection connection, int index, long received, long commandNanos) {
+		while(index < records.size() && !records.get(index).isCommand()) {
+			TrafficRecord response = records.get(index++);
+			if(timing == Timing.ORIGINAL && commandNanos >= 0) {
+				long delay = received + (response.getNanos() - commandNanos) - System.nanoTime();
+				if(delay > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(delay);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return records.size();
+					}
+				}
+			}
+			connection.sendData(response.getMessage());
+		}
+		return index;
+	}
+}
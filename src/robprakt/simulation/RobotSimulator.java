@@ -0,0 +1,245 @@
+package robprakt.simulation;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import robprakt.Constants;
+import robprakt.network.PoseParser;
+
+/**
+ * RobotSimulator stands in for the robot server of an Adept Viper S850, so the application
+ * can be run and benchmarked without the robots.
+ * It understands the commands used by the application:
+ * Hello Robot, MoveMinChangeRowWiseStatus, GetPositionHomRowWise, IsAdept and Quit.
+ *
+ * The simulated end-effector moves through the accepted target poses one after another on
+ * straight lines with MAX_COMPOSITE_SPEED * MAX_ALLOWED_SPEED_RATIO, the orientation is
+ * interpolated along the way. Every response can be delayed by a configurable latency.
+ * All connections control the same simulated robot.
+ *
+ * Start from the command line with: RobotSimulator [port] [latency in ms] [bind address]
+ */
+public class RobotSimulator extends SimulatedServer<Void> {
+
+	/**
+	 * port of the robot servers
+	 */
+	public static final int DEFAULT_PORT = 5005;
+
+	/**
+	 * response to Hello Robot
+	 */
+	public static final String GREETING = "Hello Master";
+
+	/**
+	 * response to Quit, the connection is closed afterwards
+	 */
+	public static final String GOODBYE = "Bye";
+
+	/**
+	 * pose after start up, row-wise 3x4
+	 */
+	private static final double[] HOME_POSE = {1,0,0,0, 0,1,0,0, 0,0,1,1000};
+
+	/**
+	 * maximum deviation of the rotational part of a target from an orthonormal matrix
+	 */
+	private static final double ORTHONORMAL_TOLERANCE = 1e-3;
+
+	/**
+	 * speed of the end-effector in mm per nanosecond
+	 */
+	private final double speed = Constants.MAX_COMPOSITE_SPEED * Constants.MAX_ALLOWED_SPEED_RATIO / 1e9;
+
+	/**
+	 * pose at the start of the current segment, row-wise 3x4
+	 */
+	private final double[] segmentStart = HOME_POSE.clone();
+
+	/**
+	 * pose of the end-effector at the last update, row-wise 3x4
+	 */
+	private final double[] pose = HOME_POSE.clone();
+
+	/**
+	 * accepted targets which haven't been reached yet, the first one is the target of the current segment
+	 */
+	private final ArrayDeque<double[]> targets = new ArrayDeque<double[]>();
+
+	/**
+	 * System.nanoTime at the start of the current segment
+	 */
+	private long segmentStartNanos = System.nanoTime();
+
+	/**
+	 * maximum distance of a target from the robot's base in mm
+	 */
+	private volatile double reach = Double.POSITIVE_INFINITY;
+
+	/**
+	 * Setter for the reach, targets farther away from the base are refused
+	 * @param reach maximum distance of a target from the robot's base in mm
+	 */
+	public void setReach(double reach) {
+		this.reach = reach;
+	}
+
+	/**
+	 * Returns the current pose of the simulated end-effector.
+	 * @return row-wise values of the 3x4 pose
+	 */
+	public synchronized double[] getPose() {
+		update(System.nanoTime());
+		return pose.clone();
+	}
+
+	/**
+	 * Checks if the robot is moving
+	 * @return true if there are targets which haven't been reached yet
+	 */
+	public synchronized boolean isMoving() {
+		update(System.nanoTime());
+		return !targets.isEmpty();
+	}
+
+	/**
+	 * the robot has no state per connection
+	 * @return null
+	 */
+	@Override
+	protected Void openSession() {
+		return null;
+	}
+
+	/**
+	 * Executes a command.
+	 * @param command the command without line feed
+	 * @param session unused
+	 * @return the response
+	 */
+	@Override
+	protected String execute(String command, Void session) {
+		if(command.equals("Hello Robot")) return GREETING;
+		if(command.equals("IsAdept")) return "true";
+		if(command.equals("Quit")) return GOODBYE;
+		if(command.equals("GetPositionHomRowWise")) return format(getPose(), new StringBuilder()).toString();
+		if(command.startsWith("MoveMinChangeRowWiseStatus")) {
+			double[] target = new double[PoseParser.POSE_VALUES];
+			try {
+				PoseParser.parse(command, 1, target);
+			} catch (IllegalArgumentException e) {
+				System.out.println("[RobotSimulator] " + e.getMessage());
+				return "false";
+			}
+			return Boolean.toString(moveTo(target));
+		}
+		return "Unknown command: " + command;
+	}
+
+	/**
+	 * the connection is closed after Quit
+	 * @param command the command
+	 * @return true for Quit
+	 */
+	@Override
+	protected boolean closesConnection(String command) {
+		return command.equals("Quit");
+	}
+
+	/**
+	 * Accepts a target pose if it is reachable.
+	 * @param target row-wise values of the 3x4 pose
+	 * @return true if the target has been accepted
+	 */
+	private boolean moveTo(double[] target) {
+		if(!isOrthonormal(target)) return false;
+		double distance = Math.sqrt(target[3]*target[3] + target[7]*target[7] + target[11]*target[11]);
+		if(distance > reach) return false;
+		synchronized(this) {
+			long now = System.nanoTime();
+			update(now);
+			if(targets.isEmpty()) {
+				// starting from standstill
+				System.arraycopy(pose, 0, segmentStart, 0, pose.length);
+				segmentStartNanos = now;
+			}
+			targets.add(target);
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the end-effector along the queued targets up to the given time.
+	 * Must be called while holding the lock of the simulator.
+	 * @param now System.nanoTime
+	 */
+	private void update(long now) {
+		while(!targets.isEmpty()) {
+			double[] target = targets.peek();
+			long duration = (long) (distance(segmentStart, target) / speed);
+			long elapsed = now - segmentStartNanos;
+			if(elapsed >= duration) {
+				// target reached, the next segment starts where this one ended
+				System.arraycopy(target, 0, segmentStart, 0, target.length);
+				System.arraycopy(target, 0, pose, 0, target.length);
+				segmentStartNanos += duration;
+				targets.poll();
+			} else {
+				double fraction = (double) elapsed / duration;
+				for(int i = 0; i < pose.length; i++) {
+					pose[i] = segmentStart[i] + (target[i] - segmentStart[i]) * fraction;
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the distance between the positions of two poses.
+	 * @param from row-wise 3x4 pose
+	 * @param to row-wise 3x4 pose
+	 * @return distance in mm
+	 */
+	private static double distance(double[] from, double[] to) {
+		double dx = to[3] - from[3];
+		double dy = to[7] - from[7];
+		double dz = to[11] - from[11];
+		return Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+
+	/**
+	 * Checks if the rotational part of a pose is orthonormal.
+	 * @param pose row-wise 3x4 pose
+	 * @return true if R * R^T is the identity within the tolerance
+	 */
+	private static boolean isOrthonormal(double[] pose) {
+		for(int row = 0; row < 3; row++) {
+			for(int other = 0; other < 3; other++) {
+				double dot = 0;
+				for(int col = 0; col < 3; col++) {
+					dot += pose[row*4 + col] * pose[other*4 + col];
+				}
+				if(Math.abs(dot - (row == other ? 1 : 0)) > ORTHONORMAL_TOLERANCE) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Starts the simulator.
+	 * @param args [port] [latency in ms] [bind address]
+	 * @throws Exception if the arguments are invalid
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		long latency = args.length > 1 ? Long.parseLong(args[1]) : 0;
+		InetAddress bindAddress = args.length > 2 ? InetAddress.getByName(args[2]) : null;
+		RobotSimulator simulator = new RobotSimulator();
+		simulator.setLatency(latency, 0, TimeUnit.MILLISECONDS);
+		simulator.start(port, bindAddress);
+		System.out.println("[RobotSimulator] Simulating robot on port " + port + " with " + latency + "ms latency.");
+		// the server threads are daemons
+		Thread.currentThread().join();
+	}
+}
@@ -0,0 +1,189 @@
+package robprakt.simulation;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import robprakt.network.ConnectionHandler;
+import robprakt.network.LoopbackServer;
+import robprakt.network.PoseParser;
+import robprakt.network.ServerConnection;
+import robprakt.network.TCPServer;
+
+/**
+ * SimulatedServer is the base of the simulators standing in for the robot and tracking servers.
+ * Every command of a client is answered with exactly one response, which is delayed by a
+ * configurable latency. The latency counts from the time each command has been received, so
+ * pipelined commands overlap like on a network instead of waiting for each other, while the
+ * responses keep the order of the commands. A serial processing time, which every command waits
+ * for before the next one is read, models a slow server instead.
+ * State belonging to a single connection is kept in a session object.
+ * @param <S> type of the session of a connection
+ */
+public abstract class SimulatedServer<S> implements ConnectionHandler {
+
+	/**
+	 * fixed delay of every response in nanoseconds
+	 */
+	private volatile long latencyNanos;
+
+	/**
+	 * maximum random delay added to the latency in nanoseconds
+	 */
+	private volatile long jitterNanos;
+
+	/**
+	 * time the server is busy with every command before reading the next one in nanoseconds
+	 */
+	private volatile long processingNanos;
+
+	/**
+	 * Setter for the latency
+	 * @param latency fixed delay of every response
+	 * @param jitter maximum random delay added to the latency
+	 * @param unit unit of latency and jitter
+	 */
+	public void setLatency(long latency, long jitter, TimeUnit unit) {
+		this.latencyNanos = unit.toNanos(latency);
+		this.jitterNanos = unit.toNanos(jitter);
+	}
+
+	/**
+	 * Setter for the processing time
+	 * @param processing time the server is busy with every command, commands are processed one after another
+	 * @param unit unit of the processing time
+	 */
+	public void setProcessingTime(long processing, TimeUnit unit) {
+		this.processingNanos = unit.toNanos(processing);
+	}
+
+	/**
+	 * Starts a server running the simulation.
+	 * @param port the port of the server
+	 * @param bindAddress the local address to listen on, null for all addresses
+	 * @return the server, close it to stop the simulation
+	 */
+	public TCPServer start(int port, InetAddress bindAddress) {
+		TCPServer server = new TCPServer(port, bindAddress);
+		server.serve(this);
+		return server;
+	}
+
+	/**
+	 * Starts the simulation in this process without a socket, clients connect to LoopbackServer.HOST and the port.
+	 * @param port the port
+	 * @return the server, close it to stop the simulation
+	 */
+	public LoopbackServer startLoopback(int port) {
+		return LoopbackServer.bind(port, this);
+	}
+
+	/**
+	 * Answers the commands of a client until it quits or disconnects.
+	 * @param connection the connection to the client
+	 */
+	@Override
+	public void handle(ServerConnection connection) throws IOException {
+		String name = getClass().getSimpleName();
+		System.out.println("[" + name + "] Client connected: " + connection.getRemoteAddress());
+		S session = openSession();
+		// sends the responses when they are due, in the order of the commands
+		ScheduledExecutorService responses = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "robprakt-" + name + "-responses");
+			t.setDaemon(true);
+			return t;
+		});
+		// the responses in the order of the commands, each scheduled send takes the oldest one,
+		// so responses due at about the same time can't overtake each other
+		Queue<String> unsent = new ConcurrentLinkedQueue<String>();
+		long lastDue = System.nanoTime();
+		try {
+			while(!connection.isClosed()) {
+				String command = connection.receiveData();
+				if(command == null || command.equals("You have been disconnected")) break;
+				long received = System.nanoTime();
+				command = command.trim();
+				sleep(processingNanos);
+				String response = execute(command, session);
+				// a response is never due before the one of the previous command
+				long due = Math.max(received + delay(), lastDue);
+				lastDue = due;
+				unsent.add(response);
+				responses.schedule(() -> connection.sendData(unsent.poll()), due - System.nanoTime(), TimeUnit.NANOSECONDS);
+				if(closesConnection(command)) break;
+			}
+		} finally {
+			// the responses still due are sent before the connection is closed
+			responses.shutdown();
+			try {
+				responses.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		System.out.println("[" + name + "] Client disconnected: " + connection.getRemoteAddress());
+	}
+
+	/**
+	 * Creates the state of a new connection.
+	 * @return the session or null if the simulator doesn't need one
+	 */
+	protected abstract S openSession();
+
+	/**
+	 * Executes a command.
+	 * @param command the command without line feed
+	 * @param session the state of the connection
+	 * @return the response
+	 */
+	protected abstract String execute(String command, S session);
+
+	/**
+	 * Checks if the connection ends after answering a command.
+	 * @param command the command
+	 * @return true if the connection is closed after the response
+	 */
+	protected abstract boolean closesConnection(String command);
+
+	/**
+	 * Draws the delay of a response from the configured latency and jitter.
+	 * @return the delay in nanoseconds
+	 */
+	private long delay() {
+		long delay = latencyNanos;
+		if(jitterNanos > 0) delay += ThreadLocalRandom.current().nextLong(jitterNanos + 1);
+		return delay;
+	}
+
+	/**
+	 * Waits for a time, e.g. the processing time.
+	 * @param nanos the time in nanoseconds
+	 */
+	private static void sleep(long nanos) {
+		if(nanos <= 0) return;
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Formats the values of a pose separated by spaces.
+	 * @param pose row-wise 3x4 pose
+	 * @param sb the builder to append to
+	 * @return the builder
+	 */
+	protected static StringBuilder format(double[] pose, StringBuilder sb) {
+		for(int i = 0; i < PoseParser.POSE_VALUES; i++) {
+			if(i > 0) sb.append(' ');
+			sb.append(pose[i]);
+		}
+		return sb;
+	}
+}
@@ -0,0 +1,297 @@
+package robprakt.simulation;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import robCalibration.testDataGenerator;
+import robprakt.network.PoseParser;
+
+/**
+ * TrackingSimulator stands in for the server of the tracking-system, so calibrations can be run
+ * and checked against ground truth without a camera.
+ * It understands the commands used by the application:
+ * CM_GETSYSTEM, CM_GETTRACKERS, the name of a marker, FORMAT_MATRIXROWWISE, CM_NEXTVALUE and CM_QUITCONNECTION.
+ *
+ * Every marker is mounted on the end-effector of a simulated robot. Its pose relative to the
+ * tracking-system is N = Y^-1 * M * X, with M the current pose of the robot, X the hidden pose
+ * of the marker relative to the end-effector and Y the hidden pose of the tracking-system
+ * relative to the robot. The rotational and translational noise of the testDataGenerator is
+ * added to every measurement unless it has been turned off.
+ *
+ * Start from the command line with: TrackingSimulator [port] [robot port] [latency in ms] [bind address]
+ * which starts a RobotSimulator carrying the marker as well.
+ */
+public class TrackingSimulator extends SimulatedServer<TrackingSimulator.Session> {
+
+	/**
+	 * port of the tracking server
+	 */
+	public static final int DEFAULT_PORT = 5000;
+
+	/**
+	 * response to CM_GETSYSTEM
+	 */
+	public static final String SYSTEM = "Simulated Tracking System";
+
+	/**
+	 * name of the marker created by the constructor
+	 */
+	public static final String DEFAULT_MARKER = "Marker1";
+
+	/**
+	 * response to commands which have been accepted
+	 */
+	public static final String OK = "OK";
+
+	/**
+	 * response to CM_QUITCONNECTION, the connection is closed afterwards
+	 */
+	public static final String GOODBYE = "Bye";
+
+	/**
+	 * A marker mounted on the end-effector of a simulated robot.
+	 */
+	public static class Marker {
+
+		/**
+		 * name of the marker, sent to select it
+		 */
+		private final String name;
+
+		/**
+		 * the robot carrying the marker
+		 */
+		private final RobotSimulator robot;
+
+		/**
+		 * pose of the marker relative to the end-effector as homogeneous 4x4 matrix
+		 */
+		private final RealMatrix x;
+
+		/**
+		 * pose of the tracking-system relative to the robot as homogeneous 4x4 matrix
+		 */
+		private final RealMatrix y;
+
+		/**
+		 * inverse of y
+		 */
+		private final RealMatrix yInverse;
+
+		/**
+		 * Constructor of the marker
+		 * @param name name of the marker
+		 * @param robot the robot carrying the marker
+		 * @param x pose of the marker relative to the end-effector as homogeneous 4x4 matrix
+		 * @param y pose of the tracking-system relative to the robot as homogeneous 4x4 matrix
+		 */
+		public Marker(String name, RobotSimulator robot, RealMatrix x, RealMatrix y) {
+			this.name = name;
+			this.robot = robot;
+			this.x = x.copy();
+			this.y = y.copy();
+			this.yInverse = MatrixUtils.inverse(y);
+		}
+
+		/**
+		 * Getter for the name
+		 * @return name of the marker
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Getter for the ground truth of X
+		 * @return pose of the marker relative to the end-effector as homogeneous 4x4 matrix
+		 */
+		public RealMatrix getX() {
+			return x.copy();
+		}
+
+		/**
+		 * Getter for the ground truth of Y
+		 * @return pose of the tracking-system relative to the robot as homogeneous 4x4 matrix
+		 */
+		public RealMatrix getY() {
+			return y.copy();
+		}
+
+		/**
+		 * Returns the pose of the marker relative to the tracking-system without noise.
+		 * @return N as homogeneous 4x4 matrix
+		 */
+		public RealMatrix getPose() {
+			double[] pose = robot.getPose();
+			RealMatrix m = new Array2DRowRealMatrix(new double[][] {
+				{pose[0], pose[1], pose[2], pose[3]},
+				{pose[4], pose[5], pose[6], pose[7]},
+				{pose[8], pose[9], pose[10], pose[11]},
+				{0, 0, 0, 1}});
+			return yInverse.multiply(m).multiply(x);
+		}
+	}
+
+	/**
+	 * State of a connection.
+	 */
+	static class Session {
+
+		/**
+		 * the selected marker, null if none has been selected yet
+		 */
+		private Marker marker;
+	}
+
+	/**
+	 * the markers by name
+	 */
+	private final Map<String, Marker> markers = new ConcurrentHashMap<String, Marker>();
+
+	/**
+	 * names of the markers in the order they have been added
+	 */
+	private final CopyOnWriteArrayList<String> markerNames = new CopyOnWriteArrayList<String>();
+
+	/**
+	 * creates the ground truth and the noise of the measurements
+	 */
+	private final testDataGenerator generator = new testDataGenerator();
+
+	/**
+	 * true if noise is added to the measurements
+	 */
+	private volatile boolean noise = true;
+
+	/**
+	 * Creates a simulator tracking the marker DEFAULT_MARKER on the given robot,
+	 * X and Y are the ones of the testDataGenerator.
+	 * @param robot the robot carrying the marker
+	 */
+	public TrackingSimulator(RobotSimulator robot) {
+		addMarker(new Marker(DEFAULT_MARKER, robot, generator.createXMatrix(), generator.createYMatrix()));
+	}
+
+	/**
+	 * Adds a marker, a marker with the same name is replaced.
+	 * @param marker the marker
+	 */
+	public void addMarker(Marker marker) {
+		markers.put(marker.getName(), marker);
+		markerNames.addIfAbsent(marker.getName());
+	}
+
+	/**
+	 * Getter for a marker
+	 * @param name name of the marker
+	 * @return the marker or null if there is no marker with this name
+	 */
+	public Marker getMarker(String name) {
+		return markers.get(name);
+	}
+
+	/**
+	 * Turns the noise of the measurements on or off
+	 * @param noise true if noise is added to the measurements
+	 */
+	public void setNoise(boolean noise) {
+		this.noise = noise;
+	}
+
+	/**
+	 * Returns a measurement of a marker like the tracking-system does.
+	 * @param marker the marker
+	 * @return N as homogeneous 4x4 matrix, with noise if turned on
+	 */
+	public RealMatrix measure(Marker marker) {
+		RealMatrix n = marker.getPose();
+		if(noise) {
+			n = generator.rotationalNoise(n);
+			n = generator.translationalNoise(n);
+		}
+		return n;
+	}
+
+	/**
+	 * Creates the state of a new connection.
+	 * @return the session without a selected marker
+	 */
+	@Override
+	protected Session openSession() {
+		return new Session();
+	}
+
+	/**
+	 * Executes a command.
+	 * @param command the command without line feed
+	 * @param session the state of the connection
+	 * @return the response
+	 */
+	@Override
+	protected String execute(String command, Session session) {
+		if(command.equals("CM_GETSYSTEM")) return SYSTEM;
+		if(command.equals("CM_GETTRACKERS")) return String.join(";", markerNames);
+		if(command.equals("FORMAT_MATRIXROWWISE")) return OK;
+		if(command.equals("CM_QUITCONNECTION")) return GOODBYE;
+		if(command.equals("CM_NEXTVALUE")) {
+			if(session.marker == null) return "No marker selected";
+			RealMatrix n = measure(session.marker);
+			double[] pose = new double[PoseParser.POSE_VALUES];
+			for(int row = 0; row < 3; row++) {
+				for(int col = 0; col < 4; col++) {
+					pose[row*4 + col] = n.getEntry(row, col);
+				}
+			}
+			// visibility flag and timestamp precede the values
+			StringBuilder sb = new StringBuilder("y ").append(System.currentTimeMillis()).append(' ');
+			return format(pose, sb).toString();
+		}
+		Marker marker = markers.get(command);
+		if(marker != null) {
+			session.marker = marker;
+			return OK;
+		}
+		return "Unknown command: " + command;
+	}
+
+	/**
+	 * the connection is closed after CM_QUITCONNECTION
+	 * @param command the command
+	 * @return true for CM_QUITCONNECTION
+	 */
+	@Override
+	protected boolean closesConnection(String command) {
+		return command.equals("CM_QUITCONNECTION");
+	}
+
+	/**
+	 * Starts the simulator and a robot carrying the marker.
+	 * @param args [port] [robot port] [latency in ms] [bind address]
+	 * @throws Exception if the arguments are invalid
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		int robotPort = args.length > 1 ? Integer.parseInt(args[1]) : RobotSimulator.DEFAULT_PORT;
+		long latency = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		InetAddress bindAddress = args.length > 3 ? InetAddress.getByName(args[3]) : null;
+		RobotSimulator robot = new RobotSimulator();
+		robot.setLatency(latency, 0, TimeUnit.MILLISECONDS);
+		robot.start(robotPort, bindAddress);
+		TrackingSimulator simulator = new TrackingSimulator(robot);
+		simulator.setLatency(latency, 0, TimeUnit.MILLISECONDS);
+		simulator.start(port, bindAddress);
+		Marker marker = simulator.getMarker(DEFAULT_MARKER);
+		System.out.println("[TrackingSimulator] Simulating tracking-system on port " + port + " and robot on port " + robotPort + " with " + latency + "ms latency.");
+		System.out.println("[TrackingSimulator] Ground truth X: " + marker.getX());
+		System.out.println("[TrackingSimulator] Ground truth Y: " + marker.getY());
+		// the server threads are daemons
+		Thread.currentThread().join();
+	}
+}
@@ -0,0 +1,145 @@
+package robprakt.tracking;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ClockOffsetEstimator estimates the offset between the clock of a server, which reports the
+ * time it captured a sample in its responses, and the local System.nanoTime.
+ *
+ * Every response gives an estimate like NTP does: the server's time minus the midpoint between
+ * sending the request and receiving the response. Its error is at most half the round trip plus
+ * the resolution of the server's clock, so of the latest samples only the one with the shortest
+ * round trip is used. Keeping a window of samples instead of the best one ever follows a slow
+ * drift between the clocks.
+ */
+public final class ClockOffsetEstimator {
+
+	/**
+	 * default number of samples the best one is chosen from
+	 */
+	public static final int DEFAULT_WINDOW = 32;
+
+	/**
+	 * offsets of the latest samples in nanoseconds, server time minus local time
+	 */
+	private final long[] offsets;
+
+	/**
+	 * round trips of the latest samples in nanoseconds
+	 */
+	private final long[] roundTrips;
+
+	/**
+	 * resolution of the server's clock in nanoseconds
+	 */
+	private final long resolutionNanos;
+
+	/**
+	 * number of samples added so far, guarded by this
+	 */
+	private long count;
+
+	/**
+	 * index of the best sample in the window, guarded by this
+	 */
+	private int best = -1;
+
+	/**
+	 * Creates an estimator for a server reporting its time in milliseconds.
+	 */
+	public ClockOffsetEstimator() {
+		this(DEFAULT_WINDOW, 1, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates an estimator.
+	 * @param window number of samples the best one is chosen from
+	 * @param resolution resolution of the server's clock
+	 * @param unit unit of the resolution
+	 */
+	public ClockOffsetEstimator(int window, long resolution, TimeUnit unit) {
+		if(window < 1) throw new IllegalArgumentException("[ClockOffsetEstimator] The window has to hold at least one sample.");
+		this.offsets = new long[window];
+		this.roundTrips = new long[window];
+		this.resolutionNanos = unit.toNanos(resolution);
+	}
+
+	/**
+	 * Adds a sample of the server.
+	 * @param serverNanos time of the server when it handled the request, in nanoseconds
+	 * @param sentNanos System.nanoTime when the request has been sent
+	 * @param receivedNanos System.nanoTime when the response has been received
+	 */
+	public synchronized void addSample(long serverNanos, long sentNanos, long receivedNanos) {
+		int slot = (int) (count++ % offsets.length);
+		long roundTrip = receivedNanos - sentNanos;
+		offsets[slot] = serverNanos - (sentNanos + roundTrip / 2);
+		roundTrips[slot] = roundTrip;
+		if(best == slot) {
+			// the best sample has been overwritten, look for the best of the remaining ones
+			int filled = (int) Math.min(count, offsets.length);
+			best = 0;
+			for(int i = 1; i < filled; i++) {
+				if(roundTrips[i] < roundTrips[best]) best = i;
+			}
+		} else if(best < 0 || roundTrip <= roundTrips[best]) {
+			best = slot;
+		}
+	}
+
+	/**
+	 * Checks if there is an estimate
+	 * @return true once a sample has been added
+	 */
+	public synchronized boolean hasEstimate() {
+		return best >= 0;
+	}
+
+	/**
+	 * Getter for the estimated offset
+	 * @return server time minus System.nanoTime in nanoseconds, 0 if there is no estimate
+	 */
+	public synchronized long getOffsetNanos() {
+		return best < 0 ? 0 : offsets[best];
+	}
+
+	/**
+	 * Getter for the uncertainty of the estimate
+	 * @return maximum error of the offset in nanoseconds, Long.MAX_VALUE if there is no estimate
+	 */
+	public synchronized long getUncertaintyNanos() {
+		return best < 0 ? Long.MAX_VALUE : roundTrips[best] / 2 + resolutionNanos;
+	}
+
+	/**
+	 * Converts a time of the server into local time.
+	 * @param serverNanos time of the server in nanoseconds
+	 * @return the corresponding System.nanoTime
+	 */
+	public long toLocalNanos(long serverNanos) {
+		return serverNanos - getOffsetNanos();
+	}
+
+	/**
+	 * Converts a local time into the time of the server.
+	 * @param localNanos System.nanoTime
+	 * @return the corresponding time of the server in nanoseconds
+	 */
+	public long toServerNanos(long localNanos) {
+		return localNanos + getOffsetNanos();
+	}
+
+	/**
+	 * Forgets all samples, e.g. after the server has been restarted.
+	 */
+	public synchronized void reset() {
+		count = 0;
+		best = -1;
+	}
+
+	@Override
+	public synchronized String toString() {
+		if(best < 0) return "no estimate";
+		return "offset " + offsets[best] / 1000 + "us +/- " + getUncertaintyNanos() / 1000 + "us";
+	}
+}
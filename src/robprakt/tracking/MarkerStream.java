@@ -0,0 +1,99 @@
+package robprakt.tracking;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MarkerStream holds the samples of one marker subscribed at a TrackingDemultiplexer.
+ */
+public final class MarkerStream {
+
+	/**
+	 * name of the marker as listed by CM_GETTRACKERS
+	 */
+	private final String name;
+
+	/**
+	 * the published samples
+	 */
+	private final SampleRing ring;
+
+	/**
+	 * the demultiplexer polling the marker
+	 */
+	private final TrackingDemultiplexer demultiplexer;
+
+	/**
+	 * number of responses which timed out or couldn't be parsed
+	 */
+	final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Constructor of the stream
+	 * @param name name of the marker
+	 * @param capacity number of samples kept
+	 * @param demultiplexer the demultiplexer polling the marker
+	 */
+	MarkerStream(String name, int capacity, TrackingDemultiplexer demultiplexer) {
+		this.name = name;
+		this.ring = new SampleRing(capacity);
+		this.demultiplexer = demultiplexer;
+	}
+
+	/**
+	 * Getter for the name
+	 * @return name of the marker
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Getter for the ring holding the samples
+	 * @return the ring
+	 */
+	public SampleRing getRing() {
+		return ring;
+	}
+
+	/**
+	 * Getter for the number of dropped samples
+	 * @return number of responses which timed out or couldn't be parsed
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Reads the latest sample without waiting.
+	 * @param sample the sample to copy into
+	 * @return true if there has been a sample
+	 */
+	public boolean latest(TrackingSample sample) {
+		return ring.latest(sample);
+	}
+
+	/**
+	 * Averages the latest samples requested at or after the given time without waiting.
+	 * @param sinceNanos System.nanoTime, older samples are ignored
+	 * @param maxSamples maximum number of samples averaged
+	 * @param sample receives the average
+	 * @return number of samples averaged
+	 */
+	public int average(long sinceNanos, int maxSamples, TrackingSample sample) {
+		return ring.average(sinceNanos, maxSamples, sample);
+	}
+
+	/**
+	 * Waits for a sample which has been requested at or after the given time.
+	 * @param sinceNanos System.nanoTime, older samples are ignored
+	 * @param timeout the maximum time to wait
+	 * @param unit unit of the timeout
+	 * @param sample the sample to copy into
+	 * @return true if there is such a sample, false if none arrived in time
+	 * @throws InterruptedException if the waiting thread has been interrupted
+	 */
+	public boolean awaitSample(long sinceNanos, long timeout, TimeUnit unit, TrackingSample sample) throws InterruptedException {
+		return ring.awaitSample(sinceNanos, timeout, unit, sample, demultiplexer::isRunning);
+	}
+}
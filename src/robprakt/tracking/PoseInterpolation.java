@@ -0,0 +1,61 @@
+package robprakt.tracking;
+
+import robprakt.network.PoseParser;
+
+/**
+ * PoseInterpolation estimates the pose of a moving marker or end-effector between two
+ * measured poses. The translation is interpolated linearly, the rotation element-wise and
+ * made orthonormal again afterwards, which is accurate as long as the rotation between the
+ * two poses is small, e.g. for successive samples of a slowly moving robot.
+ */
+public final class PoseInterpolation {
+
+	private PoseInterpolation() {
+	}
+
+	/**
+	 * Interpolates between two row-wise 3x4 poses.
+	 * @param earlier the earlier pose
+	 * @param earlierNanos System.nanoTime of the earlier pose
+	 * @param later the later pose
+	 * @param laterNanos System.nanoTime of the later pose
+	 * @param atNanos System.nanoTime to interpolate at, times outside of the two poses are extrapolated
+	 * @param pose array for the 12 interpolated values, may be one of the given poses
+	 * @return the given array
+	 */
+	public static double[] interpolate(double[] earlier, long earlierNanos, double[] later, long laterNanos, long atNanos, double[] pose) {
+		long span = laterNanos - earlierNanos;
+		double weight = span == 0 ? 0 : (double) (atNanos - earlierNanos) / span;
+		for(int i = 0; i < PoseParser.POSE_VALUES; i++) {
+			pose[i] = earlier[i] + weight * (later[i] - earlier[i]);
+		}
+		return orthonormalize(pose);
+	}
+
+	/**
+	 * Makes the rotational part of a pose orthonormal with Gram-Schmidt on its rows.
+	 * @param pose row-wise values of the 3x4 pose
+	 * @return the given array
+	 */
+	public static double[] orthonormalize(double[] pose) {
+		// first row normalized
+		double n = Math.sqrt(pose[0] * pose[0] + pose[1] * pose[1] + pose[2] * pose[2]);
+		pose[0] /= n;
+		pose[1] /= n;
+		pose[2] /= n;
+		// second row without its part along the first one, normalized
+		double d = pose[0] * pose[4] + pose[1] * pose[5] + pose[2] * pose[6];
+		pose[4] -= d * pose[0];
+		pose[5] -= d * pose[1];
+		pose[6] -= d * pose[2];
+		n = Math.sqrt(pose[4] * pose[4] + pose[5] * pose[5] + pose[6] * pose[6]);
+		pose[4] /= n;
+		pose[5] /= n;
+		pose[6] /= n;
+		// third row is the cross product, so the result stays right-handed
+		pose[8] = pose[1] * pose[6] - pose[2] * pose[5];
+		pose[9] = pose[2] * pose[4] - pose[0] * pose[6];
+		pose[10] = pose[0] * pose[5] - pose[1] * pose[4];
+		return pose;
+	}
+}
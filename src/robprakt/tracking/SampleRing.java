@@ -0,0 +1,267 @@
+package robprakt.tracking;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import robprakt.network.PoseParser;
+
+/**
+ * SampleRing keeps the latest samples of a marker in preallocated primitive arrays.
+ * There must be only one thread publishing, any number of threads may read at the same time.
+ * Publishing and reading the latest sample neither take a lock nor allocate.
+ *
+ * Every slot is guarded by a version (seqlock): the publisher makes the version odd before it
+ * overwrites the slot and even again afterwards. A reader copies the slot and accepts the copy
+ * only if the version has been even and unchanged before and after copying.
+ */
+public final class SampleRing {
+
+	/**
+	 * time a waiting reader parks between two looks at the ring in nanoseconds
+	 */
+	private static final long AWAIT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+	/**
+	 * capacity - 1, the capacity is a power of two
+	 */
+	private final int mask;
+
+	/**
+	 * the poses of all slots, POSE_VALUES values per slot
+	 */
+	private final double[] poses;
+
+	/**
+	 * System.nanoTime of the requests of all slots
+	 */
+	private final long[] requestedNanos;
+
+	/**
+	 * System.nanoTime of the receipts of all slots
+	 */
+	private final long[] receivedNanos;
+
+	/**
+	 * System.nanoTime of the captures of all slots
+	 */
+	private final long[] capturedNanos;
+
+	/**
+	 * version of each slot, 2 * sequence + 2 once the sample with the sequence is complete
+	 */
+	private final AtomicLongArray versions;
+
+	/**
+	 * number of samples published so far
+	 */
+	private volatile long published;
+
+	/**
+	 * Constructor of the ring
+	 * @param capacity number of samples kept, rounded up to the next power of two, at least 2
+	 */
+	public SampleRing(int capacity) {
+		if(capacity < 1 || capacity > (1 << 24)) throw new IllegalArgumentException("[SampleRing] Capacity must be between 1 and 2^24.");
+		int size = Math.max(2, Integer.highestOneBit(capacity - 1) << 1);
+		this.mask = size - 1;
+		this.poses = new double[size * PoseParser.POSE_VALUES];
+		this.requestedNanos = new long[size];
+		this.receivedNanos = new long[size];
+		this.capturedNanos = new long[size];
+		this.versions = new AtomicLongArray(size);
+	}
+
+	/**
+	 * Getter for the capacity
+	 * @return number of samples kept
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Getter for the number of published samples
+	 * @return number of samples published so far, including overwritten ones
+	 */
+	public long getCount() {
+		return published;
+	}
+
+	/**
+	 * Publishes a sample captured halfway between its request and receipt.
+	 * Must only be called by a single thread.
+	 * @param pose row-wise values of the 3x4 pose
+	 * @param requested System.nanoTime when the sample has been requested
+	 * @param received System.nanoTime when the sample has been received
+	 */
+	public void publish(double[] pose, long requested, long received) {
+		publish(pose, requested, received, requested + (received - requested) / 2);
+	}
+
+	/**
+	 * Publishes a sample, overwriting the oldest one if the ring is full.
+	 * Must only be called by a single thread.
+	 * @param pose row-wise values of the 3x4 pose
+	 * @param requested System.nanoTime when the sample has been requested
+	 * @param received System.nanoTime when the sample has been received
+	 * @param captured System.nanoTime when the pose has been captured, between requested and received
+	 */
+	public void publish(double[] pose, long requested, long received, long captured) {
+		long sequence = published;
+		int slot = (int) (sequence & mask);
+		versions.set(slot, 2 * sequence + 1);
+		// the slot must be marked as being written before any of its values changes
+		VarHandle.storeStoreFence();
+		System.arraycopy(pose, 0, poses, slot * PoseParser.POSE_VALUES, PoseParser.POSE_VALUES);
+		requestedNanos[slot] = requested;
+		receivedNanos[slot] = received;
+		capturedNanos[slot] = captured;
+		versions.set(slot, 2 * sequence + 2);
+		published = sequence + 1;
+	}
+
+	/**
+	 * Reads the latest sample.
+	 * @param sample the sample to copy into
+	 * @return true if there has been a sample, false if nothing has been published yet
+	 */
+	public boolean latest(TrackingSample sample) {
+		while(true) {
+			long sequence = published - 1;
+			if(sequence < 0) return false;
+			if(read(sequence, sample)) return true;
+			// overwritten while reading, the publisher is a whole ring ahead, try the newest again
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Waits for a sample which has been requested at or after the given time,
+	 * so the tracking-system measured it after that time.
+	 * @param sinceNanos System.nanoTime, older samples are ignored
+	 * @param timeout the maximum time to wait
+	 * @param unit unit of the timeout
+	 * @param sample the sample to copy into
+	 * @param publishing tells if samples are still being published, waiting ends early otherwise
+	 * @return true if there is such a sample, false if none arrived in time
+	 * @throws InterruptedException if the waiting thread has been interrupted
+	 */
+	public boolean awaitSample(long sinceNanos, long timeout, TimeUnit unit, TrackingSample sample, BooleanSupplier publishing) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(true) {
+			if(latest(sample) && sample.requestedNanos - sinceNanos >= 0) return true;
+			if(System.nanoTime() - deadline >= 0 || !publishing.getAsBoolean()) return false;
+			LockSupport.parkNanos(AWAIT_PARK_NANOS);
+			if(Thread.interrupted()) throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Estimates the pose at the given time from the two samples captured right before and
+	 * after it, so a pose of a moving marker can be paired with a pose of the robot taken
+	 * at the same time. Use awaitSample first, if the time may be later than the latest capture.
+	 * @param atNanos System.nanoTime to estimate the pose at
+	 * @param sample receives the interpolated pose and the given time as capture time,
+	 * 			the request time of the earlier and the receipt time of the later sample
+	 * @return true if the time lies between two samples kept in the ring, the content of
+	 * 			the sample is undefined otherwise
+	 */
+	public boolean interpolate(long atNanos, TrackingSample sample) {
+		TrackingSample earlier = new TrackingSample();
+		TrackingSample later = null;
+		long newest = published - 1;
+		long oldest = Math.max(0, newest - mask + 1);
+		for(long n = newest; n >= oldest; n--) {
+			if(!read(n, earlier)) return false;
+			if(earlier.capturedNanos - atNanos <= 0) {
+				if(later == null) {
+					if(earlier.capturedNanos != atNanos) return false;
+					later = earlier;
+				}
+				PoseInterpolation.interpolate(earlier.pose, earlier.capturedNanos, later.pose, later.capturedNanos, atNanos, sample.pose);
+				sample.requestedNanos = earlier.requestedNanos;
+				sample.receivedNanos = later.receivedNanos;
+				sample.capturedNanos = atNanos;
+				sample.sequence = n;
+				return true;
+			}
+			// captured after the time, the next older one may be before it
+			TrackingSample swap = later == null ? new TrackingSample() : later;
+			later = earlier;
+			earlier = swap;
+		}
+		return false;
+	}
+
+	/**
+	 * Averages the latest samples which have been requested at or after the given time.
+	 * The rotational part is averaged element-wise, which is only close to orthonormal for a
+	 * resting marker, so this is meant for reducing the noise of a marker that doesn't move.
+	 * @param sinceNanos System.nanoTime, older samples are ignored
+	 * @param maxSamples maximum number of samples averaged
+	 * @param sample receives the average, the earliest request time, the latest receipt time
+	 * 			and the mean capture time
+	 * @return number of samples averaged, 0 if there is no sample which is recent enough,
+	 * 			the content of the sample is undefined then
+	 */
+	public int average(long sinceNanos, int maxSamples, TrackingSample sample) {
+		double[] sum = new double[PoseParser.POSE_VALUES];
+		long newest = published - 1;
+		long oldest = Math.max(0, newest - Math.min(maxSamples, mask) + 1);
+		int count = 0;
+		long requested = 0;
+		long received = 0;
+		long captured = 0;
+		long sequence = -1;
+		for(long n = newest; n >= oldest; n--) {
+			if(!read(n, sample)) break;
+			if(sample.requestedNanos - sinceNanos < 0) break;
+			for(int i = 0; i < PoseParser.POSE_VALUES; i++) {
+				sum[i] += sample.pose[i];
+			}
+			if(count == 0) {
+				received = sample.receivedNanos;
+				sequence = n;
+			}
+			requested = sample.requestedNanos;
+			captured += sample.capturedNanos - sinceNanos;
+			count++;
+		}
+		if(count == 0) return 0;
+		for(int i = 0; i < PoseParser.POSE_VALUES; i++) {
+			sample.pose[i] = sum[i] / count;
+		}
+		sample.requestedNanos = requested;
+		sample.receivedNanos = received;
+		sample.capturedNanos = sinceNanos + captured / count;
+		sample.sequence = sequence;
+		return count;
+	}
+
+	/**
+	 * Copies the sample with the given sequence.
+	 * @param sequence number of the sample
+	 * @param sample the sample to copy into
+	 * @return true if the copy is consistent, false if the slot holds another sample or has been overwritten meanwhile
+	 */
+	private boolean read(long sequence, TrackingSample sample) {
+		int slot = (int) (sequence & mask);
+		long version = versions.get(slot);
+		if(version != 2 * sequence + 2) return false;
+		System.arraycopy(poses, slot * PoseParser.POSE_VALUES, sample.pose, 0, PoseParser.POSE_VALUES);
+		long requested = requestedNanos[slot];
+		long received = receivedNanos[slot];
+		long captured = capturedNanos[slot];
+		// the copy must be complete before the version is checked again
+		VarHandle.loadLoadFence();
+		if(versions.get(slot) != version) return false;
+		sample.requestedNanos = requested;
+		sample.receivedNanos = received;
+		sample.capturedNanos = captured;
+		sample.sequence = sequence;
+		return true;
+	}
+}
@@ -0,0 +1,378 @@
+package robprakt.tracking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import robprakt.Constants;
+import robprakt.network.PoseParser;
+import robprakt.network.TCPClient;
+import robprakt.network.TimedResponse;
+
+/**
+ * TrackingDemultiplexer follows several markers of the tracking-system at once, e.g. the ones
+ * of the cutter-robot and the holder-robot, and publishes the samples of every marker into its
+ * own MarkerStream.
+ *
+ * The markers are distributed over the given connections to the tracking-system, each
+ * connection is polled by its own thread. A connection with several markers sends the selection
+ * of a marker and CM_NEXTVALUE for all of its markers back to back in one cycle, so the
+ * tracking-system measures them within the same frame window. Since the responses of a
+ * connection arrive in the order of the commands, each pose is assigned to the marker selected
+ * right before it.
+ *
+ * The demultiplexer changes the selected marker of its connections, so no TrackingStream and no
+ * other CM_NEXTVALUE requests must use them while it is running. Markers which the tracking-system
+ * doesn't list aren't polled, and a marker whose selection isn't answered in time gets no sample in
+ * that cycle. Only TrackingSimulator is known to answer a selection with "OK", so another answer is
+ * reported once per marker and the marker is sampled anyway. Stopping replays the handshake of the
+ * connections, which selects the marker selected before again.
+ */
+public class TrackingDemultiplexer {
+
+	/**
+	 * values preceding the pose in a response, the visibility flag and the timestamp of the tracking-system
+	 */
+	private static final int SKIPPED_VALUES = 2;
+
+	/**
+	 * response of TrackingSimulator to the selection of a marker it knows,
+	 * the response of the tracking-system itself isn't specified
+	 */
+	private static final String SELECTED = "OK";
+
+	/**
+	 * the connections to the tracking-system
+	 */
+	private final List<TCPClient> clients;
+
+	/**
+	 * the subscribed markers by name, in the order of subscription
+	 */
+	private final Map<String, MarkerStream> streams = new LinkedHashMap<String, MarkerStream>();
+
+	/**
+	 * one clock offset estimator per connection, in the order of the connections
+	 */
+	private final List<ClockOffsetEstimator> clocks = new ArrayList<ClockOffsetEstimator>();
+
+	/**
+	 * the polling threads, one per connection with markers
+	 */
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	/**
+	 * the connections whose selected marker is changed by the polling threads
+	 */
+	private final List<TCPClient> polled = new ArrayList<TCPClient>();
+
+	/**
+	 * number of polling threads which haven't ended yet
+	 */
+	private final AtomicInteger active = new AtomicInteger();
+
+	/**
+	 * minimum time between two cycles of a connection in nanoseconds, 0 to poll as fast as possible
+	 */
+	private volatile long periodNanos;
+
+	/**
+	 * Constructor of the demultiplexer
+	 * @param clients the connections to the tracking-system, the handshake has to be done already
+	 */
+	public TrackingDemultiplexer(TCPClient... clients) {
+		if(clients.length == 0) throw new IllegalArgumentException("[TrackingDemultiplexer] At least one client is needed.");
+		this.clients = new ArrayList<TCPClient>(Arrays.asList(clients));
+		for(int i = 0; i < clients.length; i++) {
+			this.clocks.add(new ClockOffsetEstimator());
+		}
+	}
+
+	/**
+	 * Subscribes a marker keeping TrackingStream.DEFAULT_CAPACITY samples.
+	 * Markers subscribed while the demultiplexer is running are polled after the next start.
+	 * @param marker name of the marker as listed by CM_GETTRACKERS
+	 * @return the stream of the marker, the same one if the marker has been subscribed already
+	 */
+	public synchronized MarkerStream subscribe(String marker) {
+		MarkerStream stream = streams.get(marker);
+		if(stream == null) {
+			stream = new MarkerStream(marker, TrackingStream.DEFAULT_CAPACITY, this);
+			streams.put(marker, stream);
+		}
+		return stream;
+	}
+
+	/**
+	 * Getter for the stream of a marker
+	 * @param marker name of the marker
+	 * @return the stream or null if the marker hasn't been subscribed
+	 */
+	public synchronized MarkerStream getStream(String marker) {
+		return streams.get(marker);
+	}
+
+	/**
+	 * Getter for the clock offset estimator of a connection
+	 * @param client one of the connections of this demultiplexer
+	 * @return the estimator aligning the timestamps of the connection to System.nanoTime,
+	 * 			null if the client isn't a connection of this demultiplexer
+	 */
+	public ClockOffsetEstimator getClockOffsetEstimator(TCPClient client) {
+		int index = clients.indexOf(client);
+		return index < 0 ? null : clocks.get(index);
+	}
+
+	/**
+	 * Setter for the polling period
+	 * @param period minimum time between two cycles of a connection, 0 to poll as fast as possible
+	 * @param unit unit of the period
+	 */
+	public void setPeriod(long period, TimeUnit unit) {
+		this.periodNanos = unit.toNanos(period);
+	}
+
+	/**
+	 * Starts polling the subscribed markers, does nothing if it is running already.
+	 * The markers are distributed round-robin over the connections.
+	 */
+	public synchronized void start() {
+		if(!threads.isEmpty()) return;
+		List<List<MarkerStream>> assigned = new ArrayList<List<MarkerStream>>();
+		for(int i = 0; i < clients.size(); i++) {
+			assigned.add(new ArrayList<MarkerStream>());
+		}
+		int next = 0;
+		for(MarkerStream stream : streams.values()) {
+			assigned.get(next++ % clients.size()).add(stream);
+		}
+		for(int i = 0; i < clients.size(); i++) {
+			if(assigned.get(i).isEmpty()) continue;
+			TCPClient client = clients.get(i);
+			ClockOffsetEstimator clock = clocks.get(i);
+			List<MarkerStream> markers = assigned.get(i);
+			Thread t = new Thread(() -> run(client, clock, markers), "robprakt-tracking-" + client.getName() + "-" + threads.size());
+			t.setDaemon(true);
+			threads.add(t);
+			polled.add(client);
+		}
+		active.set(threads.size());
+		for(Thread t : threads) {
+			t.start();
+		}
+	}
+
+	/**
+	 * Stops polling and waits for the polling threads to end.
+	 * The handshake of the polled connections is sent again, so the marker selected
+	 * before is selected again, e.g. for QR24 requesting CM_NEXTVALUE directly.
+	 * The samples stay readable.
+	 */
+	public synchronized void stop() {
+		for(Thread t : threads) {
+			t.interrupt();
+		}
+		try {
+			for(Thread t : threads) {
+				t.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		threads.clear();
+		for(TCPClient client : polled) {
+			restoreSelection(client);
+		}
+		polled.clear();
+	}
+
+	/**
+	 * Sends the handshake of a connection again, which selects the marker selected before polling.
+	 * @param client the connection
+	 */
+	private static void restoreSelection(TCPClient client) {
+		List<String> handshake = client.getHandshake();
+		if(handshake.isEmpty()) {
+			System.out.println("[TrackingDemultiplexer] " + client.getName() + " has no handshake, the selected marker isn't restored.");
+			return;
+		}
+		if(client.isClosed()) return;
+		try {
+			for(String command : handshake) {
+				await(client.request(command));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.out.println("[TrackingDemultiplexer] Interrupted while restoring the selected marker of " + client.getName() + ".");
+		} catch (ExecutionException | TimeoutException e) {
+			System.out.println("[TrackingDemultiplexer] Couldn't restore the selected marker of " + client.getName() + ": " + e);
+		}
+	}
+
+	/**
+	 * Checks if the demultiplexer is polling
+	 * @return true if at least one polling thread is running
+	 */
+	public boolean isRunning() {
+		return active.get() > 0;
+	}
+
+	/**
+	 * Polls the markers of one connection until stopped or the connection is lost.
+	 * If the client is reconnecting, polling resumes once it has been reconnected.
+	 * @param client the connection
+	 * @param clock the clock offset estimator of the connection
+	 * @param markers the markers polled on this connection
+	 */
+	private void run(TCPClient client, ClockOffsetEstimator clock, List<MarkerStream> markers) {
+		System.out.println("[TrackingDemultiplexer] Started polling " + names(markers) + " on " + client.getName() + ".");
+		try {
+			while(true) {
+				try {
+					poll(client, clock, markers);
+					return;
+				} catch (ExecutionException e) {
+					if(!TrackingStream.recovered(client, e.getCause())) {
+						System.out.println("[TrackingDemultiplexer] Connection " + client.getName() + " lost: " + e.getCause());
+						return;
+					}
+					// the marker selection and the format have to be sent again
+					System.out.println("[TrackingDemultiplexer] Resuming polling on " + client.getName() + ".");
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} catch (TimeoutException e) {
+			System.out.println("[TrackingDemultiplexer] Connection " + client.getName() + " lost: " + e);
+		} finally {
+			active.decrementAndGet();
+			System.out.println("[TrackingDemultiplexer] Stopped polling on " + client.getName() + ".");
+		}
+	}
+
+	/**
+	 * Sets up the connection and polls its markers until the thread is interrupted.
+	 * @param client the connection
+	 * @param clock the clock offset estimator of the connection
+	 * @param markers the markers polled on this connection
+	 * @throws InterruptedException if the thread has been interrupted while waiting
+	 * @throws ExecutionException if the connection is lost
+	 * @throws TimeoutException if the tracking-system doesn't answer the set up
+	 */
+	private void poll(TCPClient client, ClockOffsetEstimator clock, List<MarkerStream> markers) throws InterruptedException, ExecutionException, TimeoutException {
+		markers = available(client, markers);
+		if(markers.isEmpty()) return;
+		boolean select = markers.size() > 1;
+		// markers whose selection has been answered unexpectedly, reported once
+		Set<String> unexpected = new HashSet<String>();
+		if(!select) {
+			// a single marker stays selected
+			checkSelection(markers.get(0).getName(), await(client.request(markers.get(0).getName())), unexpected);
+		}
+		await(client.request("FORMAT_MATRIXROWWISE"));
+		List<CompletableFuture<String>> selections = new ArrayList<CompletableFuture<String>>(markers.size());
+		List<CompletableFuture<TimedResponse>> responses = new ArrayList<CompletableFuture<TimedResponse>>(markers.size());
+		double[] pose = new double[PoseParser.POSE_VALUES];
+		while(!Thread.currentThread().isInterrupted()) {
+			long requested = System.nanoTime();
+			selections.clear();
+			responses.clear();
+			for(int i = 0; i < markers.size(); i++) {
+				if(select) selections.add(client.request(markers.get(i).getName()));
+				responses.add(client.requestTimed(TrackingStream.COMMAND));
+			}
+			for(int i = 0; i < markers.size(); i++) {
+				MarkerStream stream = markers.get(i);
+				TimedResponse response;
+				try {
+					// a pose following an unanswered selection may belong to the marker selected before
+					if(select) checkSelection(stream.getName(), selections.get(i).get(Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS), unexpected);
+					response = responses.get(i).get(Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					stream.dropped.incrementAndGet();
+					System.out.println("[TrackingDemultiplexer] No response for " + stream.getName() + " within " + Constants.RESPONSE_TIMEOUT_MS + "ms.");
+					continue;
+				}
+				try {
+					PoseParser.parse(response.getResponse(), SKIPPED_VALUES, pose);
+				} catch (IllegalArgumentException e) {
+					// e.g. the marker isn't visible
+					stream.dropped.incrementAndGet();
+					continue;
+				}
+				stream.getRing().publish(pose, response.getSentNanos(), response.getReceivedNanos(), TrackingStream.capturedNanos(response, clock));
+			}
+			long wait = periodNanos - (System.nanoTime() - requested);
+			if(wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Removes the markers which the tracking-system doesn't know, so no pose is assigned to the wrong marker.
+	 * @param client the connection
+	 * @param markers the markers to check
+	 * @return the markers listed by CM_GETTRACKERS
+	 * @throws InterruptedException if the thread has been interrupted
+	 * @throws ExecutionException if the connection is lost
+	 * @throws TimeoutException if the tracking-system doesn't answer
+	 */
+	private static List<MarkerStream> available(TCPClient client, List<MarkerStream> markers) throws InterruptedException, ExecutionException, TimeoutException {
+		List<String> trackers = Arrays.asList(await(client.request("CM_GETTRACKERS")).trim().split(";"));
+		List<MarkerStream> available = new ArrayList<MarkerStream>(markers.size());
+		for(MarkerStream stream : markers) {
+			if(trackers.contains(stream.getName())) {
+				available.add(stream);
+			} else {
+				System.out.println("[TrackingDemultiplexer] The tracking-system doesn't know marker " + stream.getName() + ", it's not polled.");
+			}
+		}
+		return available;
+	}
+
+	/**
+	 * Checks the response to the selection of a marker and reports the first unexpected one of each marker.
+	 * The marker is known to the tracking-system, see available, so it is sampled anyway.
+	 * @param marker name of the marker
+	 * @param response the response
+	 * @param unexpected markers whose selection has been answered unexpectedly before
+	 */
+	private static void checkSelection(String marker, String response, Set<String> unexpected) {
+		if(response != null && response.trim().equalsIgnoreCase(SELECTED)) return;
+		if(unexpected.add(marker)) System.out.println("[TrackingDemultiplexer] Unexpected response to the selection of marker " + marker + ": " + response + ", it's sampled anyway.");
+	}
+
+	/**
+	 * Waits for a response.
+	 * @param response the future of the response
+	 * @return the response
+	 * @throws InterruptedException if the thread has been interrupted
+	 * @throws ExecutionException if the connection is lost
+	 * @throws TimeoutException if the response isn't received within RESPONSE_TIMEOUT_MS
+	 */
+	private static String await(CompletableFuture<String> response) throws InterruptedException, ExecutionException, TimeoutException {
+		return response.get(Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the names of markers.
+	 * @param markers the markers
+	 * @return the names separated by commas
+	 */
+	private static String names(List<MarkerStream> markers) {
+		StringBuilder sb = new StringBuilder();
+		for(MarkerStream stream : markers) {
+			if(sb.length() > 0) sb.append(", ");
+			sb.append(stream.getName());
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,89 @@
+package robprakt.tracking;
+
+import robprakt.network.PoseParser;
+
+/**
+ * TrackingSample holds a pose of a marker measured by the tracking-system together with the
+ * times it has been requested, captured and received. Samples are meant to be reused, readers of a
+ * SampleRing copy into them instead of allocating a new one for every read.
+ */
+public class TrackingSample {
+
+	/**
+	 * row-wise values of the 3x4 pose of the marker relative to the tracking-system
+	 */
+	final double[] pose = new double[PoseParser.POSE_VALUES];
+
+	/**
+	 * System.nanoTime when the sample has been requested
+	 */
+	long requestedNanos;
+
+	/**
+	 * System.nanoTime when the sample has been received
+	 */
+	long receivedNanos;
+
+	/**
+	 * System.nanoTime when the tracking-system captured the pose
+	 */
+	long capturedNanos;
+
+	/**
+	 * number of the sample in its ring, counting from 0
+	 */
+	long sequence = -1;
+
+	/**
+	 * Getter for the pose, the array is reused by the next read into this sample
+	 * @return row-wise values of the 3x4 pose of the marker
+	 */
+	public double[] getPose() {
+		return pose;
+	}
+
+	/**
+	 * Getter for the time the sample has been requested.
+	 * The tracking-system measured the pose between the request and the receipt.
+	 * @return System.nanoTime when the sample has been requested
+	 */
+	public long getRequestedNanos() {
+		return requestedNanos;
+	}
+
+	/**
+	 * Getter for the time the sample has been received
+	 * @return System.nanoTime when the sample has been received
+	 */
+	public long getReceivedNanos() {
+		return receivedNanos;
+	}
+
+	/**
+	 * Getter for the time the pose has been captured, estimated from the timestamp of the
+	 * tracking-system if it could be aligned to the local clock, otherwise the midpoint
+	 * between the request and the receipt
+	 * @return System.nanoTime when the tracking-system captured the pose
+	 */
+	public long getCapturedNanos() {
+		return capturedNanos;
+	}
+
+	/**
+	 * Getter for the number of the sample
+	 * @return number of the sample in its ring, -1 if nothing has been read into this sample
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Copies the pose of this sample.
+	 * @param pose array for the 12 row-wise values
+	 * @return the given array
+	 */
+	public double[] copyPose(double[] pose) {
+		System.arraycopy(this.pose, 0, pose, 0, PoseParser.POSE_VALUES);
+		return pose;
+	}
+}
@@ -0,0 +1,284 @@
+package robprakt.tracking;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import robprakt.Constants;
+import robprakt.network.PoseParser;
+import robprakt.network.TCPClient;
+import robprakt.network.TimedResponse;
+
+/**
+ * TrackingStream polls the pose of the selected marker from the tracking-system continuously
+ * on its own thread and publishes every sample into a SampleRing.
+ * Consumers read the latest or an averaged sample right away instead of waiting for a
+ * CM_NEXTVALUE round trip of their own. Other requests of the client can still be sent
+ * meanwhile, their responses are kept apart by the client.
+ *
+ * Usage, measuring a marker after the robot has settled:
+ * <pre>
+ * long settled = System.nanoTime();
+ * if(stream.awaitSample(settled, 1, TimeUnit.SECONDS, sample)) use(sample.getPose());
+ * </pre>
+ */
+public class TrackingStream {
+
+	/**
+	 * command requesting the next sample
+	 */
+	public static final String COMMAND = "CM_NEXTVALUE";
+
+	/**
+	 * default number of samples kept
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * values preceding the pose in a response, the visibility flag and the timestamp of the tracking-system
+	 */
+	private static final int SKIPPED_VALUES = 2;
+
+	/**
+	 * index of the timestamp of the tracking-system in a response
+	 */
+	private static final int TIMESTAMP_TOKEN = 1;
+
+	/**
+	 * nanoseconds per unit of the timestamp of the tracking-system, which counts milliseconds
+	 */
+	private static final long TIMESTAMP_NANOS = 1000000;
+
+	/**
+	 * the client connected to the tracking-system
+	 */
+	private final TCPClient client;
+
+	/**
+	 * the published samples
+	 */
+	private final SampleRing ring;
+
+	/**
+	 * number of responses which timed out or couldn't be parsed
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * aligns the timestamps of the tracking-system to the local clock
+	 */
+	private final ClockOffsetEstimator clock = new ClockOffsetEstimator();
+
+	/**
+	 * minimum time between two requests in nanoseconds, 0 to poll as fast as the tracking-system answers
+	 */
+	private volatile long periodNanos;
+
+	/**
+	 * the polling thread, null if not running
+	 */
+	private volatile Thread thread;
+
+	/**
+	 * Creates a stream keeping DEFAULT_CAPACITY samples.
+	 * @param client the client connected to the tracking-system, the marker has to be selected already
+	 */
+	public TrackingStream(TCPClient client) {
+		this(client, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a stream.
+	 * @param client the client connected to the tracking-system, the marker has to be selected already
+	 * @param capacity number of samples kept
+	 */
+	public TrackingStream(TCPClient client, int capacity) {
+		this.client = client;
+		this.ring = new SampleRing(capacity);
+	}
+
+	/**
+	 * Setter for the polling period
+	 * @param period minimum time between two requests, 0 to poll as fast as the tracking-system answers
+	 * @param unit unit of the period
+	 */
+	public void setPeriod(long period, TimeUnit unit) {
+		this.periodNanos = unit.toNanos(period);
+	}
+
+	/**
+	 * Starts polling, does nothing if the stream is running already.
+	 */
+	public synchronized void start() {
+		if(thread != null) return;
+		Thread t = new Thread(this::run, "robprakt-tracking-" + client.getName());
+		t.setDaemon(true);
+		thread = t;
+		t.start();
+	}
+
+	/**
+	 * Stops polling and waits for the polling thread to end.
+	 * The samples stay readable.
+	 */
+	public synchronized void stop() {
+		Thread t = thread;
+		if(t == null) return;
+		thread = null;
+		t.interrupt();
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Checks if the stream is polling
+	 * @return true if the polling thread is running
+	 */
+	public boolean isRunning() {
+		return thread != null;
+	}
+
+	/**
+	 * Getter for the ring holding the samples
+	 * @return the ring
+	 */
+	public SampleRing getRing() {
+		return ring;
+	}
+
+	/**
+	 * Getter for the clock offset estimator of the tracking-system
+	 * @return the estimator aligning the timestamps of the tracking-system to System.nanoTime
+	 */
+	public ClockOffsetEstimator getClockOffsetEstimator() {
+		return clock;
+	}
+
+	/**
+	 * Getter for the number of dropped samples
+	 * @return number of responses which timed out or couldn't be parsed
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Reads the latest sample without waiting.
+	 * @param sample the sample to copy into
+	 * @return true if there has been a sample
+	 */
+	public boolean latest(TrackingSample sample) {
+		return ring.latest(sample);
+	}
+
+	/**
+	 * Averages the latest samples requested at or after the given time without waiting.
+	 * @param sinceNanos System.nanoTime, older samples are ignored
+	 * @param maxSamples maximum number of samples averaged
+	 * @param sample receives the average
+	 * @return number of samples averaged
+	 */
+	public int average(long sinceNanos, int maxSamples, TrackingSample sample) {
+		return ring.average(sinceNanos, maxSamples, sample);
+	}
+
+	/**
+	 * Waits for a sample which has been requested at or after the given time,
+	 * so the tracking-system measured it after that time.
+	 * @param sinceNanos System.nanoTime, older samples are ignored
+	 * @param timeout the maximum time to wait
+	 * @param unit unit of the timeout
+	 * @param sample the sample to copy into
+	 * @return true if there is such a sample, false if none arrived in time
+	 * @throws InterruptedException if the waiting thread has been interrupted
+	 */
+	public boolean awaitSample(long sinceNanos, long timeout, TimeUnit unit, TrackingSample sample) throws InterruptedException {
+		return ring.awaitSample(sinceNanos, timeout, unit, sample, this::isRunning);
+	}
+
+	/**
+	 * Estimates when the tracking-system captured the pose of a response from its timestamp.
+	 * @param response the timed response to CM_NEXTVALUE
+	 * @param clock the estimator of the connection, the timestamp is added as sample
+	 * @return System.nanoTime of the capture, within the round trip of the response
+	 */
+	static long capturedNanos(TimedResponse response, ClockOffsetEstimator clock) {
+		long sent = response.getSentNanos();
+		long received = response.getReceivedNanos();
+		long captured;
+		try {
+			long serverNanos = (long) PoseParser.parseValue(response.getResponse(), TIMESTAMP_TOKEN) * TIMESTAMP_NANOS;
+			clock.addSample(serverNanos, sent, received);
+			captured = clock.toLocalNanos(serverNanos);
+		} catch (IllegalArgumentException e) {
+			// no timestamp, the midpoint is the best guess
+			return response.getMidpointNanos();
+		}
+		// the pose can't have been captured outside of the round trip
+		if(captured - sent < 0) return sent;
+		if(captured - received > 0) return received;
+		return captured;
+	}
+
+	/**
+	 * Waits for a client to be reconnected after a request failed, for as long as it is reconnecting.
+	 * The handshake of the client selects the marker again.
+	 * @param client the client connected to the tracking-system
+	 * @param failure the exception of the failed request
+	 * @return true if polling can go on
+	 * @throws InterruptedException if the thread has been interrupted
+	 */
+	static boolean recovered(TCPClient client, Throwable failure) throws InterruptedException {
+		while(!client.awaitRecovery(failure, Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+			if(!client.isReconnecting()) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Polls samples until the stream is stopped or the connection is lost.
+	 * If the client is reconnecting, polling resumes once it has been reconnected.
+	 */
+	private void run() {
+		double[] pose = new double[PoseParser.POSE_VALUES];
+		System.out.println("[TrackingStream] Started polling " + client.getName() + ".");
+		try {
+			while(!Thread.currentThread().isInterrupted()) {
+				long requested = System.nanoTime();
+				TimedResponse response;
+				try {
+					response = client.requestTimed(COMMAND).get(Constants.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					dropped.incrementAndGet();
+					System.out.println("[TrackingStream] No response of the tracking-system within " + Constants.RESPONSE_TIMEOUT_MS + "ms.");
+					continue;
+				} catch (ExecutionException e) {
+					if(recovered(client, e.getCause())) continue;
+					System.out.println("[TrackingStream] Connection lost: " + e.getCause().getMessage());
+					return;
+				}
+				long received = response.getReceivedNanos();
+				try {
+					PoseParser.parse(response.getResponse(), SKIPPED_VALUES, pose);
+				} catch (IllegalArgumentException e) {
+					// e.g. the marker isn't visible
+					dropped.incrementAndGet();
+					continue;
+				}
+				ring.publish(pose, response.getSentNanos(), received, capturedNanos(response, clock));
+				long wait = periodNanos - (received - requested);
+				if(wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} finally {
+			// stop holds the lock while joining, a stream started again meanwhile has another thread
+			if(thread == Thread.currentThread()) thread = null;
+			System.out.println("[TrackingStream] Stopped polling " + client.getName() + ".");
+		}
+	}
+}